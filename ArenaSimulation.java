@@ -0,0 +1,176 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// The Feather Frenzy arena: each player's kiwi moved by the buttons they
+// hold, one fixed tick at a time on a flat floor.
+// A step depends only on the state and the buttons, so the same match can
+// be run by GameServer, or by every player at once with RollbackSession
+// saving and restoring it.
+public class ArenaSimulation implements RollbackSession.Simulation {
+    // Buttons a player can hold
+    public static final int BUTTON_LEFT = 1;
+    public static final int BUTTON_RIGHT = 1 << 1;
+    public static final int BUTTON_JUMP = 1 << 2;
+
+    // Kiwi movement, the same as single player
+    static final double SPEED = 100;
+    static final double GRAVITY = 500;
+    static final double JUMP_SPEED = 300;
+    static final int KIWI_SIZE = 32;
+    static final int KIWI_FRAMES = 15;
+    static final float KIWI_FRAME_DURATION = 0.1f;
+
+    // Length of a step
+    public static final double DT = 1.0 / GameServer.TICK_RATE;
+
+    // Most bytes save() writes
+    public static final int MAX_STATE_BYTES = 8 + NetSnapshot.MAX_PLAYERS * 8
+            + 12 + NetSnapshot.MAX_PLAYERS * (EntityStore.SLOT_BYTES + 12);
+
+    final int mWidth, mHeight;
+    final EntityStore mEntities = new EntityStore(NetSnapshot.MAX_PLAYERS);
+
+    // Each player's kiwi, or -1, and the buttons they held last step
+    final int[] mKiwis = new int[NetSnapshot.MAX_PLAYERS];
+    final int[] mPreviousButtons = new int[NetSnapshot.MAX_PLAYERS];
+
+    int mTick = 0;
+
+    public ArenaSimulation(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        Arrays.fill(mKiwis, -1);
+    }
+
+    //-------------------------------------------------------
+    // Players
+    //-------------------------------------------------------
+
+    // Puts a kiwi for player on the floor, spread out from the others
+    public void addPlayer(int player) {
+        if (hasPlayer(player)) {
+            return;
+        }
+        int kiwi = mEntities.create(KiwiLoreGame.KIND_KIWI);
+        int i = mEntities.slot(kiwi);
+        mEntities.width[i] = KIWI_SIZE;
+        mEntities.height[i] = KIWI_SIZE;
+        mEntities.x[i] = (player + 1) * mWidth / (mKiwis.length + 1.0) - KIWI_SIZE / 2.0;
+        mEntities.y[i] = mHeight - KIWI_SIZE;
+        mEntities.flags[i] = EntityStore.GRAVITY | EntityStore.ON_GROUND;
+        mEntities.frameCount[i] = KIWI_FRAMES;
+        mEntities.frameDuration[i] = KIWI_FRAME_DURATION;
+        mKiwis[player] = kiwi;
+        mPreviousButtons[player] = 0;
+    }
+
+    public void removePlayer(int player) {
+        mEntities.destroy(mKiwis[player]);
+        mKiwis[player] = -1;
+    }
+
+    public boolean hasPlayer(int player) {
+        return mKiwis[player] >= 0;
+    }
+
+    //-------------------------------------------------------
+    // Simulation
+    //-------------------------------------------------------
+
+    // Runs one tick with each player's buttons, indexed by player
+    @Override
+    public void step(int[] buttons) {
+        EntityStore e = mEntities;
+
+        // Apply each player's buttons to their kiwi
+        for (int player = 0; player < mKiwis.length && player < buttons.length; player++) {
+            if (mKiwis[player] < 0) {
+                continue;
+            }
+            int i = e.slot(mKiwis[player]);
+            boolean left = (buttons[player] & BUTTON_LEFT) != 0;
+            boolean right = (buttons[player] & BUTTON_RIGHT) != 0;
+
+            e.vx[i] = (right ? SPEED : 0) - (left ? SPEED : 0);
+            if (left != right) {
+                e.flags[i] = right ? (e.flags[i] | EntityStore.FACING_RIGHT) : (e.flags[i] & ~EntityStore.FACING_RIGHT);
+            }
+            if (left || right) {
+                e.flags[i] |= EntityStore.ANIMATED;
+            } else {
+                e.flags[i] &= ~EntityStore.ANIMATED;
+                e.frame[i] = 0;
+                e.animTime[i] = 0;
+            }
+
+            // Jump when the button goes down on the ground
+            boolean jump = (buttons[player] & BUTTON_JUMP) != 0 && (mPreviousButtons[player] & BUTTON_JUMP) == 0;
+            if (jump && e.has(i, EntityStore.ON_GROUND)) {
+                e.vy[i] = -JUMP_SPEED;
+            }
+            mPreviousButtons[player] = buttons[player];
+        }
+
+        e.applyGravity(GRAVITY, DT);
+        e.integrate(DT);
+        e.animate(DT);
+        KiwiLoreGame.landOnGround(e, mHeight);
+
+        // Keep everyone inside the arena
+        for (int i = 0; i < e.size(); i++) {
+            e.x[i] = Math.max(0, Math.min(mWidth - e.width[i], e.x[i]));
+        }
+        mTick++;
+    }
+
+    // Fills in snapshot with every kiwi
+    public void writeSnapshot(NetSnapshot snapshot) {
+        snapshot.present = 0;
+        for (int player = 0; player < mKiwis.length; player++) {
+            if (mKiwis[player] < 0) {
+                continue;
+            }
+            int i = mEntities.slot(mKiwis[player]);
+            snapshot.set(player, mEntities.x[i], mEntities.y[i], mEntities.frame[i],
+                    mEntities.flags[i] & (EntityStore.ANIMATED | EntityStore.FACING_RIGHT));
+        }
+    }
+
+    //-------------------------------------------------------
+    // Saving
+    //-------------------------------------------------------
+
+    @Override
+    public void save(ByteBuffer out) {
+        out.putInt(mTick);
+        out.putInt(mKiwis.length);
+        for (int player = 0; player < mKiwis.length; player++) {
+            out.putInt(mKiwis[player]).putInt(mPreviousButtons[player]);
+        }
+        mEntities.save(out);
+    }
+
+    @Override
+    public void load(ByteBuffer in) {
+        mTick = in.getInt();
+        int players = in.getInt();
+        for (int player = 0; player < players; player++) {
+            mKiwis[player] = in.getInt();
+            mPreviousButtons[player] = in.getInt();
+        }
+        mEntities.load(in);
+    }
+
+    // Returns the number of steps run
+    public int getTick() {
+        return mTick;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+}
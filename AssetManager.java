@@ -0,0 +1,146 @@
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.sampled.*;
+
+// Loads images and audio in the background on a shared pool of worker
+// threads. Each load returns a future straight away, so a game can queue
+// everything in init() and draw a loading screen while the files are
+// decoded. Failed loads are recorded as errors instead of ending the game.
+public class AssetManager {
+    // Worker pool shared by every AssetManager
+    static ExecutorService sWorkers;
+
+    static synchronized ExecutorService workers() {
+        if (sWorkers == null) {
+            final AtomicInteger count = new AtomicInteger();
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            sWorkers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "AssetLoader-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sWorkers;
+    }
+
+    // Progress of the loads queued on this manager
+    final AtomicInteger mQueued = new AtomicInteger();
+    final AtomicInteger mFinished = new AtomicInteger();
+
+    // Error messages for failed loads
+    final List<String> mErrors = new ArrayList<String>();
+
+    // Starts loading an image, see GameEngine.loadImage
+    public Future<Image> loadImage(final String filename) {
+        mQueued.incrementAndGet();
+        return track(CompletableFuture.supplyAsync(() -> {
+            try {
+                return ImageCache.get(filename);
+            } catch (Exception e) {
+                throw new AssetException("could not load image " + filename, e);
+            }
+        }, workers()));
+    }
+
+    // Starts loading an audio clip, see GameEngine.loadAudio
+    public Future<GameEngine.AudioClip> loadAudio(final String filename) {
+        mQueued.incrementAndGet();
+        return track(CompletableFuture.supplyAsync(() -> {
+            try (AudioInputStream audio = AudioSystem.getAudioInputStream(AssetPack.open(filename))) {
+                GameEngine.AudioClip clip = GameEngine.AudioClip.read(audio);
+
+                // Fix pauses and mixer issues when clip is first played
+                GameEngine.prepareAudio(clip);
+
+                return clip;
+            } catch (Exception e) {
+                throw new AssetException("could not load audio " + filename, e);
+            }
+        }, workers()));
+    }
+
+    // Starts loading a tile map and its tileset, see TileMap.load
+    public Future<TileMap> loadTileMap(final String filename) {
+        mQueued.incrementAndGet();
+        return track(CompletableFuture.supplyAsync(() -> {
+            try {
+                return TileMap.load(filename);
+            } catch (Exception e) {
+                throw new AssetException("could not load tile map " + filename, e);
+            }
+        }, workers()));
+    }
+
+    // Counts a load as finished and records its error, if any
+    <T> Future<T> track(CompletableFuture<T> future) {
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                Throwable cause = (error.getCause() != null) ? error.getCause() : error;
+                synchronized (mErrors) {
+                    mErrors.add(cause.getMessage());
+                }
+                System.out.println("Error: " + cause.getMessage());
+            }
+            mFinished.incrementAndGet();
+        });
+        return future;
+    }
+
+    // Returns the fraction of queued loads that have finished, from 0 to 1
+    public double getProgress() {
+        int queued = mQueued.get();
+        return queued == 0 ? 1.0 : (double)mFinished.get() / queued;
+    }
+
+    // Returns true once every queued load has finished or failed
+    public boolean isDone() {
+        return mFinished.get() >= mQueued.get();
+    }
+
+    // Returns true if any load failed
+    public boolean hasErrors() {
+        synchronized (mErrors) {
+            return !mErrors.isEmpty();
+        }
+    }
+
+    // Returns the messages of every failed load
+    public List<String> getErrors() {
+        synchronized (mErrors) {
+            return new ArrayList<String>(mErrors);
+        }
+    }
+
+    // Returns the result of a finished load, or null if it failed or
+    // has not finished yet
+    public static <T> T get(Future<T> future) {
+        if (future == null || !future.isDone()) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Error thrown from a load that failed
+    public static class AssetException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public AssetException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// A single-file archive of game assets, memory-mapped when it is opened.
+// Reading an entry returns a view of the mapped file, so there is no copy
+// and no filesystem lookup per asset. Build packs with AssetPacker.
+//
+// Layout (big-endian):
+//   int   magic ("KPAK")
+//   int   version
+//   int   entry count
+//   per entry: short name length, name (UTF-8), long offset, long length
+//   entry data
+public class AssetPack {
+    static final int MAGIC = 0x4B50414B; // "KPAK"
+    static final int VERSION = 1;
+
+    // Packs that loadImage/loadAudio look in before the filesystem
+    static final List<AssetPack> sMounted = new ArrayList<AssetPack>();
+
+    // Mapped file
+    final MappedByteBuffer mData;
+
+    // Entry positions in the mapped file, keyed by name
+    final Map<String, long[]> mEntries = new HashMap<String, long[]>();
+
+    // Maps and indexes the pack in filename
+    public AssetPack(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("asset pack too large: " + filename);
+            }
+            mData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        // Read the index
+        ByteBuffer index = mData.duplicate();
+        if (index.remaining() < 12 || index.getInt() != MAGIC) {
+            throw new IOException("not an asset pack: " + filename);
+        }
+        int version = index.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported asset pack version " + version + ": " + filename);
+        }
+
+        int count = index.getInt();
+        for (int i = 0; i < count; i++) {
+            // A truncated index would otherwise underflow the buffer
+            if (index.remaining() < 2) {
+                throw new IOException("truncated asset pack index in " + filename);
+            }
+            byte[] name = new byte[index.getShort() & 0xffff];
+            if (index.remaining() < name.length + 16) {
+                throw new IOException("truncated asset pack index in " + filename);
+            }
+            index.get(name);
+            long offset = index.getLong();
+            long length = index.getLong();
+            if (offset < 0 || length < 0 || offset + length > mData.capacity()) {
+                throw new IOException("corrupt asset pack entry in " + filename);
+            }
+            mEntries.put(new String(name, StandardCharsets.UTF_8), new long[] {offset, length});
+        }
+    }
+
+    // Returns true if the pack holds name
+    public boolean contains(String name) {
+        return mEntries.containsKey(normalise(name));
+    }
+
+    // Returns the names of every entry
+    public Set<String> names() {
+        return Collections.unmodifiableSet(mEntries.keySet());
+    }
+
+    // Returns a read-only view of the entry name, or null if it is not in the pack
+    public ByteBuffer get(String name) {
+        long[] entry = mEntries.get(normalise(name));
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer view = mData.duplicate();
+        view.position((int)entry[0]);
+        view.limit((int)(entry[0] + entry[1]));
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    //-------------------------------------------------------
+    // Mounted packs
+    //-------------------------------------------------------
+
+    // Opens the pack in filename and makes its entries loadable by name
+    public static synchronized AssetPack mount(String filename) throws IOException {
+        AssetPack pack = new AssetPack(filename);
+        sMounted.add(0, pack);
+        return pack;
+    }
+
+    // Removes every mounted pack
+    public static synchronized void unmountAll() {
+        sMounted.clear();
+    }
+
+    // Returns true if filename is in a mounted pack or on disk
+    public static boolean exists(String filename) {
+        return find(filename) != null || new File(filename).isFile();
+    }
+
+    // Opens filename from the first mounted pack that holds it,
+    // otherwise from the filesystem. The stream supports mark/reset.
+    public static InputStream open(String filename) throws IOException {
+        ByteBuffer entry = find(filename);
+        if (entry != null) {
+            return new BufferInputStream(entry);
+        }
+        return new BufferedInputStream(new FileInputStream(filename));
+    }
+
+    // Returns the entry for filename in the mounted packs, or null
+    static synchronized ByteBuffer find(String filename) {
+        for (AssetPack pack : sMounted) {
+            ByteBuffer entry = pack.get(filename);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // Turns a path into an entry name
+    static String normalise(String name) {
+        name = name.replace('\\', '/');
+        while (name.startsWith("./")) {
+            name = name.substring(2);
+        }
+        return name;
+    }
+
+    // InputStream reading straight from a ByteBuffer
+    static class BufferInputStream extends InputStream {
+        final ByteBuffer mBuffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int)Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int limit) {
+            mBuffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            mBuffer.reset();
+        }
+    }
+}
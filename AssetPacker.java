@@ -0,0 +1,90 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Builds an AssetPack from a directory of assets.
+//
+// Usage: java AssetPacker <asset directory> <output file> [extensions...]
+// e.g.   java AssetPacker . assets.pak png wav
+//
+// Entries are named by their path relative to the asset directory, so
+// loadImage("sounds/jump.wav") finds the file packed from ./sounds/jump.wav.
+public class AssetPacker {
+    // File types packed when none are given
+    static final String[] DEFAULT_EXTENSIONS = {"png", "jpg", "wav", "map"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java AssetPacker <asset directory> <output file> [extensions...]");
+            System.exit(1);
+        }
+
+        String[] extensions = (args.length > 2) ? Arrays.copyOfRange(args, 2, args.length) : DEFAULT_EXTENSIONS;
+        List<String> names = pack(Paths.get(args[0]), Paths.get(args[1]), extensions);
+
+        System.out.println("Packed " + names.size() + " assets into " + args[1]);
+    }
+
+    // Packs every file under root with one of the given extensions into output.
+    // Returns the names of the packed entries.
+    public static List<String> pack(Path root, Path output, String[] extensions) throws IOException {
+        // Collect the files, skipping IDE output folders and the pack itself
+        List<Path> files = new ArrayList<Path>();
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.filter(Files::isRegularFile)
+                .filter(p -> hasExtension(p, extensions))
+                .filter(p -> !root.relativize(p).startsWith("out"))
+                .filter(p -> !p.toAbsolutePath().normalize().equals(output.toAbsolutePath().normalize()))
+                .sorted()
+                .forEach(files::add);
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<byte[]> encodedNames = new ArrayList<byte[]>();
+        for (Path file : files) {
+            String name = AssetPack.normalise(root.relativize(file).toString());
+            names.add(name);
+            encodedNames.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Work out where the data starts
+        long offset = 12;
+        for (byte[] name : encodedNames) {
+            offset += 2 + name.length + 16;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+            // Header and index
+            out.writeInt(AssetPack.MAGIC);
+            out.writeInt(AssetPack.VERSION);
+            out.writeInt(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                long length = Files.size(files.get(i));
+                out.writeShort(encodedNames.get(i).length);
+                out.write(encodedNames.get(i));
+                out.writeLong(offset);
+                out.writeLong(length);
+                offset += length;
+            }
+
+            // Data
+            for (Path file : files) {
+                Files.copy(file, out);
+            }
+        }
+
+        return names;
+    }
+
+    static boolean hasExtension(Path file, String[] extensions) {
+        String name = file.getFileName().toString().toLowerCase();
+        for (String extension : extensions) {
+            if (name.endsWith("." + extension.toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
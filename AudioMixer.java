@@ -0,0 +1,259 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.sound.sampled.*;
+
+// Software mixer that plays sound effects and streaming music through a
+// single SourceDataLine.
+// A mixer thread sums a fixed pool of voices into a preallocated buffer and
+// writes it to the line, so playing a sound only claims a voice instead of
+// opening a new Clip. Clips are converted to the mixer's format once, when
+// they are prepared.
+public class AudioMixer {
+    // Output format: 44.1kHz, 16 bit, stereo
+    public static final float SAMPLE_RATE = 44100f;
+    public static final int CHANNELS = 2;
+    public static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 16, CHANNELS, true, false);
+
+    // Number of sounds that can play at once
+    public static final int VOICES = 32;
+
+    // Frames mixed per block (about 6ms), and blocks buffered by the line
+    static final int BLOCK_FRAMES = 256;
+    static final int LINE_BLOCKS = 4;
+
+    // Shared mixer, created on first use
+    static AudioMixer sDefault;
+    static boolean sUnavailable = false;
+
+    // Returns the shared mixer, or null if no audio line could be opened
+    public static synchronized AudioMixer getDefault() {
+        if (sDefault == null && !sUnavailable) {
+            try {
+                sDefault = new AudioMixer();
+            } catch (Exception e) {
+                System.out.println("Audio mixer unavailable, falling back to Clips: " + e.getMessage());
+                sUnavailable = true;
+            }
+        }
+        return sDefault;
+    }
+
+    // Output line
+    final SourceDataLine mLine;
+
+    // Voices, one entry per voice. mVoiceData is null for a free voice.
+    final short[][] mVoiceData = new short[VOICES][];
+    final int[] mVoicePosition = new int[VOICES];
+    final float[] mVoiceGain = new float[VOICES];
+    final long[] mVoiceStarted = new long[VOICES];
+    long mPlayCount = 0;
+
+    // Gain applied to everything the mixer plays
+    float mMasterGain = 1f;
+
+    // Streaming music, mixed in with the voices
+    final MusicPlayer mMusic = new MusicPlayer();
+
+    // Mixing buffers
+    final int[] mAccumulator = new int[BLOCK_FRAMES * CHANNELS];
+    final byte[] mOutput = new byte[BLOCK_FRAMES * CHANNELS * 2];
+
+    AudioMixer() throws LineUnavailableException {
+        mLine = AudioSystem.getSourceDataLine(FORMAT);
+        mLine.open(FORMAT, mOutput.length * LINE_BLOCKS);
+        mLine.start();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Mix and write blocks until the program ends.
+                // Writing blocks while the line is full, which paces the loop.
+                while (true) {
+                    mixBlock();
+                    mLine.write(mOutput, 0, mOutput.length);
+                }
+            }
+        }, "AudioMixer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    //-------------------------------------------------------
+    // Playing sounds
+    //-------------------------------------------------------
+
+    // Plays clip at full volume
+    public boolean play(GameEngine.AudioClip clip) {
+        return play(clip, 0f);
+    }
+
+    // Plays clip with a volume in decibels. If every voice is busy the
+    // sound that has been playing longest is replaced.
+    public boolean play(GameEngine.AudioClip clip, float volume) {
+        short[] data = prepare(clip);
+        if (data == null) {
+            return false;
+        }
+
+        float gain = (float)Math.pow(10.0, volume / 20.0);
+
+        synchronized (this) {
+            // Find a free voice, or the oldest one
+            int voice = 0;
+            for (int i = 0; i < VOICES; i++) {
+                if (mVoiceData[i] == null) {
+                    voice = i;
+                    break;
+                }
+                if (mVoiceStarted[i] < mVoiceStarted[voice]) {
+                    voice = i;
+                }
+            }
+
+            mVoiceData[voice] = data;
+            mVoicePosition[voice] = 0;
+            mVoiceGain[voice] = gain;
+            mVoiceStarted[voice] = ++mPlayCount;
+        }
+        return true;
+    }
+
+    // Returns the music player that streams through this mixer
+    public MusicPlayer getMusic() {
+        return mMusic;
+    }
+
+    // Stops every sound
+    public synchronized void stopAll() {
+        Arrays.fill(mVoiceData, null);
+    }
+
+    // Sets the volume of everything the mixer plays, in decibels
+    public synchronized void setMasterVolume(float volume) {
+        mMasterGain = (float)Math.pow(10.0, volume / 20.0);
+    }
+
+    // Returns the number of sounds playing
+    public synchronized int getActiveVoices() {
+        int count = 0;
+        for (int i = 0; i < VOICES; i++) {
+            if (mVoiceData[i] != null) count++;
+        }
+        return count;
+    }
+
+    //-------------------------------------------------------
+    // Mixing
+    //-------------------------------------------------------
+
+    // Sums every playing voice into the next output block
+    void mixBlock() {
+        int[] accumulator = mAccumulator;
+        Arrays.fill(accumulator, 0);
+
+        float master;
+        synchronized (this) {
+            master = mMasterGain;
+            for (int v = 0; v < VOICES; v++) {
+                short[] data = mVoiceData[v];
+                if (data == null) {
+                    continue;
+                }
+
+                int position = mVoicePosition[v];
+                int n = Math.min(data.length - position, accumulator.length);
+                float gain = mVoiceGain[v];
+                for (int i = 0; i < n; i++) {
+                    accumulator[i] += (int)(data[position + i] * gain);
+                }
+
+                // Free the voice when its sound has finished
+                position += n;
+                if (position >= data.length) {
+                    mVoiceData[v] = null;
+                } else {
+                    mVoicePosition[v] = position;
+                }
+            }
+        }
+
+        // Add the music
+        mMusic.mixInto(accumulator);
+
+        // Clip to 16 bits and write little-endian samples
+        byte[] output = mOutput;
+        for (int i = 0; i < accumulator.length; i++) {
+            int sample = (int)(accumulator[i] * master);
+            if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+            if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+            output[2 * i] = (byte)sample;
+            output[2 * i + 1] = (byte)(sample >> 8);
+        }
+    }
+
+    //-------------------------------------------------------
+    // Conversion
+    //-------------------------------------------------------
+
+    // Returns clip's samples in the mixer's format, converting them the
+    // first time. Returns null if the clip cannot be converted.
+    public static short[] prepare(GameEngine.AudioClip clip) {
+        if (clip == null) {
+            return null;
+        }
+
+        synchronized (clip) {
+            if (clip.mMixData == null) {
+                try {
+                    clip.mMixData = convert(clip.getAudioFormat(), clip.getData(), (int)clip.getBufferSize());
+                } catch (Exception e) {
+                    System.out.println("Error: could not convert Audio Clip for mixing: " + e.getMessage());
+                    return null;
+                }
+            }
+            return clip.mMixData;
+        }
+    }
+
+    // Converts audio data into interleaved 16 bit stereo samples at the mixer's rate
+    static short[] convert(AudioFormat format, byte[] data, int length) throws IOException {
+        // Let Java Sound decode to 16 bit signed little-endian PCM at the original rate
+        AudioFormat pcm = new AudioFormat(format.getSampleRate(), 16, format.getChannels(), true, false);
+        AudioInputStream source = new AudioInputStream(new ByteArrayInputStream(data, 0, length), format,
+                length / Math.max(1, format.getFrameSize()));
+        byte[] bytes;
+        try (AudioInputStream decoded = AudioSystem.getAudioInputStream(pcm, source)) {
+            bytes = decoded.readAllBytes();
+        }
+
+        int channels = pcm.getChannels();
+        int frames = bytes.length / (2 * channels);
+
+        // Resample to the mixer's rate with linear interpolation, and map to stereo
+        double step = pcm.getSampleRate() / SAMPLE_RATE;
+        int outFrames = (int)(frames / step);
+        short[] out = new short[outFrames * CHANNELS];
+        for (int f = 0; f < outFrames; f++) {
+            double position = f * step;
+            int i0 = (int)position;
+            int i1 = Math.min(i0 + 1, frames - 1);
+            double t = position - i0;
+
+            for (int c = 0; c < CHANNELS; c++) {
+                int sourceChannel = Math.min(c, channels - 1);
+                int s0 = sample(bytes, i0 * channels + sourceChannel);
+                int s1 = sample(bytes, i1 * channels + sourceChannel);
+                out[f * CHANNELS + c] = (short)(s0 + (s1 - s0) * t);
+            }
+        }
+        return out;
+    }
+
+    // Reads sample index from little-endian 16 bit data
+    static int sample(byte[] bytes, int index) {
+        return (short)((bytes[2 * index] & 0xff) | (bytes[2 * index + 1] << 8));
+    }
+}
@@ -0,0 +1,57 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Pool of equal sized direct byte buffers for packets.
+// Sending and receiving take a buffer from the pool and give it back when
+// done, so networking does not allocate once the pool has warmed up.
+// Not thread safe: each thread that sends or receives keeps its own pool.
+public class BufferPool {
+    final int mBufferSize;
+    ByteBuffer[] mFree;
+    int mFreeCount = 0;
+
+    // Buffers made because the pool was empty, for spotting leaks
+    int mCreated = 0;
+
+    public BufferPool(int bufferSize, int initialCount) {
+        mBufferSize = bufferSize;
+        mFree = new ByteBuffer[Math.max(1, initialCount)];
+        for (int i = 0; i < initialCount; i++) {
+            mFree[mFreeCount++] = ByteBuffer.allocateDirect(bufferSize);
+            mCreated++;
+        }
+    }
+
+    // Returns a cleared buffer, making a new one if the pool is empty
+    public ByteBuffer acquire() {
+        if (mFreeCount == 0) {
+            mCreated++;
+            return ByteBuffer.allocateDirect(mBufferSize);
+        }
+        ByteBuffer buffer = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        buffer.clear();
+        return buffer;
+    }
+
+    // Gives a buffer from acquire() back to the pool
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != mBufferSize) {
+            return;
+        }
+        if (mFreeCount == mFree.length) {
+            mFree = Arrays.copyOf(mFree, mFreeCount * 2);
+        }
+        mFree[mFreeCount++] = buffer;
+    }
+
+    // Returns the size of every buffer in the pool
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    // Returns the number of buffers the pool has made
+    public int getCreated() {
+        return mCreated;
+    }
+}
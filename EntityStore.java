@@ -0,0 +1,356 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Game objects (kiwis, enemies, projectiles, pickups) stored as columns.
+// Every property is a primitive array indexed by a dense slot, so a
+// system that moves or animates everything walks a few arrays from start
+// to end instead of following a pointer per object, and nothing is boxed.
+//
+// Entities are referred to by handles, which stay valid while slots are
+// moved around: destroying an entity moves the last one into its slot so
+// the columns stay packed. A handle to a destroyed entity is detected by
+// its generation, so it never silently refers to a newer entity.
+//
+// The column arrays grow when the store fills up, so read them again (or
+// use them inside a system) after calling create().
+public class EntityStore {
+    //-------------------------------------------------------
+    // Flags
+    //-------------------------------------------------------
+
+    // Falls with gravity in applyGravity
+    public static final int GRAVITY = 1;
+    // Standing on the ground (set by the game's collision code)
+    public static final int ON_GROUND = 1 << 1;
+    // Advances its animation in animate
+    public static final int ANIMATED = 1 << 2;
+    // Facing right rather than left
+    public static final int FACING_RIGHT = 1 << 3;
+    // First flag free for the game to use
+    public static final int USER = 1 << 8;
+
+    // Returned by create when the store cannot grow any further
+    public static final int NONE = -1;
+
+    // Handles are the sparse index plus a generation in the top bits
+    static final int INDEX_BITS = 20;
+    static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+    static final int MAX_ENTITIES = 1 << INDEX_BITS;
+
+    // A system updates some columns of every entity
+    public interface EntitySystem {
+        void update(EntityStore store, double dt);
+    }
+
+    //-------------------------------------------------------
+    // Columns, indexed by dense slot 0..size()-1
+    //-------------------------------------------------------
+    public double[] x, y;
+    public double[] vx, vy;
+    public float[] width, height;
+    public int[] kind;
+    public int[] flags;
+
+    // Animation: current frame, time into it, frames in the loop, seconds per frame
+    public int[] frame;
+    public double[] animTime;
+    public int[] frameCount;
+    public float[] frameDuration;
+
+    // Handle of the entity in each slot
+    int[] mHandles;
+
+    // Slot of each sparse index, and generation of each sparse index
+    int[] mSlots;
+    int[] mGenerations;
+
+    // Sparse indices free for reuse
+    int[] mFree;
+    int mFreeCount = 0;
+    int mNextIndex = 0;
+
+    int mSize = 0;
+
+    public EntityStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        x = new double[capacity];
+        y = new double[capacity];
+        vx = new double[capacity];
+        vy = new double[capacity];
+        width = new float[capacity];
+        height = new float[capacity];
+        kind = new int[capacity];
+        flags = new int[capacity];
+        frame = new int[capacity];
+        animTime = new double[capacity];
+        frameCount = new int[capacity];
+        frameDuration = new float[capacity];
+        mHandles = new int[capacity];
+        mSlots = new int[capacity];
+        mGenerations = new int[capacity];
+        mFree = new int[capacity];
+    }
+
+    public EntityStore() {
+        this(64);
+    }
+
+    //-------------------------------------------------------
+    // Creating and destroying
+    //-------------------------------------------------------
+
+    // Creates an entity of the given kind with every other column zero and
+    // returns its handle, or NONE if the store is full
+    public int create(int entityKind) {
+        int index;
+        if (mFreeCount > 0) {
+            index = mFree[--mFreeCount];
+        } else {
+            if (mNextIndex == MAX_ENTITIES) {
+                return NONE;
+            }
+            index = mNextIndex++;
+        }
+        if (mSize == x.length) {
+            grow();
+        }
+
+        int slot = mSize++;
+        int handle = (mGenerations[index] << INDEX_BITS) | index;
+        mSlots[index] = slot;
+        mHandles[slot] = handle;
+
+        x[slot] = 0;
+        y[slot] = 0;
+        vx[slot] = 0;
+        vy[slot] = 0;
+        width[slot] = 0;
+        height[slot] = 0;
+        kind[slot] = entityKind;
+        flags[slot] = 0;
+        frame[slot] = 0;
+        animTime[slot] = 0;
+        frameCount[slot] = 1;
+        frameDuration[slot] = 0;
+        return handle;
+    }
+
+    // Destroys the entity, moving the last entity into its slot
+    public void destroy(int handle) {
+        if (!isAlive(handle)) {
+            return;
+        }
+
+        int index = handle & INDEX_MASK;
+        int slot = mSlots[index];
+        int last = --mSize;
+        if (slot != last) {
+            copySlot(last, slot);
+            mSlots[mHandles[slot] & INDEX_MASK] = slot;
+        }
+
+        // Old handles to this index are now stale
+        mGenerations[index] = (mGenerations[index] + 1) & ((1 << (32 - INDEX_BITS - 1)) - 1);
+        mFree[mFreeCount++] = index;
+    }
+
+    // Destroys the entity in the given slot. The last entity moves into
+    // the slot, so loops that destroy while iterating should go backwards.
+    public void destroySlot(int slot) {
+        destroy(mHandles[slot]);
+    }
+
+    // Destroys every entity
+    public void clear() {
+        while (mSize > 0) {
+            destroy(mHandles[mSize - 1]);
+        }
+    }
+
+    // Moves the entity in slot from to slot to
+    void copySlot(int from, int to) {
+        x[to] = x[from];
+        y[to] = y[from];
+        vx[to] = vx[from];
+        vy[to] = vy[from];
+        width[to] = width[from];
+        height[to] = height[from];
+        kind[to] = kind[from];
+        flags[to] = flags[from];
+        frame[to] = frame[from];
+        animTime[to] = animTime[from];
+        frameCount[to] = frameCount[from];
+        frameDuration[to] = frameDuration[from];
+        mHandles[to] = mHandles[from];
+    }
+
+    // Doubles the capacity of every column
+    void grow() {
+        int capacity = Math.min(MAX_ENTITIES, x.length * 2);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        vx = Arrays.copyOf(vx, capacity);
+        vy = Arrays.copyOf(vy, capacity);
+        width = Arrays.copyOf(width, capacity);
+        height = Arrays.copyOf(height, capacity);
+        kind = Arrays.copyOf(kind, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        frame = Arrays.copyOf(frame, capacity);
+        animTime = Arrays.copyOf(animTime, capacity);
+        frameCount = Arrays.copyOf(frameCount, capacity);
+        frameDuration = Arrays.copyOf(frameDuration, capacity);
+        mHandles = Arrays.copyOf(mHandles, capacity);
+        mSlots = Arrays.copyOf(mSlots, capacity);
+        mGenerations = Arrays.copyOf(mGenerations, capacity);
+        mFree = Arrays.copyOf(mFree, capacity);
+    }
+
+    //-------------------------------------------------------
+    // Saving
+    //-------------------------------------------------------
+
+    // Bytes save() writes per entity
+    static final int SLOT_BYTES = 8 * 5 + 4 * 3 + 4 * 5;
+
+    // Returns the bytes save() writes for the store as it is now
+    public int saveSize() {
+        return 12 + mSize * SLOT_BYTES + mNextIndex * 8 + mFreeCount * 4;
+    }
+
+    // Writes every entity and the handle bookkeeping to out, so load()
+    // puts the store back exactly, with the same handles and slots
+    public void save(ByteBuffer out) {
+        out.putInt(mSize).putInt(mNextIndex).putInt(mFreeCount);
+        for (int i = 0; i < mSize; i++) {
+            out.putDouble(x[i]).putDouble(y[i]).putDouble(vx[i]).putDouble(vy[i]).putDouble(animTime[i]);
+            out.putFloat(width[i]).putFloat(height[i]).putFloat(frameDuration[i]);
+            out.putInt(kind[i]).putInt(flags[i]).putInt(frame[i]).putInt(frameCount[i]).putInt(mHandles[i]);
+        }
+        for (int i = 0; i < mNextIndex; i++) {
+            out.putInt(mSlots[i]).putInt(mGenerations[i]);
+        }
+        for (int i = 0; i < mFreeCount; i++) {
+            out.putInt(mFree[i]);
+        }
+    }
+
+    // Replaces the store's contents with what save() wrote
+    public void load(ByteBuffer in) {
+        int size = in.getInt();
+        int nextIndex = in.getInt();
+        int freeCount = in.getInt();
+        while (x.length < Math.max(size, nextIndex)) {
+            grow();
+        }
+
+        mSize = size;
+        mNextIndex = nextIndex;
+        mFreeCount = freeCount;
+        for (int i = 0; i < size; i++) {
+            x[i] = in.getDouble();
+            y[i] = in.getDouble();
+            vx[i] = in.getDouble();
+            vy[i] = in.getDouble();
+            animTime[i] = in.getDouble();
+            width[i] = in.getFloat();
+            height[i] = in.getFloat();
+            frameDuration[i] = in.getFloat();
+            kind[i] = in.getInt();
+            flags[i] = in.getInt();
+            frame[i] = in.getInt();
+            frameCount[i] = in.getInt();
+            mHandles[i] = in.getInt();
+        }
+        for (int i = 0; i < nextIndex; i++) {
+            mSlots[i] = in.getInt();
+            mGenerations[i] = in.getInt();
+        }
+        for (int i = 0; i < freeCount; i++) {
+            mFree[i] = in.getInt();
+        }
+    }
+
+    //-------------------------------------------------------
+    // Lookup
+    //-------------------------------------------------------
+
+    // Returns the number of entities, which fill slots 0..size()-1
+    public int size() {
+        return mSize;
+    }
+
+    // Returns true if handle refers to an entity that has not been destroyed
+    public boolean isAlive(int handle) {
+        if (handle < 0) {
+            return false;
+        }
+        int index = handle & INDEX_MASK;
+        return index < mNextIndex && mGenerations[index] == (handle >>> INDEX_BITS) && mSlots[index] < mSize
+                && mHandles[mSlots[index]] == handle;
+    }
+
+    // Returns the slot of the entity, or -1 if it has been destroyed.
+    // Slots change when entities are destroyed, handles do not.
+    public int slot(int handle) {
+        return isAlive(handle) ? mSlots[handle & INDEX_MASK] : -1;
+    }
+
+    // Returns the handle of the entity in slot
+    public int handle(int slot) {
+        return mHandles[slot];
+    }
+
+    // Returns true if the entity in slot has every flag in mask
+    public boolean has(int slot, int mask) {
+        return (flags[slot] & mask) == mask;
+    }
+
+    //-------------------------------------------------------
+    // Systems
+    //-------------------------------------------------------
+
+    // Runs each system over the store in order
+    public void run(double dt, EntitySystem... systems) {
+        for (EntitySystem system : systems) {
+            system.update(this, dt);
+        }
+    }
+
+    // Accelerates every GRAVITY entity downwards
+    public void applyGravity(double gravity, double dt) {
+        final double[] vy = this.vy;
+        final int[] flags = this.flags;
+        double dv = gravity * dt;
+        for (int i = 0; i < mSize; i++) {
+            if ((flags[i] & GRAVITY) != 0) {
+                vy[i] += dv;
+            }
+        }
+    }
+
+    // Moves every entity by its velocity
+    public void integrate(double dt) {
+        final double[] x = this.x, y = this.y, vx = this.vx, vy = this.vy;
+        for (int i = 0; i < mSize; i++) {
+            x[i] += vx[i] * dt;
+            y[i] += vy[i] * dt;
+        }
+    }
+
+    // Advances the animation of every ANIMATED entity, looping over its frames
+    public void animate(double dt) {
+        final int[] flags = this.flags, frame = this.frame, frameCount = this.frameCount;
+        final double[] animTime = this.animTime;
+        final float[] frameDuration = this.frameDuration;
+        for (int i = 0; i < mSize; i++) {
+            if ((flags[i] & ANIMATED) == 0 || frameDuration[i] <= 0) {
+                continue;
+            }
+            animTime[i] += dt;
+            while (animTime[i] >= frameDuration[i]) {
+                animTime[i] -= frameDuration[i];
+                frame[i] = (frame[i] + 1) % frameCount[i];
+            }
+        }
+    }
+}
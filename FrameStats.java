@@ -0,0 +1,187 @@
+import java.util.Arrays;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Per-frame timings recorded by the GameEngine.
+// Keeps the last WINDOW frames of update, paint and present times plus the
+// time between frames, and works out percentiles over that window. Each
+// frame is also emitted as a JFR event, so a flight recording shows the
+// game's frames next to GC and thread activity.
+public class FrameStats {
+    // What is timed each frame
+    public enum Metric {
+        UPDATE,
+        PAINT,
+        PRESENT,
+        FRAME
+    }
+
+    // Number of frames the percentiles are taken over
+    public static final int WINDOW = 240;
+
+    // Samples in nanoseconds, indexed by [metric][frame % WINDOW]
+    final long[][] mSamples = new long[Metric.values().length][WINDOW];
+    final long[] mSorted = new long[WINDOW];
+    int mCount = 0;
+    int mNext = 0;
+
+    // Timings for the frame in progress
+    long mUpdate, mPaint, mPresent;
+    int mSteps;
+    long mLastFrameEnd = 0;
+
+    // Totals since the game started
+    long mFrames = 0;
+    long mDroppedFrames = 0;
+
+    // Adds time spent in update(dt) this frame
+    public synchronized void recordUpdate(long nanos, int steps) {
+        mUpdate += nanos;
+        mSteps += steps;
+    }
+
+    // Adds time spent in paintComponent() this frame
+    public synchronized void recordPaint(long nanos) {
+        mPaint += nanos;
+    }
+
+    // Adds time spent showing the frame on screen
+    public synchronized void recordPresent(long nanos) {
+        mPresent += nanos;
+    }
+
+    // Finishes the current frame. dropped is the number of frames that
+    // should have been shown since the last one but were not.
+    public synchronized void endFrame(int dropped) {
+        long now = System.nanoTime();
+        long frame = (mLastFrameEnd == 0) ? 0 : now - mLastFrameEnd;
+        mLastFrameEnd = now;
+
+        mSamples[Metric.UPDATE.ordinal()][mNext] = mUpdate;
+        mSamples[Metric.PAINT.ordinal()][mNext] = mPaint;
+        mSamples[Metric.PRESENT.ordinal()][mNext] = mPresent;
+        mSamples[Metric.FRAME.ordinal()][mNext] = frame;
+        mNext = (mNext + 1) % WINDOW;
+        if (mCount < WINDOW) mCount++;
+
+        mFrames++;
+        mDroppedFrames += Math.max(0, dropped);
+
+        // Emit the JFR event
+        FrameEvent event = new FrameEvent();
+        if (event.isEnabled()) {
+            event.update = mUpdate;
+            event.paint = mPaint;
+            event.present = mPresent;
+            event.frame = frame;
+            event.steps = mSteps;
+            event.dropped = dropped;
+            event.commit();
+        }
+
+        mUpdate = 0;
+        mPaint = 0;
+        mPresent = 0;
+        mSteps = 0;
+    }
+
+    // Returns the p-th percentile (0 to 100) of metric over the window, in milliseconds
+    public synchronized double getPercentile(Metric metric, double p) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        System.arraycopy(mSamples[metric.ordinal()], 0, mSorted, 0, mCount);
+        Arrays.sort(mSorted, 0, mCount);
+
+        int index = (int)Math.ceil(p / 100.0 * mCount) - 1;
+        index = Math.max(0, Math.min(mCount - 1, index));
+        return mSorted[index] / 1e6;
+    }
+
+    // Returns the average of metric over the window, in milliseconds
+    public synchronized double getAverage(Metric metric) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        long total = 0;
+        long[] samples = mSamples[metric.ordinal()];
+        for (int i = 0; i < mCount; i++) {
+            total += samples[i];
+        }
+        return total / 1e6 / mCount;
+    }
+
+    // Returns the frames per second over the window
+    public synchronized double getFramesPerSecond() {
+        double frame = getAverage(Metric.FRAME);
+        return frame <= 0 ? 0 : 1000.0 / frame;
+    }
+
+    // Returns the number of frames recorded since the game started
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    // Returns the number of frames dropped since the game started
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    // Clears every recorded frame
+    public synchronized void reset() {
+        for (long[] samples : mSamples) {
+            Arrays.fill(samples, 0);
+        }
+        mCount = 0;
+        mNext = 0;
+        mFrames = 0;
+        mDroppedFrames = 0;
+        mLastFrameEnd = 0;
+    }
+
+    // Returns a one-line summary, e.g. for logging
+    @Override
+    public synchronized String toString() {
+        return String.format("%.1f fps, frame p50/p95/p99 %.2f/%.2f/%.2f ms, update p95 %.2f ms, paint p95 %.2f ms, present p95 %.2f ms, %d dropped",
+                getFramesPerSecond(),
+                getPercentile(Metric.FRAME, 50), getPercentile(Metric.FRAME, 95), getPercentile(Metric.FRAME, 99),
+                getPercentile(Metric.UPDATE, 95), getPercentile(Metric.PAINT, 95), getPercentile(Metric.PRESENT, 95),
+                mDroppedFrames);
+    }
+
+    // JFR event recorded for every frame
+    @Name("kiwilore.Frame")
+    @Label("Game Frame")
+    @Category("KiwiLore")
+    @Description("Time spent updating, painting and presenting one frame")
+    static class FrameEvent extends Event {
+        @Label("Update")
+        @Timespan
+        long update;
+
+        @Label("Paint")
+        @Timespan
+        long paint;
+
+        @Label("Present")
+        @Timespan
+        long present;
+
+        @Label("Frame Interval")
+        @Timespan
+        long frame;
+
+        @Label("Update Steps")
+        int steps;
+
+        @Label("Dropped Frames")
+        int dropped;
+    }
+}
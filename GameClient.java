@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+// Client side of a multiplayer match (see GameServer).
+// Call update() once per game update, at GameServer.TICK_RATE, with the
+// buttons the player is holding: it reads every packet that has arrived,
+// then sends the buttons along with the newest snapshot tick received,
+// which the server uses as the baseline for the next delta. Snapshots are
+// rebuilt from the baselines kept here, so getSnapshot() always holds the
+// full state of the match as the server last saw it.
+//
+// Waiting for the server's snapshots would delay every press by a round
+// trip, so the client also runs the arena itself through a RollbackSession,
+// far enough ahead that its buttons reach the server just before the tick
+// they are for. Other players are predicted to keep holding their buttons.
+// The buttons the server relays in each snapshot, and the whole state it
+// sends now and then, correct the prediction, and getPrediction() holds
+// the result: our own kiwi moves as soon as a key goes down.
+public class GameClient {
+    // How often to ask to join until the server answers
+    static final long CONNECT_RETRY_NANOS = 250000000L;
+
+    // Ticks ahead of the server we want our buttons to arrive, and the most
+    // extra frames run in one update to get there
+    static final int MIN_LEAD = 1;
+    static final int MAX_LEAD = 4;
+    static final int MAX_CATCH_UP = 4;
+
+    // Updates between changes of pace, so each sees the last one's effect
+    static final int SYNC_INTERVAL = 10;
+
+    // Past buttons resent with every input, so a lost one is covered
+    static final int REDUNDANCY = RollbackSession.MAX_PREDICTION;
+
+    final DatagramChannel mChannel;
+    final BufferPool mPool = new BufferPool(GameServer.MAX_PACKET, 2);
+
+    // Snapshots received, by tick % HISTORY, kept as baselines for deltas
+    final NetSnapshot[] mReceived = new NetSnapshot[GameServer.HISTORY];
+    NetSnapshot mLatest = null;
+
+    int mPlayer = -1;
+    boolean mFull = false;
+    long mLastConnect = 0;
+
+    // Our own run of the match, started from a state the server sent.
+    // Frame 0 of the session is server tick mFirstTick.
+    ArenaSimulation mArena;
+    RollbackSession mSession;
+    int mFirstTick = 0;
+    final NetSnapshot mPrediction = new NetSnapshot();
+    final int[] mStateButtons = new int[NetSnapshot.MAX_PLAYERS];
+
+    // How many ticks ahead our newest buttons were when the server ran the
+    // tick of the newest snapshot, and updates until the pace may change
+    int mLead = 0;
+    int mLeadTick = -1;
+    int mSyncCountdown = 0;
+
+    // Sequence number of the last input sent, and the last one the server
+    // had applied as of the newest snapshot
+    int mInputSequence = 0;
+    int mInputAcked = -1;
+
+    // Totals for reporting
+    long mBytesReceived = 0;
+    int mSnapshotsReceived = 0;
+    int mSnapshotsDropped = 0;
+
+    // Fraction of packets thrown away on arrival, for testing over loopback
+    double mSimulatedLoss = 0;
+    final Random mLossRandom = new Random(7);
+
+    // Opens a socket for talking to the server at address
+    public GameClient(SocketAddress address) throws IOException {
+        for (int i = 0; i < mReceived.length; i++) {
+            mReceived[i] = new NetSnapshot();
+        }
+        mChannel = DatagramChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.connect(address);
+    }
+
+    // Reads waiting packets, runs the prediction on with the buttons being
+    // held (ArenaSimulation.BUTTON_ bits) and sends them. Until the server
+    // has let us in and sent its state this asks to join instead.
+    public void update(int buttons) {
+        poll();
+        try {
+            if (mPlayer < 0 || mSession == null) {
+                long now = System.nanoTime();
+                if (!mFull && now - mLastConnect > CONNECT_RETRY_NANOS) {
+                    mLastConnect = now;
+                    sendByte(GameServer.PACKET_CONNECT);
+                }
+                return;
+            }
+
+            predict(buttons);
+
+            // Our buttons for the last few frames, each frame being a tick
+            int last = mSession.getFrame() - 1;
+            if (last < 0) {
+                return;
+            }
+            int count = Math.min(REDUNDANCY, last + 1);
+            ByteBuffer out = mPool.acquire();
+            out.put(GameServer.PACKET_INPUT)
+                    .putInt(++mInputSequence)
+                    .putInt((mLatest != null) ? mLatest.tick : -1)
+                    .putInt(mFirstTick + last)
+                    .put((byte)count);
+            for (int frame = last - count + 1; frame <= last; frame++) {
+                out.put((byte)mSession.getLocalInput(frame));
+            }
+            out.flip();
+            mChannel.write(out);
+            mPool.release(out);
+        } catch (PortUnreachableException e) {
+            // No server yet, keep trying
+        } catch (IOException e) {
+            System.out.println("Error: could not send to the game server: " + e.getMessage());
+        }
+    }
+
+    // Reads every packet that has arrived
+    public void poll() {
+        ByteBuffer in = mPool.acquire();
+        try {
+            while (mChannel.read(in) > 0) {
+                in.flip();
+                if (mSimulatedLoss <= 0 || mLossRandom.nextDouble() >= mSimulatedLoss) {
+                    mBytesReceived += in.remaining() + GameServer.UDP_OVERHEAD;
+                    try {
+                        handle(in);
+                    } catch (BufferUnderflowException e) {
+                        // Ignore packets that are too short
+                    }
+                }
+                in.clear();
+            }
+        } catch (PortUnreachableException e) {
+            // No server yet, keep trying
+        } catch (IOException e) {
+            System.out.println("Error: could not read from the game server: " + e.getMessage());
+        } finally {
+            mPool.release(in);
+        }
+    }
+
+    // Runs the prediction for this update: normally one frame, but more to
+    // catch up when our buttons reach the server too late, or none to let
+    // it catch up when they arrive far too early
+    void predict(int buttons) {
+        int frames = 1;
+        if (--mSyncCountdown <= 0 && mLeadTick >= mFirstTick) {
+            if (mLead < MIN_LEAD) {
+                frames += Math.min(MAX_CATCH_UP, MIN_LEAD - mLead);
+                mSyncCountdown = SYNC_INTERVAL;
+            } else if (mLead > MAX_LEAD) {
+                frames = 0;
+                mSyncCountdown = SYNC_INTERVAL;
+            }
+        }
+
+        if (frames == 0) {
+            // Still apply what the server has corrected
+            mSession.rollback();
+        }
+        for (int i = 0; i < frames; i++) {
+            if (!mSession.advance(buttons)) {
+                break;
+            }
+        }
+        mArena.writeSnapshot(mPrediction);
+        mPrediction.tick = mFirstTick + mSession.getFrame() - 1;
+    }
+
+    // Starts predicting from the state the server had after tick
+    void startSession(int tick, int width, int height, ByteBuffer state) {
+        mArena = new ArenaSimulation(width, height);
+        mArena.load(state);
+        mSession = new RollbackSession(mArena, NetSnapshot.MAX_PLAYERS, mPlayer, ArenaSimulation.MAX_STATE_BYTES);
+        mFirstTick = tick + 1;
+        mSyncCountdown = 0;
+    }
+
+    void handle(ByteBuffer in) {
+        byte type = in.get();
+        if (type == GameServer.PACKET_WELCOME) {
+            mPlayer = in.get();
+        } else if (type == GameServer.PACKET_FULL) {
+            mFull = true;
+            System.out.println("Error: the game server is full.");
+        } else if (type == GameServer.PACKET_STATE) {
+            int tick = in.getInt();
+            int width = in.getShort();
+            int height = in.getShort();
+            for (int i = 0; i < mStateButtons.length; i++) {
+                mStateButtons[i] = in.get() & 0xFF;
+            }
+            if (mPlayer < 0) {
+                return;
+            }
+
+            // The state is the one before the frame after tick. Older than
+            // every frame kept, it is ignored; newer than our prediction, or
+            // for another player, we start again from it.
+            int frame = tick + 1 - mFirstTick;
+            if (mSession == null || mSession.mLocalPlayer != mPlayer || frame > mSession.getFrame()) {
+                startSession(tick, width, height, in);
+            } else {
+                mSession.setServerState(frame, in, mStateButtons);
+            }
+        } else if (type == GameServer.PACKET_SNAPSHOT) {
+            int tick = in.getInt();
+            int baseTick = in.getInt();
+            int inputAcked = in.getInt();
+            int player = in.get();
+            int lead = in.get();
+
+            // The buttons the server applied over the last few ticks, which
+            // still count even if the snapshot itself is stale
+            int relayed = in.get() & 0xFF;
+            int count = in.get() & 0xFF;
+            for (int k = 0; k < count; k++) {
+                int frame = tick - count + 1 + k - mFirstTick;
+                for (int p = 0; p < NetSnapshot.MAX_PLAYERS; p++) {
+                    int buttons = ((relayed & (1 << p)) != 0) ? in.get() & 0xFF : 0;
+                    if (mSession != null && frame >= 0) {
+                        mSession.setServerInput(p, frame, buttons);
+                    }
+                }
+            }
+            if (mLeadTick < 0 || tick - mLeadTick > 0) {
+                mLead = lead;
+                mLeadTick = tick;
+            }
+
+            // Snapshots that arrive late are older than what we have
+            if (mLatest != null && tick - mLatest.tick <= 0) {
+                return;
+            }
+
+            NetSnapshot base = null;
+            if (baseTick >= 0) {
+                base = mReceived[baseTick % GameServer.HISTORY];
+                if (base.tick != baseTick) {
+                    // We no longer have the baseline, wait for the next one
+                    mSnapshotsDropped++;
+                    return;
+                }
+            }
+
+            NetSnapshot snapshot = mReceived[tick % GameServer.HISTORY];
+            snapshot.readDelta(in, base);
+            snapshot.tick = tick;
+            mLatest = snapshot;
+            mPlayer = player;
+            mInputAcked = inputAcked;
+            mSnapshotsReceived++;
+        }
+    }
+
+    // Leaves the match and closes the socket
+    public void close() {
+        try {
+            if (mPlayer >= 0) {
+                sendByte(GameServer.PACKET_DISCONNECT);
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    void sendByte(byte type) throws IOException {
+        ByteBuffer out = mPool.acquire();
+        out.put(type).flip();
+        mChannel.write(out);
+        mPool.release(out);
+    }
+
+    //-------------------------------------------------------
+    // State
+    //-------------------------------------------------------
+
+    // Returns the newest snapshot of the match, or null before the first one
+    public NetSnapshot getSnapshot() {
+        return mLatest;
+    }
+
+    // Returns the predicted state of the match, with our latest buttons
+    // applied, or null until the server has sent its state
+    public NetSnapshot getPrediction() {
+        return (mSession != null) ? mPrediction : null;
+    }
+
+    // Returns the session running the prediction, or null before it starts
+    public RollbackSession getSession() {
+        return mSession;
+    }
+
+    // Returns our player number, or -1 until the server has let us in
+    public int getPlayer() {
+        return mPlayer;
+    }
+
+    // Returns true once the server has let us in
+    public boolean isConnected() {
+        return mPlayer >= 0;
+    }
+
+    // Returns the sequence number of the last input sent
+    public int getInputSequence() {
+        return mInputSequence;
+    }
+
+    // Returns the sequence number of the last input the server had applied
+    // in the newest snapshot
+    public int getInputAcked() {
+        return mInputAcked;
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public int getSnapshotsReceived() {
+        return mSnapshotsReceived;
+    }
+}
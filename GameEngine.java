@@ -1,5 +1,6 @@
 import java.awt.*;
 import java.awt.geom.*;
+import java.awt.font.FontRenderContext;
 
 import javax.swing.*;
 
@@ -7,8 +8,13 @@ import java.awt.event.*;
 import java.awt.image.*;
 import java.io.*;
 
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Stack;
+import java.util.WeakHashMap;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.imageio.*;
 import javax.sound.sampled.*;
@@ -79,8 +85,8 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
         mFrame.setVisible(true);
 
         mPanel.setDoubleBuffered(true);
-        mPanel.addMouseListener(this);
-        mPanel.addMouseMotionListener(this);
+        mPanel.addMouseListener(mInputForwarder);
+        mPanel.addMouseMotionListener(mInputForwarder);
 
         // Register a key event dispatcher to get a turn in handling all
         // key events, independent of which component currently has the focus
@@ -90,13 +96,17 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
                     public boolean dispatchKeyEvent(KeyEvent e) {
                         switch (e.getID()) {
                         case KeyEvent.KEY_PRESSED:
-                            GameEngine.this.keyPressed(e);
+                            // F3 toggles the frame timing overlay
+                            if (e.getKeyCode() == KeyEvent.VK_F3) {
+                                mShowStats = !mShowStats;
+                                repaint();
+                                return false;
+                            }
+                            postInput(e);
                             return false;
                         case KeyEvent.KEY_RELEASED:
-                            GameEngine.this.keyReleased(e);
-                            return false;
                         case KeyEvent.KEY_TYPED:
-                            GameEngine.this.keyTyped(e);
+                            postInput(e);
                             return false;
                         default:
                             return false; // do not consume the event
@@ -116,6 +126,8 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
             public void run() {
                 mWidth = width;
                 mHeight = height;
+                // Scaled images were made for the old resolution
+                clearScaledImages();
                 // Resize the window
                 mPanel.setPreferredSize(new Dimension(width, height));
                 mPanel.invalidate();
@@ -151,6 +163,11 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
         mWidth = width;
         mHeight = height;
 
+        // There is no window to create without a display
+        if (GraphicsEnvironment.isHeadless()) {
+            return;
+        }
+
         // Create window
         SwingUtilities.invokeLater(new Runnable() {
             @Override
@@ -161,13 +178,30 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
         });
     }
 
+    // How the game loop is driven
+    public enum LoopMode {
+        // A Swing Timer on the event thread (the original behaviour)
+        TIMER,
+        // A dedicated System.nanoTime() loop thread with a fixed update step
+        FIXED_STEP,
+        // FIXED_STEP with update(dt) run on the loop thread itself and a
+        // separate render thread drawing the newest published snapshot
+        THREADED
+    }
+
     // Create Game Function
     public static void createGame(GameEngine game, int framerate) {
+        // Call CreateGame
+        createGame(game, framerate, LoopMode.TIMER);
+    }
+
+    // Create Game Function with a choice of game loop
+    public static void createGame(GameEngine game, int framerate, LoopMode mode) {
         // Initialise Game
         game.init();
 
         // Start the Game
-        game.gameLoop(framerate);
+        game.gameLoop(framerate, mode);
     }
 
     public static void createGame(GameEngine game) {
@@ -209,14 +243,51 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
             double passedTime = measureTime();
             double dt = passedTime / 1000.;
 
+            // Finish timing the previous frame, which Swing has painted by now
+            if (passedTime > 0) {
+                int dropped = (int)Math.round(passedTime * getFramerate() / 1000.) - 1;
+                mStats.endFrame(dropped);
+            }
+
             // Update the Game
+            long start = System.nanoTime();
+            beginTick();
             update(dt);
+            publishSnapshot();
+            mStats.recordUpdate(System.nanoTime() - start, 1);
 
             // Tell the Game to draw
-            mPanel.repaint();
+            if (mRepaintEveryFrame || mShowStats) {
+                mPanel.repaint();
+            }
         }
     });
 
+    // When false the timer only updates the game, and the game asks for the
+    // parts of the window that changed to be redrawn with repaint(x,y,w,h).
+    // Only used by the TIMER loop.
+    boolean mRepaintEveryFrame = true;
+
+    public void setRepaintEveryFrame(boolean repaint) {
+        mRepaintEveryFrame = repaint;
+    }
+
+    // Asks for the whole window to be redrawn
+    public void repaint() {
+        if (mPanel != null) {
+            mPanel.repaint();
+        }
+    }
+
+    // Asks for part of the window to be redrawn
+    public void repaint(double x, double y, double w, double h) {
+        if (mPanel != null) {
+            int left = (int)Math.floor(x);
+            int top = (int)Math.floor(y);
+            mPanel.repaint(left, top, (int)Math.ceil(x + w) - left, (int)Math.ceil(y + h) - top);
+        }
+    }
+
     // The GameEngine main Panel
     protected class GamePanel extends JPanel {
         private static final long serialVersionUID = 1L;
@@ -224,27 +295,480 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
         // This gets called any time the Operating System
         // tells the program to paint itself
         public void paintComponent(Graphics graphics) {
-            // Get the graphics object
-            mGraphics = (Graphics2D)graphics;
+            // When the loop renders actively, just show its last frame.
+            // The threaded loop's back buffer belongs to its render thread,
+            // so ask that thread to draw a frame instead.
+            if (mLoop != null && mActiveRendering) {
+                if (mThreaded) {
+                    mLoop.requestFrame();
+                } else if (mBackBuffer != null) {
+                    graphics.drawImage(mBackBuffer, 0, 0, null);
+                }
+                return;
+            }
 
-            // Reset all transforms
-            mTransforms.clear();
-            mTransforms.push(mGraphics.getTransform());
+            // Paint the game
+            paintGame((Graphics2D)graphics);
+        }
+    }
 
-            // Rendering settings
-            mGraphics.setRenderingHints(new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON));
+    // Draws the game using the given graphics object
+    void paintGame(Graphics2D graphics) {
+        // Get the graphics object
+        mGraphics = graphics;
+        mTextContext = null;
 
-            // Paint the game
-            if (initialised) {
-                GameEngine.this.paintComponent();
+        // Reset all transforms
+        mTransforms.clear();
+        mTransforms.push(mGraphics.getTransform());
+
+        // Rendering settings
+        mGraphics.setRenderingHints(new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON));
+
+        // Paint the game
+        if (initialised) {
+            long start = System.nanoTime();
+            mSpriteClipDirty = true;
+            GameEngine.this.paintComponent();
+
+            // Draw the sprites the game batched last
+            flushSprites();
+            mBatch.endFrame();
+            mStats.recordPaint(System.nanoTime() - start);
+
+            // Draw the timing overlay on top
+            if (mShowStats) {
+                drawStatsOverlay();
+            }
+        }
+    }
+
+    //-------------------------------------------------------
+    // Active Rendering
+    //-------------------------------------------------------
+    // In FIXED_STEP mode the loop draws each frame into an accelerated
+    // back buffer and copies it to the panel itself, instead of asking
+    // Swing for a repaint that it may merge or delay.
+    boolean mActiveRendering = true;
+
+    // Back buffer the loop draws into. Only touched by the thread that
+    // draws: the event thread in FIXED_STEP mode, the render thread in
+    // THREADED mode.
+    VolatileImage mBackBuffer;
+
+    // Turns active rendering on or off (only used by the FIXED_STEP loop,
+    // the THREADED loop always renders actively)
+    public void setActiveRendering(boolean active) {
+        mActiveRendering = active || mThreaded;
+    }
+
+    // Draws a frame into the back buffer and shows it on the panel
+    void renderActive() {
+        int w = mPanel.getWidth();
+        int h = mPanel.getHeight();
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+
+        GraphicsConfiguration gc = mPanel.getGraphicsConfiguration();
+        if (gc == null) {
+            return;
+        }
+
+        do {
+            // (Re)create the back buffer if it is missing, the wrong size
+            // or no longer compatible with the screen
+            if (mBackBuffer == null || mBackBuffer.getWidth() != w || mBackBuffer.getHeight() != h
+                    || mBackBuffer.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE) {
+                if (mBackBuffer != null) {
+                    mBackBuffer.flush();
+                }
+                mBackBuffer = gc.createCompatibleVolatileImage(w, h);
+            }
+
+            // Draw the frame
+            Graphics2D graphics = mBackBuffer.createGraphics();
+            try {
+                graphics.setColor(mPanel.getBackground());
+                graphics.fillRect(0, 0, w, h);
+                paintGame(graphics);
+            } finally {
+                graphics.dispose();
+            }
+
+            // Redraw straight away if the surface was lost while drawing
+            if (mBackBuffer.contentsLost()) {
+                continue;
+            }
+
+            // Show the frame
+            long start = System.nanoTime();
+            Graphics screen = mPanel.getGraphics();
+            if (screen != null) {
+                screen.drawImage(mBackBuffer, 0, 0, null);
+                screen.dispose();
+            }
+            Toolkit.getDefaultToolkit().sync();
+            mStats.recordPresent(System.nanoTime() - start);
+        } while (mBackBuffer.contentsLost());
+    }
+
+    // Fixed Timestep Loop
+    // Runs update(dt) at a fixed rate measured with System.nanoTime(),
+    // catching up with a bounded number of steps after a stall, and draws
+    // once per iteration with the leftover fraction of a step as the
+    // interpolation alpha. Updates and painting are handed to the event
+    // thread so games see the same threading as with the GameTimer.
+    //
+    // When threaded, updates run on the loop thread itself and a second
+    // thread draws whenever a snapshot has been published, so a slow frame
+    // never holds up the next update. The game must then only draw from
+    // the snapshots it publishes in publishSnapshot().
+    protected class GameLoop implements Runnable {
+        // Most updates run in a single frame when catching up
+        private static final int MAX_STEPS_PER_FRAME = 5;
+
+        // Time left before a deadline that is spent spinning instead of parked
+        private static final long SPIN_NANOS = 1000000L;
+
+        private final int framerate;
+        private final long stepNanos;
+        private final double dt;
+        private final boolean threaded;
+        private volatile boolean running = true;
+
+        // Work for the current frame, read by the event thread
+        private int pendingSteps;
+        private int pendingDropped;
+        private double pendingAlpha;
+
+        private final Runnable frame = new Runnable() {
+            @Override
+            public void run() {
+                // Stop once the window has been closed
+                if (mFrame != null && !mFrame.isDisplayable()) {
+                    running = false;
+                    return;
+                }
+
+                // Update the Game
+                long start = System.nanoTime();
+                for (int i = 0; i < pendingSteps; i++) {
+                    beginTick();
+                    update(dt);
+                }
+                if (pendingSteps > 0) {
+                    publishSnapshot();
+                }
+                mStats.recordUpdate(System.nanoTime() - start, pendingSteps);
+
+                // Tell the Game to draw
+                mAlpha = pendingAlpha;
+                if (mPanel != null) {
+                    if (mActiveRendering) {
+                        renderActive();
+                    } else {
+                        mPanel.paintImmediately(0, 0, mPanel.getWidth(), mPanel.getHeight());
+                    }
+                }
+                mStats.endFrame(pendingDropped);
+            }
+        };
+
+        // Threaded mode: updates published but not yet drawn, and frames
+        // that were never shown because the render thread fell behind
+        private volatile long published = 0;
+        private final AtomicInteger droppedSinceRender = new AtomicInteger();
+        private Thread renderThread;
+
+        // Set when Swing asks for the panel to be repainted
+        private volatile boolean frameRequested = false;
+
+        private final Runnable render = new Runnable() {
+            @Override
+            public void run() {
+                long drawn = 0;
+                while (running) {
+                    long latest = published;
+                    if (latest == drawn && !frameRequested) {
+                        // Nothing new to draw, wait for the next update
+                        LockSupport.parkNanos(stepNanos);
+                        continue;
+                    }
+                    frameRequested = false;
+
+                    // Updates published while the last frame was drawing were never shown
+                    int skipped = (int)Math.max(0, latest - drawn - 1);
+                    drawn = latest;
+
+                    try {
+                        mAlpha = 1.0;
+                        if (mPanel != null) {
+                            renderActive();
+                        }
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    mStats.endFrame(skipped + droppedSinceRender.getAndSet(0));
+                }
+            }
+        };
+
+        protected GameLoop(int framerate) {
+            this(framerate, false);
+        }
+
+        protected GameLoop(int framerate, boolean threaded) {
+            if (framerate < 1) framerate = 1;
+            this.framerate = framerate;
+            this.threaded = threaded;
+            stepNanos = 1000000000L / framerate;
+            dt = stepNanos / 1e9;
+        }
+
+        // Runs the pending updates on this thread and hands the result to the render thread
+        private void simulate() {
+            // Stop once the window has been closed
+            if (mFrame != null && !mFrame.isDisplayable()) {
+                running = false;
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                for (int i = 0; i < pendingSteps; i++) {
+                    beginTick();
+                    update(dt);
+                }
+                if (pendingSteps > 0) {
+                    publishSnapshot();
+                }
+            } catch (RuntimeException e) {
+                // Report the error and keep running, like the GameTimer does
+                e.printStackTrace();
+            }
+            mStats.recordUpdate(System.nanoTime() - start, pendingSteps);
+
+            droppedSinceRender.addAndGet(pendingDropped);
+            if (pendingSteps > 0) {
+                published++;
+                LockSupport.unpark(renderThread);
             }
         }
+
+        @Override
+        public void run() {
+            if (threaded) {
+                renderThread = new Thread(render, "GameRender");
+                renderThread.setDaemon(true);
+                renderThread.start();
+            }
+
+            long previous = System.nanoTime();
+            // Start with one step owed so the first frame updates
+            long accumulator = stepNanos;
+
+            while (running) {
+                long now = System.nanoTime();
+                accumulator += now - previous;
+                previous = now;
+
+                // Drop time that cannot be caught up rather than spiralling
+                int dropped = 0;
+                if (accumulator > stepNanos * MAX_STEPS_PER_FRAME) {
+                    dropped = (int)((accumulator - stepNanos * MAX_STEPS_PER_FRAME) / stepNanos);
+                    accumulator = stepNanos * MAX_STEPS_PER_FRAME;
+                }
+
+                pendingSteps = (int)(accumulator / stepNanos);
+                // Every step past the first is a frame that was never shown
+                pendingDropped = dropped + Math.max(0, pendingSteps - 1);
+                accumulator -= pendingSteps * stepNanos;
+                pendingAlpha = (double)accumulator / stepNanos;
+
+                if (threaded) {
+                    simulate();
+                } else {
+                    try {
+                        SwingUtilities.invokeAndWait(frame);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (java.lang.reflect.InvocationTargetException e) {
+                        // Report the error and keep running, like the GameTimer does
+                        e.getCause().printStackTrace();
+                    }
+                }
+
+                // Wait until the next update is due
+                waitUntil(now + stepNanos - accumulator);
+            }
+
+            // Let the render thread finish its frame before the game shuts down
+            if (renderThread != null) {
+                LockSupport.unpark(renderThread);
+                try {
+                    renderThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            SwingUtilities.invokeLater(mShutdown);
+        }
+
+        protected void stop() {
+            running = false;
+        }
+
+        // Asks the render thread to draw a frame even if nothing was updated
+        protected void requestFrame() {
+            frameRequested = true;
+            LockSupport.unpark(renderThread);
+        }
+
+        protected int getFramerate() {
+            return framerate;
+        }
+
+        private void waitUntil(long deadline) {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                if (remaining > SPIN_NANOS) {
+                    LockSupport.parkNanos(remaining - SPIN_NANOS);
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+
+    // Fixed timestep loop (null unless running in FIXED_STEP mode)
+    GameLoop mLoop;
+
+    //-------------------------------------------------------
+    // Closing
+    //-------------------------------------------------------
+
+    // Set once shutdown() has run
+    boolean mShutDown = false;
+
+    // Calls shutdown() and closes the window, on the event thread once the
+    // loop has stopped
+    final Runnable mShutdown = new Runnable() {
+        @Override
+        public void run() {
+            if (mShutDown) {
+                return;
+            }
+            mShutDown = true;
+            shutdown();
+            if (mFrame != null) {
+                mFrame.dispose();
+            }
+        }
+    };
+
+    // Stops the game loop, then calls shutdown() and closes the window on
+    // the event thread. Safe to call from any thread, including the key
+    // and mouse handlers, which run on the update thread in THREADED mode.
+    public void closeGame() {
+        if (mLoop != null) {
+            // The loop thread hands over to mShutdown once it has stopped
+            mLoop.stop();
+        } else {
+            timer.stop();
+            SwingUtilities.invokeLater(mShutdown);
+        }
+    }
+
+    // Called on the event thread once the game loop has stopped and no
+    // update or paint is running, before the window is closed. Games close
+    // sockets and other resources here.
+    public void shutdown() {}
+
+    // Returns the framerate the game loop is running at
+    public int getFramerate() {
+        return (mLoop != null) ? mLoop.getFramerate() : timer.getFramerate();
+    }
+
+    //-------------------------------------------------------
+    // Frame Timing
+    //-------------------------------------------------------
+    // Update, paint and present times for recent frames (see FrameStats)
+    final FrameStats mStats = new FrameStats();
+
+    // Whether the timing overlay is drawn (toggled with F3)
+    boolean mShowStats = false;
+
+    static final Font STATS_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    static final Color STATS_BACKGROUND = new Color(0, 0, 0, 170);
+
+    // Returns the frame timings
+    public FrameStats getFrameStats() {
+        return mStats;
+    }
+
+    // Shows or hides the timing overlay
+    public void setStatsOverlay(boolean show) {
+        mShowStats = show;
+    }
+
+    // Draws the frame timings in the top left corner
+    void drawStatsOverlay() {
+        // Undo any transform the game left behind
+        flushSprites();
+        mGraphics.setTransform(mTransforms.firstElement());
+        mTextContext = null;
+
+        mGraphics.setColor(STATS_BACKGROUND);
+        mGraphics.fillRect(5, 5, 290, 106);
+
+        mGraphics.setFont(STATS_FONT);
+        mGraphics.setColor(Color.WHITE);
+        mGraphics.drawString(String.format("%.1f fps   dropped %d   input lost %d",
+                mStats.getFramesPerSecond(), mStats.getDroppedFrames(), mInputQueue.getDropped()), 12, 22);
+        mGraphics.drawString("          p50    p95    p99 (ms)", 12, 38);
+        int y = 54;
+        for (FrameStats.Metric metric : FrameStats.Metric.values()) {
+            mGraphics.drawString(String.format("%-8s %6.2f %6.2f %6.2f", metric.name().toLowerCase(),
+                    mStats.getPercentile(metric, 50), mStats.getPercentile(metric, 95), mStats.getPercentile(metric, 99)), 12, y);
+            y += 14;
+        }
+        mGraphics.drawString(String.format("sprites %d draws, %d atlas switches, %d culled",
+                mBatch.getDrawCalls(), mBatch.getAtlasSwitches(), mBatch.getCulled()), 12, y);
+    }
+
+    // Fraction of an update step that has passed since the last update.
+    // Games can use it to interpolate between their previous and current state.
+    double mAlpha = 1.0;
+
+    // Returns the interpolation alpha for the frame being drawn
+    public double interpolationAlpha() {
+        return mAlpha;
     }
 
     // Initialises and starts the game loop with the given framerate.
     public void gameLoop(int framerate) {
+        gameLoop(framerate, LoopMode.TIMER);
+    }
+
+    // Initialises and starts the game loop with the given framerate and loop mode.
+    public void gameLoop(int framerate, LoopMode mode) {
         initialised = true; // assume init has been called or won't be called
 
+        if (mode == LoopMode.FIXED_STEP || mode == LoopMode.THREADED) {
+            // Main loop runs on its own thread until the window is closed.
+            // The threaded loop always renders actively from its own thread.
+            mThreaded = (mode == LoopMode.THREADED);
+            if (mThreaded) {
+                mActiveRendering = true;
+            }
+            mLoop = new GameLoop(framerate, mThreaded);
+            Thread thread = new Thread(mLoop, "GameLoop");
+            thread.setDaemon(true);
+            thread.start();
+            return;
+        }
+
         timer.setFramerate(framerate);
         timer.setRepeats(true);
 
@@ -262,6 +786,20 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
     //-------------------------------------------------------
     public abstract void update(double dt);
 
+    // Called after the updates for a frame, before it is drawn. In THREADED
+    // mode update(dt) and paintComponent() run on different threads, so a
+    // game copies what it draws into a SnapshotBuffer here and draws only
+    // from that buffer. In the other modes it runs on the same thread as
+    // painting, and games that draw their live state can ignore it.
+    public void publishSnapshot() {}
+
+    // Returns false while the game is still loading what it needs before
+    // play can start. Games that load in the background override this so
+    // that tools such as HeadlessRunner can wait for them.
+    public boolean isLoaded() {
+        return true;
+    }
+
     //-------------------------------------------------------
     // Paint function
     //-------------------------------------------------------
@@ -280,6 +818,144 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
     // Called whenever a key is pressed and immediately released
     public void keyTyped(KeyEvent event) {}
 
+    //-------------------------------------------------------
+    // Input
+    //-------------------------------------------------------
+    // Key and mouse events arrive on the event thread and are put in a ring
+    // buffer. At the start of each update step they are taken out in order,
+    // the key state below is brought up to date and the game's handlers are
+    // called, all on the thread that runs update(dt). Handlers never race
+    // with update(dt), and a replay that feeds the same events before the
+    // same steps gets the same result.
+    static final int INPUT_QUEUE_SIZE = 1024;
+    final InputQueue mInputQueue = new InputQueue(INPUT_QUEUE_SIZE);
+
+    // Key state by key code, one bit per key
+    static final int KEY_CODES = 1 << 16;
+    final long[] mKeysDown = new long[KEY_CODES / 64];
+    final long[] mKeysPressed = new long[KEY_CODES / 64];
+    final long[] mKeysReleased = new long[KEY_CODES / 64];
+
+    // Where the mouse was at the last event this step
+    int mMouseX, mMouseY;
+
+    // True when update(dt) runs on its own thread (THREADED mode)
+    boolean mThreaded = false;
+
+    // Forwards the panel's mouse events to postInput
+    final MouseAdapter mInputForwarder = new MouseAdapter() {
+        @Override
+        public void mouseClicked(MouseEvent event) { postInput(event); }
+        @Override
+        public void mousePressed(MouseEvent event) { postInput(event); }
+        @Override
+        public void mouseReleased(MouseEvent event) { postInput(event); }
+        @Override
+        public void mouseEntered(MouseEvent event) { postInput(event); }
+        @Override
+        public void mouseExited(MouseEvent event) { postInput(event); }
+        @Override
+        public void mouseMoved(MouseEvent event) { postInput(event); }
+        @Override
+        public void mouseDragged(MouseEvent event) { postInput(event); }
+    };
+
+    // Queues an event for the start of the next update step. Events that
+    // do not fit are counted by the queue and shown in the F3 overlay.
+    void postInput(InputEvent event) {
+        mInputQueue.offer(event);
+    }
+
+    // Starts an update step: clears last step's presses and releases, then
+    // applies and dispatches every queued event, oldest first
+    void beginTick() {
+        Arrays.fill(mKeysPressed, 0);
+        Arrays.fill(mKeysReleased, 0);
+
+        InputEvent event;
+        while ((event = mInputQueue.poll()) != null) {
+            dispatchInput(event);
+        }
+    }
+
+    // Updates the key state for event and calls the game's handler
+    void dispatchInput(InputEvent event) {
+        switch (event.getID()) {
+        case KeyEvent.KEY_PRESSED:
+            setKey((KeyEvent)event, true);
+            keyPressed((KeyEvent)event);
+            break;
+        case KeyEvent.KEY_RELEASED:
+            setKey((KeyEvent)event, false);
+            keyReleased((KeyEvent)event);
+            break;
+        case KeyEvent.KEY_TYPED:
+            keyTyped((KeyEvent)event);
+            break;
+        default:
+            MouseEvent mouse = (MouseEvent)event;
+            mMouseX = mouse.getX();
+            mMouseY = mouse.getY();
+            switch (event.getID()) {
+            case MouseEvent.MOUSE_CLICKED: mouseClicked(mouse); break;
+            case MouseEvent.MOUSE_PRESSED: mousePressed(mouse); break;
+            case MouseEvent.MOUSE_RELEASED: mouseReleased(mouse); break;
+            case MouseEvent.MOUSE_ENTERED: mouseEntered(mouse); break;
+            case MouseEvent.MOUSE_EXITED: mouseExited(mouse); break;
+            case MouseEvent.MOUSE_MOVED: mouseMoved(mouse); break;
+            case MouseEvent.MOUSE_DRAGGED: mouseDragged(mouse); break;
+            default: break;
+            }
+            break;
+        }
+    }
+
+    // Records a key going down or up. Held keys repeat KEY_PRESSED, which
+    // only counts as a press the first time.
+    void setKey(KeyEvent event, boolean down) {
+        int code = event.getKeyCode();
+        if (code <= 0 || code >= KEY_CODES) {
+            return;
+        }
+        int word = code >>> 6;
+        long bit = 1L << code;
+        if (down) {
+            if ((mKeysDown[word] & bit) == 0) {
+                mKeysPressed[word] |= bit;
+            }
+            mKeysDown[word] |= bit;
+        } else {
+            if ((mKeysDown[word] & bit) != 0) {
+                mKeysReleased[word] |= bit;
+            }
+            mKeysDown[word] &= ~bit;
+        }
+    }
+
+    // Returns true while the key (a KeyEvent.VK_ code) is held down
+    public boolean isKeyDown(int keyCode) {
+        return keyCode > 0 && keyCode < KEY_CODES && (mKeysDown[keyCode >>> 6] & (1L << keyCode)) != 0;
+    }
+
+    // Returns true if the key went down since the last update step
+    public boolean wasKeyPressed(int keyCode) {
+        return keyCode > 0 && keyCode < KEY_CODES && (mKeysPressed[keyCode >>> 6] & (1L << keyCode)) != 0;
+    }
+
+    // Returns true if the key came up since the last update step
+    public boolean wasKeyReleased(int keyCode) {
+        return keyCode > 0 && keyCode < KEY_CODES && (mKeysReleased[keyCode >>> 6] & (1L << keyCode)) != 0;
+    }
+
+    // Returns the mouse position as of the last mouse event before this step
+    public int mouseX() {
+        return mMouseX;
+    }
+
+    public int mouseY() {
+        return mMouseY;
+    }
+
     //-------------------------------------------------------
     // Mouse functions
     //-------------------------------------------------------
@@ -340,11 +1016,12 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
         if(blue > 255) {blue = 255;}
 
         // Set background colour
-        mGraphics.setBackground(new Color(red,green,blue));
+        mGraphics.setBackground(cachedColor(red, green, blue));
     }
 
     // Clears the background, makes the whole window whatever the background color is
     public void clearBackground(int width, int height) {
+        flushSprites();
         // Clear background
         mGraphics.clearRect(0, 0, width, height);
     }
@@ -368,129 +1045,324 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
         if(blue > 255) {blue = 255;}
 
         // Set colour
-        mGraphics.setColor(new Color(red,green,blue));
+        mGraphics.setColor(cachedColor(red, green, blue));
+    }
+
+    //-------------------------------------------------------
+    // Shape, stroke and colour caches
+    //-------------------------------------------------------
+    // The drawing functions below are called thousands of times a frame
+    // for particles and debug drawing, so they reuse one shape of each kind
+    // and look strokes and colours up instead of allocating them.
+
+    // Reused shapes
+    final Line2D.Double mLine = new Line2D.Double();
+    final Rectangle2D.Double mRectangle = new Rectangle2D.Double();
+    final Ellipse2D.Double mEllipse = new Ellipse2D.Double();
+
+    // Strokes for widths in steps of half a pixel up to MAX_CACHED_STROKE
+    static final float MAX_CACHED_STROKE = 32;
+    static final BasicStroke DEFAULT_STROKE = new BasicStroke(1.0f);
+    static final BasicStroke[] sStrokes = new BasicStroke[(int)(MAX_CACHED_STROKE * 2) + 1];
+
+    // Returns a stroke of width l
+    static BasicStroke stroke(double l) {
+        float width = (float)l;
+        float halves = width * 2;
+        if (halves >= 0 && halves <= MAX_CACHED_STROKE * 2 && halves == (int)halves) {
+            BasicStroke stroke = sStrokes[(int)halves];
+            if (stroke == null) {
+                stroke = new BasicStroke(width);
+                sStrokes[(int)halves] = stroke;
+            }
+            return stroke;
+        }
+        return new BasicStroke(width);
+    }
+
+    // Direct-mapped cache of opaque colours, a miss replaces the slot
+    static final Color[] sColors = new Color[256];
+
+    // Returns the colour (red,green,blue), which must already be clamped
+    static Color cachedColor(int red, int green, int blue) {
+        int rgb = 0xFF000000 | (red << 16) | (green << 8) | blue;
+        int slot = (rgb * 0x9E3779B1) >>> 24;
+        Color color = sColors[slot];
+        if (color == null || color.getRGB() != rgb) {
+            color = new Color(rgb);
+            sColors[slot] = color;
+        }
+        return color;
     }
 
     // Draws a line from (x1,y2) to (x2,y2)
     void drawLine(double x1, double y1, double x2, double y2) {
+        flushSprites();
         // Draw a Line
-        mGraphics.draw(new Line2D.Double(x1, y1, x2, y2));
+        mLine.setLine(x1, y1, x2, y2);
+        mGraphics.draw(mLine);
+    }
+
+    // Draws a line from (x1,y2) to (x2,y2) on whole pixels
+    void drawLine(int x1, int y1, int x2, int y2) {
+        flushSprites();
+        mGraphics.drawLine(x1, y1, x2, y2);
     }
 
     // Draws a line from (x1,y2) to (x2,y2) with width l
     void drawLine(double x1, double y1, double x2, double y2, double l) {
+        flushSprites();
         // Set the stroke
-        mGraphics.setStroke(new BasicStroke((float)l));
+        mGraphics.setStroke(stroke(l));
 
         // Draw a Line
-        mGraphics.draw(new Line2D.Double(x1, y1, x2, y2));
+        mLine.setLine(x1, y1, x2, y2);
+        mGraphics.draw(mLine);
 
         // Reset the stroke
-        mGraphics.setStroke(new BasicStroke(1.0f));
+        mGraphics.setStroke(DEFAULT_STROKE);
     }
 
     // This function draws a rectangle at (x,y) with width and height (w,h)
     void drawRectangle(double x, double y, double w, double h) {
+        flushSprites();
         // Draw a Rectangle
-        mGraphics.draw(new Rectangle2D.Double(x, y, w, h));
+        mRectangle.setRect(x, y, w, h);
+        mGraphics.draw(mRectangle);
+    }
+
+    // This function draws a rectangle at (x,y) with width and height (w,h) on whole pixels
+    void drawRectangle(int x, int y, int w, int h) {
+        flushSprites();
+        mGraphics.drawRect(x, y, w, h);
     }
 
     // This function draws a rectangle at (x,y) with width and height (w,h)
     // with a line of width l
     void drawRectangle(double x, double y, double w, double h, double l) {
+        flushSprites();
         // Set the stroke
-        mGraphics.setStroke(new BasicStroke((float)l));
+        mGraphics.setStroke(stroke(l));
 
         // Draw a Rectangle
-        mGraphics.draw(new Rectangle2D.Double(x, y, w, h));
+        mRectangle.setRect(x, y, w, h);
+        mGraphics.draw(mRectangle);
 
         // Reset the stroke
-        mGraphics.setStroke(new BasicStroke(1.0f));
+        mGraphics.setStroke(DEFAULT_STROKE);
     }
 
     // This function fills in a rectangle at (x,y) with width and height (w,h)
     void drawSolidRectangle(double x, double y, double w, double h) {
+        flushSprites();
         // Fill a Rectangle
-        mGraphics.fill(new Rectangle2D.Double(x, y, w, h));
+        mRectangle.setRect(x, y, w, h);
+        mGraphics.fill(mRectangle);
+    }
+
+    // This function fills in a rectangle at (x,y) with width and height (w,h) on whole pixels
+    void drawSolidRectangle(int x, int y, int w, int h) {
+        flushSprites();
+        mGraphics.fillRect(x, y, w, h);
     }
 
     // This function draws a circle at (x,y) with radius
     void drawCircle(double x, double y, double radius) {
+        flushSprites();
         // Draw a Circle
-        mGraphics.draw(new Ellipse2D.Double(x-radius, y-radius, radius*2, radius*2));
+        mEllipse.setFrame(x-radius, y-radius, radius*2, radius*2);
+        mGraphics.draw(mEllipse);
+    }
+
+    // This function draws a circle at (x,y) with radius on whole pixels
+    void drawCircle(int x, int y, int radius) {
+        flushSprites();
+        mGraphics.drawOval(x-radius, y-radius, radius*2, radius*2);
     }
 
     // This function draws a circle at (x,y) with radius
     // with a line of width l
     void drawCircle(double x, double y, double radius, double l) {
+        flushSprites();
         // Set the stroke
-        mGraphics.setStroke(new BasicStroke((float)l));
+        mGraphics.setStroke(stroke(l));
 
         // Draw a Circle
-        mGraphics.draw(new Ellipse2D.Double(x-radius, y-radius, radius*2, radius*2));
+        mEllipse.setFrame(x-radius, y-radius, radius*2, radius*2);
+        mGraphics.draw(mEllipse);
 
         // Reset the stroke
-        mGraphics.setStroke(new BasicStroke(1.0f));
+        mGraphics.setStroke(DEFAULT_STROKE);
     }
 
     // This function draws a circle at (x,y) with radius
     void drawSolidCircle(double x, double y, double radius) {
+        flushSprites();
         // Fill a Circle
-        mGraphics.fill(new Ellipse2D.Double(x-radius, y-radius, radius*2, radius*2));
+        mEllipse.setFrame(x-radius, y-radius, radius*2, radius*2);
+        mGraphics.fill(mEllipse);
+    }
+
+    // This function draws a circle at (x,y) with radius on whole pixels
+    void drawSolidCircle(int x, int y, int radius) {
+        flushSprites();
+        mGraphics.fillOval(x-radius, y-radius, radius*2, radius*2);
+    }
+
+    static final Color PROGRESS_BACKGROUND = new Color(40, 40, 40);
+    static final Color PROGRESS_FILL = new Color(34, 139, 34);
+
+    // This function draws a progress bar at (x,y) with size (w,h),
+    // filled by progress from 0 to 1
+    public void drawProgressBar(double x, double y, double w, double h, double progress) {
+        // Clamp progress
+        if(progress < 0) {progress = 0;}
+        if(progress > 1) {progress = 1;}
+
+        // Draw the bar
+        changeColor(PROGRESS_BACKGROUND);
+        drawSolidRectangle(x, y, w, h);
+        changeColor(PROGRESS_FILL);
+        drawSolidRectangle(x, y, w * progress, h);
+        changeColor(white);
+        drawRectangle(x, y, w, h, 2);
     }
 
     // This function draws text on the screen at (x,y)
     public void drawText(double x, double y, String s) {
         // Draw text on the screen
-        mGraphics.setFont(new Font("Arial", Font.PLAIN, 40));
-        mGraphics.drawString(s, (int)x, (int)y);
+        drawText(x, y, s, TextCache.getFont("Arial", Font.PLAIN, 40));
     }
 
     // This function draws bold text on the screen at (x,y)
     public void drawBoldText(double x, double y, String s) {
         // Draw text on the screen
-        mGraphics.setFont(new Font("Arial", Font.BOLD, 40));
-        mGraphics.drawString(s, (int)x, (int)y);
+        drawText(x, y, s, TextCache.getFont("Arial", Font.BOLD, 40));
     }
 
     // This function draws text on the screen at (x,y)
     // with Font (font,size)
     public void drawText(double x, double y, String s, String font, int size) {
         // Draw text on the screen
-        mGraphics.setFont(new Font(font, Font.PLAIN, size));
-        mGraphics.drawString(s, (int)x, (int)y);
+        drawText(x, y, s, TextCache.getFont(font, Font.PLAIN, size));
     }
 
     // This function draws bold text on the screen at (x,y)
     // with Font (font,size)
     public void drawBoldText(double x, double y, String s, String font, int size) {
         // Draw text on the screen
-        mGraphics.setFont(new Font(font, Font.BOLD, size));
-        mGraphics.drawString(s, (int)x, (int)y);
+        drawText(x, y, s, TextCache.getFont(font, Font.BOLD, size));
+    }
+
+    // Fonts and the glyphs of strings drawn with them are cached by
+    // TextCache, so text drawn every frame is only laid out once.
+
+    // Rendering context text is laid out for, with the hints it was made
+    // with. Graphics2D makes a new one every time it is asked, so it is only
+    // asked again when the graphics, transform or text hints change.
+    FontRenderContext mTextContext;
+    Object mTextAntialiasing, mTextHint, mFractionalMetrics;
+
+    // Returns the rendering context for drawing text with mGraphics
+    FontRenderContext textContext() {
+        Object antialiasing = mGraphics.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+        Object textHint = mGraphics.getRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING);
+        Object fractionalMetrics = mGraphics.getRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS);
+        if (mTextContext == null || antialiasing != mTextAntialiasing
+                || textHint != mTextHint || fractionalMetrics != mFractionalMetrics) {
+            mTextContext = mGraphics.getFontRenderContext();
+            mTextAntialiasing = antialiasing;
+            mTextHint = textHint;
+            mFractionalMetrics = fractionalMetrics;
+        }
+        return mTextContext;
+    }
+
+    // Returns the font with the given name, style and size
+    public static Font getFont(String name, int style, int size) {
+        return TextCache.getFont(name, style, size);
+    }
+
+    // This function draws text with its baseline starting at (x,y) in font
+    public void drawText(double x, double y, String s, Font font) {
+        flushSprites();
+        TextCache.get(font, s, textContext()).draw(mGraphics, (int)x, (int)y);
+    }
+
+    // Returns the width of s in font, in pixels
+    public double measureText(String s, Font font) {
+        return TextCache.get(font, s, textContext()).width;
+    }
+
+    // This function draws text centred on x, with its baseline at y
+    public void drawCenteredText(double x, double y, String s, Font font) {
+        flushSprites();
+        TextCache.Text text = TextCache.get(font, s, textContext());
+        text.draw(mGraphics, (int)(x - text.width / 2), (int)y);
+    }
+
+    // This function draws text centred in the box at (x,y) with size (w,h)
+    public void drawCenteredText(double x, double y, double w, double h, String s, Font font) {
+        flushSprites();
+        TextCache.Text text = TextCache.get(font, s, textContext());
+        text.draw(mGraphics, (int)(x + (w - text.width) / 2), (int)(y + (h + text.ascent - text.descent) / 2));
+    }
+
+    // This function draws text at (x,y) over a copy in the shadow colour
+    // moved down and right by offset, then in the current colour
+    public void drawShadowedText(double x, double y, String s, Font font, Color shadow, double offset) {
+        flushSprites();
+        TextCache.Text text = TextCache.get(font, s, textContext());
+        Color color = mGraphics.getColor();
+        mGraphics.setColor(shadow);
+        text.draw(mGraphics, (int)(x + offset), (int)(y + offset));
+        mGraphics.setColor(color);
+        text.draw(mGraphics, (int)x, (int)y);
     }
 
     //-------------------------------------------------------
     // Image Functions
     //-------------------------------------------------------
 
+    // Mounts an asset pack built with AssetPacker. Images, sounds and music
+    // are then loaded from the pack when it holds them.
+    public static boolean mountAssetPack(String filename) {
+        try {
+            // Map the pack
+            AssetPack.mount(filename);
+            return true;
+        } catch (IOException e) {
+            // Show Error Message
+            System.out.println("Error: could not open asset pack " + filename + ": " + e.getMessage());
+            return false;
+        }
+    }
+
     // Loads an image from file
+    // Images are shared through the ImageCache, so loading the same file
+    // again returns the same accelerated image without reading it.
+    // Returns null if the image cannot be read.
     public static Image loadImage(String filename) {
         try {
             // Load Image
-            Image image = ImageIO.read(new File(filename));
+            Image image = ImageCache.get(filename);
 
             // Return Image
             return image;
         } catch (IOException e) {
-            // Show Error Message
+            // Show Error Message, the caller decides what to do without it
             System.out.println("Error: could not load image " + filename);
-            System.exit(1);
         }
 
         // Return null
         return null;
     }
 
+    // Releases an image loaded with loadImage once it is no longer needed
+    public static void unloadImage(String filename) {
+        ImageCache.release(filename);
+    }
+
     // Loads a sub-image out of an image
     public static Image subImage(Image source, int x, int y, int w, int h) {
         // Check if image is null
@@ -514,6 +1386,7 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
 
     // Draws an image on the screen at position (x,y)
     public void drawImage(Image image, double x, double y) {
+        flushSprites();
         // Check if image is null
         if(image == null) {
             // Print Error message
@@ -527,16 +1400,237 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
 
     // Draws an image on the screen at position (x,y)
     public void drawImage(Image image, double x, double y, double w, double h) {
+        flushSprites();
         // Check if image is null
         if(image == null) {
             // Print Error message
             System.out.println("Error: cannot draw null image.\n");
             return;
         }
+
+        // Draw a pre-scaled copy of the image 1:1 where possible
+        Image scaled = getScaledImage(image, (int)w, (int)h);
+        if (scaled != null) {
+            mGraphics.drawImage(scaled, (int)x, (int)y, null);
+            return;
+        }
+
         // Draw image on screen at (x,y) with size (w,h)
         mGraphics.drawImage(image, (int)x, (int)y, (int)w, (int)h, null);
     }
 
+    //-------------------------------------------------------
+    // Sprite Batch
+    //-------------------------------------------------------
+    // drawSprite does not draw straight away. Sprites are kept until
+    // something else is drawn, the transform changes or paintComponent
+    // returns, and are then drawn sorted by layer and atlas, see
+    // SpriteBatch. So a sprite comes out in the same place, under the same
+    // transform and over or under the same things as drawImage would draw
+    // it, and a run of sprites with nothing else drawn between them is
+    // drawn in one pass.
+
+    final SpriteBatch mBatch = new SpriteBatch(256);
+
+    // Set when the transform changes, so the area sprites are culled
+    // against is worked out again
+    boolean mSpriteClipDirty = true;
+
+    // Draws the sprites batched so far. Code that draws on mGraphics itself
+    // calls this first, as the engine's drawing functions do.
+    public void flushSprites() {
+        if (mBatch.size() > 0) {
+            mBatch.flush(mGraphics, this);
+        }
+    }
+
+    // Culls sprites against the window as seen through the game's transform
+    void updateSpriteClip() {
+        mSpriteClipDirty = false;
+        AffineTransform transform = mGraphics.getTransform();
+        try {
+            // The game's transform on top of the one the frame started with
+            transform.preConcatenate(mTransforms.firstElement().createInverse());
+            Rectangle2D window = transform.createInverse()
+                    .createTransformedShape(new Rectangle2D.Double(0, 0, mWidth, mHeight)).getBounds2D();
+            mBatch.setClip(window.getMinX(), window.getMinY(), window.getMaxX(), window.getMaxY());
+        } catch (NoninvertibleTransformException e) {
+            // Everything is squashed flat, nothing drawn can be seen
+            mBatch.setClip(0, 0, 0, 0);
+        }
+    }
+
+    // Returns the batch, e.g. for its draw call counts
+    public SpriteBatch getSpriteBatch() {
+        return mBatch;
+    }
+
+    // Batches the (sw,sh) region at (sx,sy) of atlas, drawn at (x,y) with size (w,h)
+    public void drawSprite(Image atlas, int sx, int sy, int sw, int sh, double x, double y, double w, double h, int layer) {
+        if (atlas == null) {
+            System.out.println("Error: cannot draw null image.\n");
+            return;
+        }
+        if (mSpriteClipDirty) {
+            updateSpriteClip();
+        }
+        mBatch.add(atlas, sx, sy, sw, sh, x, y, w, h, layer);
+    }
+
+    // Batches a whole image drawn at (x,y) with size (w,h)
+    public void drawSprite(Image image, double x, double y, double w, double h, int layer) {
+        if (image == null) {
+            System.out.println("Error: cannot draw null image.\n");
+            return;
+        }
+        if (mSpriteClipDirty) {
+            updateSpriteClip();
+        }
+        mBatch.add(image, 0, 0, image.getWidth(null), image.getHeight(null), x, y, w, h, layer);
+    }
+
+    // Batches every particle in the system as one image on the given layer
+    public void drawParticles(ParticleSystem particles, int layer) {
+        if (mSpriteClipDirty) {
+            updateSpriteClip();
+        }
+        if (particles.render(mWidth, mHeight)) {
+            int w = particles.mMaxX - particles.mMinX + 1;
+            int h = particles.mMaxY - particles.mMinY + 1;
+            mBatch.add(particles.getImage(), particles.mMinX, particles.mMinY, w, h,
+                    particles.mMinX, particles.mMinY, w, h, layer);
+        }
+    }
+
+    //-------------------------------------------------------
+    // Scaled Image Cache
+    //-------------------------------------------------------
+    // drawImage(image, x, y, w, h) keeps a copy of each image scaled to
+    // every size it is drawn at, so drawing it is a plain blit instead of
+    // a rescale every frame.
+
+    // Largest scaled copy that will be cached, in pixels
+    static final int MAX_SCALED_PIXELS = 2048 * 2048;
+
+    // Most sizes that are cached for a single image
+    static final int MAX_SCALED_VARIANTS = 8;
+
+    // The scaled copies of one image
+    static class ScaledVariants {
+        int[] widths = new int[MAX_SCALED_VARIANTS];
+        int[] heights = new int[MAX_SCALED_VARIANTS];
+        Object[] qualities = new Object[MAX_SCALED_VARIANTS];
+        Image[] images = new Image[MAX_SCALED_VARIANTS];
+        int count;
+        int next;
+    }
+
+    // Scaled copies keyed by source image. The source images are held
+    // weakly so dropping an image also drops its scaled copies. Only the
+    // drawing thread touches the map, which in THREADED mode is not the EDT.
+    Map<Image, ScaledVariants> mScaledImages = new WeakHashMap<Image, ScaledVariants>();
+
+    // Set from any thread to have the drawing thread empty mScaledImages
+    volatile boolean mClearScaledImages = false;
+
+    // Interpolation used when creating scaled copies
+    Object mScalingQuality = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+
+    // Sets the interpolation used for scaled images, one of
+    // RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, _BILINEAR or _BICUBIC
+    public void setImageScaling(Object quality) {
+        mScalingQuality = quality;
+    }
+
+    // Throws away every cached scaled image, before the next one is drawn
+    public void clearScaledImages() {
+        mClearScaledImages = true;
+    }
+
+    // Returns a copy of image scaled to (w,h), creating it on first use.
+    // Returns null if the image should be scaled while drawing instead.
+    Image getScaledImage(Image image, int w, int h) {
+        // Only cache copies of ordinary images at sensible sizes
+        if (w <= 0 || h <= 0 || (long)w * h > MAX_SCALED_PIXELS || image instanceof VolatileImage) {
+            return null;
+        }
+
+        int iw = image.getWidth(null);
+        int ih = image.getHeight(null);
+        if (iw <= 0 || ih <= 0) {
+            return null;
+        }
+
+        // Nothing to do at the native size
+        if (iw == w && ih == h) {
+            return image;
+        }
+
+        if (mClearScaledImages) {
+            mClearScaledImages = false;
+            mScaledImages.clear();
+        }
+
+        ScaledVariants variants = mScaledImages.get(image);
+        if (variants == null) {
+            variants = new ScaledVariants();
+            mScaledImages.put(image, variants);
+        }
+
+        // Look for an existing copy
+        for (int i = 0; i < variants.count; i++) {
+            if (variants.widths[i] == w && variants.heights[i] == h && variants.qualities[i] == mScalingQuality) {
+                return variants.images[i];
+            }
+        }
+
+        // Create a new copy, replacing the oldest one when full
+        int slot = variants.next;
+        variants.next = (variants.next + 1) % MAX_SCALED_VARIANTS;
+        if (variants.count < MAX_SCALED_VARIANTS) {
+            variants.count++;
+        }
+
+        variants.widths[slot] = w;
+        variants.heights[slot] = h;
+        variants.qualities[slot] = mScalingQuality;
+        variants.images[slot] = scaleImage(image, w, h, mScalingQuality);
+
+        return variants.images[slot];
+    }
+
+    // Creates a copy of image scaled to (w,h) with the given interpolation
+    public static Image scaleImage(Image image, int w, int h, Object quality) {
+        int transparency = (image instanceof BufferedImage) ? ((BufferedImage)image).getTransparency() : Transparency.TRANSLUCENT;
+        Image current = image;
+        int cw = image.getWidth(null);
+        int ch = image.getHeight(null);
+
+        // When shrinking a lot with filtering, halve the size in steps so
+        // every source pixel contributes to the result
+        boolean stepDown = quality != RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+
+        do {
+            int nw = w;
+            int nh = h;
+            if (stepDown && cw / 2 >= w) nw = cw / 2;
+            if (stepDown && ch / 2 >= h) nh = ch / 2;
+
+            BufferedImage next = ImageCache.createCompatibleImage(nw, nh, transparency);
+            Graphics2D g2d = next.createGraphics();
+            g2d.setComposite(AlphaComposite.Src);
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, quality);
+            g2d.drawImage(current, 0, 0, nw, nh, null);
+            g2d.dispose();
+
+            current = next;
+            cw = nw;
+            ch = nh;
+        } while (cw != w || ch != h);
+
+        return current;
+    }
+
     //-------------------------------------------------------
     // Transform Functions
     //-------------------------------------------------------
@@ -552,8 +1646,12 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
 
     // Restores the last transform
     public void restoreLastTransform() {
+        flushSprites();
+
         // Set current transform to the top of the stack.
         mGraphics.setTransform(mTransforms.peek());
+        mTextContext = null;
+        mSpriteClipDirty = true;
 
         // If there is more than one transform on the stack
         if(mTransforms.size() > 1) {
@@ -564,26 +1662,41 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
 
     // This function translates the drawing context by (x,y)
     void translate(double x, double y) {
+        flushSprites();
+
         // Translate the drawing context
         mGraphics.translate(x,y);
+        mSpriteClipDirty = true;
     }
 
     // This function rotates the drawing context by a degrees
     void rotate(double a) {
+        flushSprites();
+
         // Rotate the drawing context
         mGraphics.rotate(Math.toRadians(a));
+        mTextContext = null;
+        mSpriteClipDirty = true;
     }
 
     // This function scales the drawing context by (x,y)
     void scale(double x, double y) {
+        flushSprites();
+
         // Scale the drawing context
         mGraphics.scale(x, y);
+        mTextContext = null;
+        mSpriteClipDirty = true;
     }
 
     // This function shears the drawing context by (x,y)
     void shear(double x, double y) {
+        flushSprites();
+
         // Shear the drawing context
         mGraphics.shear(x, y);
+        mTextContext = null;
+        mSpriteClipDirty = true;
     }
 
     //-------------------------------------------------------
@@ -604,6 +1717,9 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
         // Loop Clip
         Clip mLoopClip;
 
+        // Samples converted for the AudioMixer (created on first use)
+        short[] mMixData;
+
         public Clip getLoopClip() {
             // return mLoopClip
             return mLoopClip;
@@ -629,7 +1745,8 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
             return mLength;
         }
 
-        public AudioClip(AudioInputStream stream) {
+        // Reads stream into a clip, leaving read errors to the caller
+        public AudioClip(AudioInputStream stream) throws IOException {
             // Get Format
             mFormat = stream.getFormat();
 
@@ -639,21 +1756,27 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
             // Allocate Buffer Data
             mData = new byte[(int)mLength];
 
-            try {
-                // Read data
-                stream.read(mData);
-            } catch(Exception exception) {
-                // Print Error
-                System.out.println("Error reading Audio File\n");
-
-                // Exit
-                System.exit(1);
-            }
+            // Read data
+            stream.readNBytes(mData, 0, mData.length);
 
             // Set LoopClip to null
             mLoopClip = null;
         }
 
+        // Creates an AudioClip from data that has already been read
+        AudioClip(AudioFormat format, byte[] data) {
+            mFormat = format;
+            mData = data;
+            mLength = data.length;
+            mLoopClip = null;
+        }
+
+        // Reads a whole stream into an AudioClip, leaving errors to the caller
+        public static AudioClip read(AudioInputStream stream) throws IOException {
+            byte[] data = stream.readAllBytes();
+            return new AudioClip(stream.getFormat(), data);
+        }
+
         public void setLoopVolume(float volume) {
             try {
                 // Create Controls
@@ -669,8 +1792,8 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
     // Loads the AudioClip stored in the file specified by filename
     public static AudioClip loadAudio(String filename) {
         try {
-            // Open File
-            File file = new File(filename);
+            // Open File (from a mounted asset pack if it holds it)
+            InputStream file = AssetPack.open(filename);
 
             // Open Audio Input Stream
             AudioInputStream audio = AudioSystem.getAudioInputStream(file);
@@ -679,7 +1802,7 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
             AudioClip clip = new AudioClip(audio);
 
             // Fix pauses and mixer issues when clip is first played
-            playAudio(clip,-60);
+            prepareAudio(clip);
 
             // Return Audio Clip
             return clip;
@@ -692,6 +1815,18 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
         return null;
     }
 
+    // Gets an AudioClip ready so there is no delay the first time it is played
+    public static void prepareAudio(AudioClip audioClip) {
+        // Convert it for the mixer if there is one
+        AudioMixer mixer = AudioMixer.getDefault();
+        if(mixer != null && AudioMixer.prepare(audioClip) != null) {
+            return;
+        }
+
+        // Otherwise play it silently to open the audio device
+        playAudio(audioClip, -60);
+    }
+
     // Plays an AudioClip
     public static boolean playAudio(AudioClip audioClip) {
         // Check audioClip for null
@@ -703,6 +1838,12 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
             return false;
         }
 
+        // Play through the mixer if there is one
+        AudioMixer mixer = AudioMixer.getDefault();
+        if(mixer != null && mixer.play(audioClip)) {
+            return true;
+        }
+
         try {
             // Create a Clip
             Clip clip = AudioSystem.getClip();
@@ -739,6 +1880,12 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
             return false;
         }
 
+        // Play through the mixer if there is one
+        AudioMixer mixer = AudioMixer.getDefault();
+        if(mixer != null && mixer.play(audioClip, volume)) {
+            return true;
+        }
+
         try {
             // Create a Clip
             Clip clip = AudioSystem.getClip();
@@ -835,6 +1982,44 @@ public abstract class GameEngine implements KeyListener, MouseListener, MouseMot
         }
     }
 
+    // Starts streaming the music in filename on loop with a volume in decibels,
+    // crossfading from any music that is already playing
+    public static boolean playMusic(String filename, float volume, double fadeSeconds) {
+        // Music streams through the mixer
+        AudioMixer mixer = AudioMixer.getDefault();
+        if(mixer == null) {
+            System.out.println("Error: cannot play music " + filename + " without an audio mixer\n");
+            return false;
+        }
+
+        // Check the file exists before starting the stream
+        if(!AssetPack.exists(filename)) {
+            System.out.println("Error: cannot open music file " + filename + "\n");
+            return false;
+        }
+
+        mixer.getMusic().play(filename, volume, fadeSeconds);
+        return true;
+    }
+
+    // Starts streaming the music in filename on loop with a volume in decibels
+    public static boolean playMusic(String filename, float volume) {
+        return playMusic(filename, volume, 1.0);
+    }
+
+    // Fades out the music over fadeSeconds
+    public static void stopMusic(double fadeSeconds) {
+        AudioMixer mixer = AudioMixer.getDefault();
+        if(mixer != null) {
+            mixer.getMusic().stop(fadeSeconds);
+        }
+    }
+
+    // Stops the music
+    public static void stopMusic() {
+        stopMusic(0);
+    }
+
     //-------------------------------------------------------
     // Maths Functions
     //-------------------------------------------------------
@@ -0,0 +1,593 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// Authoritative server for multiplayer matches.
+// Clients only send which buttons they are holding, each tagged with the
+// tick it is for. The server runs the ArenaSimulation at TICK_RATE, using a
+// client's buttons for a tick if they arrived in time and repeating its
+// last ones if not, and sends each client a snapshot of the match every
+// tick over UDP, as the changes from the last snapshot that client
+// acknowledged, so a lost packet is simply covered by the next one.
+// Each client has a bandwidth budget, and snapshots that would go over it
+// are skipped; the next one still applies because it is relative to what
+// the client has.
+//
+// Snapshots also carry the buttons applied since the last snapshot the
+// client acknowledged, and
+// every STATE_INTERVAL ticks, or when someone joins or leaves, a client is
+// sent the whole arena state. With those a client runs the arena itself
+// through a RollbackSession, ahead of the server, so its own kiwi answers
+// the keys at once (see GameClient).
+//
+// Packets (first byte is the type):
+//   CONNECT     client -> server
+//   WELCOME     server -> client   player byte, tick int
+//   FULL        server -> client   the match has no free player slot
+//   INPUT       client -> server   sequence int, acked tick int, tick int of
+//                                  the newest buttons, count byte, then count
+//                                  buttons bytes for the ticks up to it
+//   SNAPSHOT    server -> client   tick int, baseline tick int (-1 for a full
+//                                  snapshot), last input sequence int,
+//                                  player byte, lead byte (how many ticks
+//                                  ahead the client's newest buttons were),
+//                                  players byte, count byte, then for each of
+//                                  the last count ticks (those after the last
+//                                  acknowledged snapshot) a buttons byte per
+//                                  player in players, then a NetSnapshot delta
+//   STATE       server -> client   tick int, width short, height short,
+//                                  buttons byte per player for the tick, then
+//                                  the arena state after the tick
+//   DISCONNECT  client -> server
+public class GameServer implements Runnable {
+    //-------------------------------------------------------
+    // Protocol
+    //-------------------------------------------------------
+    static final byte PACKET_CONNECT = 1;
+    static final byte PACKET_WELCOME = 2;
+    static final byte PACKET_FULL = 3;
+    static final byte PACKET_INPUT = 4;
+    static final byte PACKET_SNAPSHOT = 5;
+    static final byte PACKET_DISCONNECT = 6;
+    static final byte PACKET_STATE = 7;
+
+    // Largest packet, small enough to never be fragmented
+    static final int MAX_PACKET = 1200;
+
+    // IP and UDP headers, counted against the bandwidth budget
+    static final int UDP_OVERHEAD = 28;
+
+    // Snapshots kept for clients to acknowledge, and ticks of buttons kept
+    static final int HISTORY = 64;
+
+    // Most ticks of applied buttons in a snapshot. Each one carries the
+    // ticks since the client's last acknowledged snapshot, so a lost one is
+    // covered by the next; a client further behind than this gets the
+    // whole state soon enough anyway.
+    static final int MAX_RELAYED_TICKS = 32;
+
+    // Ticks between whole arena states sent to each client
+    static final int STATE_INTERVAL = 30;
+
+    public static final int DEFAULT_PORT = 27960;
+    public static final int TICK_RATE = 60;
+
+    // Bytes per second each client may be sent
+    public static final int DEFAULT_BANDWIDTH = 16 * 1024;
+
+    // Clients that send nothing for this long are dropped
+    static final long TIMEOUT_NANOS = 5000000000L;
+
+    // A connected player
+    static class Client {
+        final SocketAddress address;
+        final int player;
+
+        // Buttons applied this tick (ArenaSimulation.BUTTON_ bits)
+        int buttons = 0;
+        int lastInput = -1;
+        int lastAck = -1;
+        long lastHeard;
+
+        // Buttons sent for coming ticks, by tick % HISTORY, the newest tick
+        // sent, and how far ahead of the current tick that was
+        final int[] inputs = new int[HISTORY];
+        final int[] inputTick = new int[HISTORY];
+        int newestTick = -1;
+        int lead = 0;
+
+        // Whether the client needs the whole arena state, and the tick it was last sent
+        boolean needsState = true;
+        int lastState = -1;
+
+        // Bytes that may be sent now
+        double allowance;
+
+        // Totals for reporting
+        long bytesSent = 0;
+        int snapshotsSent = 0;
+        int snapshotsSkipped = 0;
+
+        Client(SocketAddress address, int player) {
+            this.address = address;
+            this.player = player;
+            Arrays.fill(inputTick, -1);
+        }
+    }
+
+    final DatagramChannel mChannel;
+    final BufferPool mPool = new BufferPool(MAX_PACKET, 4);
+    final Map<SocketAddress, Client> mClients = new HashMap<SocketAddress, Client>();
+    final Client[] mPlayers = new Client[NetSnapshot.MAX_PLAYERS];
+    final NetSnapshot[] mHistory = new NetSnapshot[HISTORY];
+    final ArenaSimulation mArena;
+    final int[] mButtons = new int[NetSnapshot.MAX_PLAYERS];
+
+    // Buttons applied for each player, by tick % HISTORY
+    final int[][] mApplied = new int[HISTORY][NetSnapshot.MAX_PLAYERS];
+
+    int mTick = 0;
+    int mBandwidth = DEFAULT_BANDWIDTH;
+    volatile boolean mRunning = false;
+
+    // Opens a server on the given address for an arena of the given size
+    public GameServer(SocketAddress address, int width, int height) throws IOException {
+        mArena = new ArenaSimulation(width, height);
+        for (int i = 0; i < HISTORY; i++) {
+            mHistory[i] = new NetSnapshot();
+        }
+
+        mChannel = DatagramChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.bind(address);
+    }
+
+    // Returns the address the server is listening on
+    public SocketAddress getAddress() throws IOException {
+        return mChannel.getLocalAddress();
+    }
+
+    // Sets how many bytes per second each client may be sent
+    public void setBandwidth(int bytesPerSecond) {
+        mBandwidth = bytesPerSecond;
+    }
+
+    // Returns the number of connected players
+    public int getPlayerCount() {
+        return mClients.size();
+    }
+
+    //-------------------------------------------------------
+    // Running
+    //-------------------------------------------------------
+
+    // Runs the server on its own thread until close() is called
+    public void start() {
+        mRunning = true;
+        Thread thread = new Thread(this, "GameServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long step = 1000000000L / TICK_RATE;
+        long next = System.nanoTime();
+        while (mRunning) {
+            try {
+                tick();
+            } catch (IOException e) {
+                System.out.println("Error: game server stopped: " + e.getMessage());
+                return;
+            }
+            next += step;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (wait < -step * 5) {
+                // Fell too far behind, do not try to catch up
+                next = System.nanoTime();
+            }
+        }
+    }
+
+    // Stops the server and closes its socket
+    public void close() {
+        mRunning = false;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    // Runs one tick: reads every waiting packet, moves the kiwis and sends
+    // each client a snapshot
+    public void tick() throws IOException {
+        long now = System.nanoTime();
+        receive(now);
+        dropSilentClients(now);
+        simulate();
+        takeSnapshot();
+        sendSnapshots();
+        mTick++;
+    }
+
+    //-------------------------------------------------------
+    // Receiving
+    //-------------------------------------------------------
+
+    void receive(long now) throws IOException {
+        ByteBuffer in = mPool.acquire();
+        try {
+            SocketAddress from;
+            while ((from = mChannel.receive(in)) != null) {
+                in.flip();
+                try {
+                    handle(from, in, now);
+                } catch (BufferUnderflowException e) {
+                    // Ignore packets that are too short
+                }
+                in.clear();
+            }
+        } finally {
+            mPool.release(in);
+        }
+    }
+
+    void handle(SocketAddress from, ByteBuffer in, long now) throws IOException {
+        byte type = in.get();
+        Client client = mClients.get(from);
+
+        if (type == PACKET_CONNECT) {
+            if (client == null) {
+                client = connect(from);
+                if (client == null) {
+                    sendByte(from, PACKET_FULL);
+                    return;
+                }
+            }
+            // Sent again if the first welcome or state was lost
+            client.lastHeard = now;
+            client.needsState = true;
+            ByteBuffer out = mPool.acquire();
+            out.put(PACKET_WELCOME).put((byte)client.player).putInt(mTick).flip();
+            mChannel.send(out, from);
+            mPool.release(out);
+        } else if (type == PACKET_INPUT && client != null) {
+            int sequence = in.getInt();
+            int ack = in.getInt();
+            int tick = in.getInt();
+            int count = in.get() & 0xFF;
+            client.lastHeard = now;
+            if (client.lastInput < 0 || sequence - client.lastInput > 0) {
+                client.lastInput = sequence;
+            }
+            if (ack <= mTick && ack - client.lastAck > 0) {
+                client.lastAck = ack;
+            }
+
+            // Keep the buttons for ticks not run yet; the rest came too late
+            for (int k = 0; k < count; k++) {
+                int buttons = in.get() & 0xFF;
+                int t = tick - count + 1 + k;
+                if (t >= mTick && t < mTick + HISTORY) {
+                    client.inputs[t % HISTORY] = buttons;
+                    client.inputTick[t % HISTORY] = t;
+                }
+            }
+            if (client.newestTick < 0 || tick - client.newestTick > 0) {
+                client.newestTick = tick;
+            }
+        } else if (type == PACKET_DISCONNECT && client != null) {
+            disconnect(client);
+        }
+    }
+
+    // Adds a player for a new address, or returns null if the match is full
+    Client connect(SocketAddress from) {
+        for (int player = 0; player < mPlayers.length; player++) {
+            if (mPlayers[player] != null) {
+                continue;
+            }
+
+            mArena.addPlayer(player);
+            Client client = new Client(from, player);
+            client.allowance = MAX_PACKET;
+            mPlayers[player] = client;
+            mClients.put(from, client);
+            resendState();
+            System.out.println("Player " + player + " joined from " + from);
+            return client;
+        }
+        return null;
+    }
+
+    void disconnect(Client client) {
+        mClients.remove(client.address);
+        mPlayers[client.player] = null;
+        mArena.removePlayer(client.player);
+        resendState();
+        System.out.println("Player " + client.player + " left");
+    }
+
+    void dropSilentClients(long now) {
+        Iterator<Client> clients = mClients.values().iterator();
+        while (clients.hasNext()) {
+            Client client = clients.next();
+            if (now - client.lastHeard > TIMEOUT_NANOS) {
+                clients.remove();
+                mPlayers[client.player] = null;
+                mArena.removePlayer(client.player);
+                resendState();
+                System.out.println("Player " + client.player + " timed out");
+            }
+        }
+    }
+
+    //-------------------------------------------------------
+    // Simulation
+    //-------------------------------------------------------
+
+    // Players joining or leaving change the arena outside the simulation,
+    // so every client needs the new state
+    void resendState() {
+        for (Client client : mClients.values()) {
+            client.needsState = true;
+        }
+    }
+
+    void simulate() {
+        int slot = mTick % HISTORY;
+        for (int player = 0; player < mPlayers.length; player++) {
+            Client client = mPlayers[player];
+            if (client != null) {
+                // Buttons that did not arrive in time are taken to be held still
+                if (client.inputTick[slot] == mTick) {
+                    client.buttons = client.inputs[slot];
+                }
+                client.lead = (client.newestTick >= 0) ? client.newestTick - mTick : 0;
+            }
+            mButtons[player] = (client != null) ? client.buttons : 0;
+            mApplied[slot][player] = mButtons[player];
+        }
+        mArena.step(mButtons);
+    }
+
+    //-------------------------------------------------------
+    // Sending
+    //-------------------------------------------------------
+
+    void takeSnapshot() {
+        NetSnapshot snapshot = mHistory[mTick % HISTORY];
+        snapshot.tick = mTick;
+        mArena.writeSnapshot(snapshot);
+    }
+
+    // Returns the snapshot the client last acknowledged, or null if it is too old
+    NetSnapshot baseline(Client client) {
+        if (client.lastAck < 0 || mTick - client.lastAck >= HISTORY) {
+            return null;
+        }
+        NetSnapshot base = mHistory[client.lastAck % HISTORY];
+        return (base.tick == client.lastAck) ? base : null;
+    }
+
+    void sendSnapshots() throws IOException {
+        NetSnapshot snapshot = mHistory[mTick % HISTORY];
+        double perTick = mBandwidth / (double)TICK_RATE;
+        double burst = Math.max(MAX_PACKET, mBandwidth / 4.0);
+
+        ByteBuffer out = mPool.acquire();
+        try {
+            for (Client client : mPlayers) {
+                if (client == null) {
+                    continue;
+                }
+                client.allowance = Math.min(burst, client.allowance + perTick);
+
+                NetSnapshot base = baseline(client);
+                out.clear();
+                out.put(PACKET_SNAPSHOT)
+                        .putInt(snapshot.tick)
+                        .putInt(base != null ? base.tick : -1)
+                        .putInt(client.lastInput)
+                        .put((byte)client.player)
+                        .put((byte)Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, client.lead)));
+                writeApplied(out, snapshot.present, client.lastAck);
+                snapshot.writeDelta(out, base);
+                out.flip();
+
+                // Over budget: skip this one, the next snapshot covers it
+                int size = out.remaining() + UDP_OVERHEAD;
+                if (size > client.allowance) {
+                    client.snapshotsSkipped++;
+                    continue;
+                }
+                client.allowance -= size;
+                client.bytesSent += size;
+                client.snapshotsSent++;
+                mChannel.send(out, client.address);
+
+                if (client.needsState || mTick - client.lastState >= STATE_INTERVAL) {
+                    sendState(client, out);
+                }
+            }
+        } finally {
+            mPool.release(out);
+        }
+    }
+
+    // Writes the buttons applied for the players in present over the ticks
+    // after acked, the last tick the client is known to have. Players not in
+    // present held nothing.
+    void writeApplied(ByteBuffer out, int present, int acked) {
+        int count = Math.min(MAX_RELAYED_TICKS, mTick - Math.max(acked, -1));
+        out.put((byte)present).put((byte)count);
+        for (int t = mTick - count + 1; t <= mTick; t++) {
+            int[] applied = mApplied[t % HISTORY];
+            for (int player = 0; player < applied.length; player++) {
+                if ((present & (1 << player)) != 0) {
+                    out.put((byte)applied[player]);
+                }
+            }
+        }
+    }
+
+    // Sends the whole arena state, unless it would go over the client's budget
+    void sendState(Client client, ByteBuffer out) throws IOException {
+        out.clear();
+        out.put(PACKET_STATE)
+                .putInt(mTick)
+                .putShort((short)mArena.getWidth())
+                .putShort((short)mArena.getHeight());
+        for (int player = 0; player < mButtons.length; player++) {
+            out.put((byte)mButtons[player]);
+        }
+        mArena.save(out);
+        out.flip();
+
+        int size = out.remaining() + UDP_OVERHEAD;
+        if (size > client.allowance) {
+            return;
+        }
+        client.allowance -= size;
+        client.bytesSent += size;
+        client.needsState = false;
+        client.lastState = mTick;
+        mChannel.send(out, client.address);
+    }
+
+    void sendByte(SocketAddress to, byte type) throws IOException {
+        ByteBuffer out = mPool.acquire();
+        out.put(type).flip();
+        mChannel.send(out, to);
+        mPool.release(out);
+    }
+
+    //-------------------------------------------------------
+    // Loopback self check
+    //-------------------------------------------------------
+
+    // Plays a match over loopback with a full set of clients pressing random
+    // buttons, some of them losing packets, and checks every snapshot they
+    // decode against the one the server took, and every state their
+    // predictions have settled on against the server's.
+    // Usage: java GameServer [seconds] [bytes per second per client]
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+        int bandwidth = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_BANDWIDTH;
+
+        GameServer server = new GameServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 800, 600);
+        server.setBandwidth(bandwidth);
+
+        GameClient[] clients = new GameClient[NetSnapshot.MAX_PLAYERS];
+        int[] lastChecked = new int[clients.length];
+        int[] buttons = new int[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new GameClient(server.getAddress());
+            // Every third client loses none, 5% or 10% of its packets
+            clients[i].mSimulatedLoss = (i % 3) * 0.05;
+            lastChecked[i] = -1;
+        }
+
+        // Checksum of the server's state after each tick, by tick % HISTORY
+        long[] serverStates = new long[HISTORY];
+        int[] serverStateTicks = new int[HISTORY];
+        Arrays.fill(serverStateTicks, -1);
+        ByteBuffer state = ByteBuffer.allocate(ArenaSimulation.MAX_STATE_BYTES);
+        CRC32 crc = new CRC32();
+        int[] lastPredicted = new int[clients.length];
+        Arrays.fill(lastPredicted, Integer.MIN_VALUE);
+        long predicted = 0;
+        long predictionMismatches = 0;
+
+        Random random = new Random(1);
+        long checked = 0;
+        long mismatches = 0;
+        long step = 1000000000L / TICK_RATE;
+        long next = System.nanoTime();
+        for (int tick = 0; tick < seconds * TICK_RATE; tick++) {
+            for (int i = 0; i < clients.length; i++) {
+                if (random.nextInt(30) == 0) {
+                    buttons[i] = random.nextInt(8);
+                }
+                clients[i].update(buttons[i]);
+
+                // States before the frame after the last one every input is
+                // known for can no longer change
+                RollbackSession session = clients[i].getSession();
+                if (session != null) {
+                    int frame = Math.min(session.getConfirmedFrame() + 1, session.getFrame() - 1);
+                    int settledTick = clients[i].mFirstTick + frame - 1;
+                    if (frame > 0 && settledTick > lastPredicted[i] && serverStateTicks[settledTick % HISTORY] == settledTick) {
+                        lastPredicted[i] = settledTick;
+                        predicted++;
+                        if (session.getChecksum(frame) != serverStates[settledTick % HISTORY]) {
+                            predictionMismatches++;
+                        }
+                    }
+                }
+            }
+            server.tick();
+            state.clear();
+            server.mArena.save(state);
+            state.flip();
+            crc.reset();
+            crc.update(state);
+            serverStates[(server.mTick - 1) % HISTORY] = crc.getValue();
+            serverStateTicks[(server.mTick - 1) % HISTORY] = server.mTick - 1;
+
+            next += step;
+            LockSupport.parkNanos(Math.max(0, next - System.nanoTime()));
+
+            for (int i = 0; i < clients.length; i++) {
+                clients[i].poll();
+                NetSnapshot snapshot = clients[i].getSnapshot();
+                if (snapshot == null || snapshot.tick == lastChecked[i]) {
+                    continue;
+                }
+                lastChecked[i] = snapshot.tick;
+                NetSnapshot sent = server.mHistory[snapshot.tick % HISTORY];
+                if (sent.tick == snapshot.tick) {
+                    checked++;
+                    if (!snapshot.sameState(sent)) {
+                        mismatches++;
+                    }
+                }
+            }
+        }
+
+        System.out.println(String.format("%d ticks, %d players, budget %d bytes/s per client",
+                seconds * TICK_RATE, server.getPlayerCount(), bandwidth));
+        System.out.println(String.format("%-7s %6s %9s %9s %9s %10s %9s", "player", "loss", "received", "skipped", "bytes/pkt", "kbit/s", "last ack"));
+        for (int i = 0; i < clients.length; i++) {
+            GameClient client = clients[i];
+            Client remote = (client.getPlayer() >= 0) ? server.mPlayers[client.getPlayer()] : null;
+            System.out.println(String.format("%-7d %5.0f%% %9d %9d %9.1f %10.1f %9d", client.getPlayer(), client.mSimulatedLoss * 100,
+                    client.getSnapshotsReceived(), (remote != null) ? remote.snapshotsSkipped : 0,
+                    client.getBytesReceived() / (double)Math.max(1, client.getSnapshotsReceived()),
+                    client.getBytesReceived() * 8 / 1000.0 / seconds, (remote != null) ? remote.lastAck : -1));
+            client.close();
+        }
+        server.close();
+
+        System.out.println(String.format("%d snapshots checked, %d mismatched, %d buffers made by the server pool",
+                checked, mismatches, server.mPool.getCreated()));
+        System.out.println(String.format("%d settled predictions checked, %d mismatched", predicted, predictionMismatches));
+        if (mismatches > 0 || checked == 0 || predictionMismatches > 0 || predicted == 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+import java.awt.*;
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.imageio.ImageIO;
+
+// Runs a game without a display for benchmarking and CI performance runs.
+// The game is first stepped until it has loaded, so frame 0 is always the
+// first frame of play and scripted input lands at the same point every run.
+// Then it draws into an offscreen image and is stepped as fast as
+// possible, either with a fixed dt or with the real time between frames,
+// while scripted key presses are fed in. At the end the loading time, the
+// frame rate and the frame, update and paint time distributions are printed.
+//
+// Usage: java -Djava.awt.headless=true HeadlessRunner [options]
+//   --frames N          number of frames to run (default 3600)
+//   --dt SECONDS        fixed time step, or 0 to use real time (default 1/60)
+//   --size WxH          size of the offscreen image (default 800x600)
+//   --mode MODE         story or multiplayer (default story)
+//   --script FILE       input script, see readScript
+//   --screenshot FILE   save the last frame as a PNG
+//   --load-timeout S    fail if loading takes longer than this (default 30)
+public class HeadlessRunner {
+    // A scripted key event
+    static class ScriptEvent {
+        final int frame;
+        final boolean pressed;
+        final int keyCode;
+
+        ScriptEvent(int frame, boolean pressed, int keyCode) {
+            this.frame = frame;
+            this.pressed = pressed;
+            this.keyCode = keyCode;
+        }
+    }
+
+    final GameEngine mGame;
+    final BufferedImage mTarget;
+
+    // Source component for generated key events
+    final Component mSource = new Panel();
+
+    // Per-frame timings in nanoseconds
+    long[] mFrameTimes;
+    long[] mUpdateTimes;
+    long[] mPaintTimes;
+    long mTotalNanos;
+
+    // Time and update steps spent loading before frame 0
+    long mLoadNanos;
+    int mLoadSteps;
+
+    public HeadlessRunner(GameEngine game) {
+        mGame = game;
+        mTarget = ImageCache.createCompatibleImage(game.width(), game.height(), Transparency.OPAQUE);
+    }
+
+    // Runs the game for the given number of frames once it has loaded. A dt
+    // of 0 uses the real time between frames, otherwise every update uses
+    // dt. Returns false, without running any frames, if loading takes longer
+    // than loadTimeout seconds.
+    public boolean run(int frames, double dt, List<ScriptEvent> script, double loadTimeout) {
+        mFrameTimes = new long[frames];
+        mUpdateTimes = new long[frames];
+        mPaintTimes = new long[frames];
+
+        mGame.init();
+        mGame.initialised = true;
+
+        // Step the game until it has loaded, without drawing or input
+        long loadStart = System.nanoTime();
+        mLoadSteps = 0;
+        while (true) {
+            mGame.beginTick();
+            mGame.update(dt);
+            mGame.publishSnapshot();
+            mLoadSteps++;
+            mLoadNanos = System.nanoTime() - loadStart;
+            if (mGame.isLoaded()) {
+                break;
+            }
+            if (mLoadNanos > loadTimeout * 1e9) {
+                return false;
+            }
+            LockSupport.parkNanos(1000000L);
+        }
+
+        int nextEvent = 0;
+        long start = System.nanoTime();
+        long previous = start;
+
+        for (int frame = 0; frame < frames; frame++) {
+            // Feed in this frame's input
+            while (nextEvent < script.size() && script.get(nextEvent).frame <= frame) {
+                sendKey(script.get(nextEvent++));
+            }
+
+            // Update
+            long frameStart = System.nanoTime();
+            double step = (dt > 0) ? dt : (frameStart - previous) / 1e9;
+            previous = frameStart;
+            mGame.beginTick();
+            mGame.update(step);
+            mGame.publishSnapshot();
+            long updated = System.nanoTime();
+
+            // Paint
+            Graphics2D graphics = mTarget.createGraphics();
+            try {
+                mGame.paintGame(graphics);
+            } finally {
+                graphics.dispose();
+            }
+            long painted = System.nanoTime();
+
+            mUpdateTimes[frame] = updated - frameStart;
+            mPaintTimes[frame] = painted - updated;
+            mFrameTimes[frame] = painted - frameStart;
+            mGame.getFrameStats().endFrame(0);
+        }
+
+        mTotalNanos = System.nanoTime() - start;
+        return true;
+    }
+
+    // Queues a scripted key event for the game's next update step
+    void sendKey(ScriptEvent event) {
+        int id = event.pressed ? KeyEvent.KEY_PRESSED : KeyEvent.KEY_RELEASED;
+        mGame.postInput(new KeyEvent(mSource, id, System.currentTimeMillis(), 0, event.keyCode, KeyEvent.CHAR_UNDEFINED));
+    }
+
+    // Returns the last frame drawn
+    public BufferedImage getImage() {
+        return mTarget;
+    }
+
+    // Prints frames per second and the time distributions
+    public void printReport() {
+        int frames = mFrameTimes.length;
+        System.out.println(String.format("loaded in %.2f s (%d update steps)", mLoadNanos / 1e9, mLoadSteps));
+        System.out.println(String.format("%d frames in %.2f s, %.1f frames/sec", frames, mTotalNanos / 1e9, frames / (mTotalNanos / 1e9)));
+        System.out.println(String.format("%-8s %8s %8s %8s %8s %8s (ms)", "", "mean", "p50", "p95", "p99", "max"));
+        printDistribution("frame", mFrameTimes);
+        printDistribution("update", mUpdateTimes);
+        printDistribution("paint", mPaintTimes);
+    }
+
+    static void printDistribution(String name, long[] times) {
+        if (times.length == 0) {
+            return;
+        }
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        double total = 0;
+        for (long time : sorted) {
+            total += time;
+        }
+        System.out.println(String.format("%-8s %8.3f %8.3f %8.3f %8.3f %8.3f", name, total / sorted.length / 1e6,
+                percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99), sorted[sorted.length - 1] / 1e6));
+    }
+
+    // Returns the p-th percentile of sorted, in milliseconds
+    static double percentile(long[] sorted, double p) {
+        int index = (int)Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    // Reads an input script. Each line is "<frame> press|release <key>",
+    // where key is a KeyEvent name without the VK_ prefix, e.g.
+    //   60 press RIGHT
+    //   180 release RIGHT
+    // Blank lines and lines starting with # are ignored.
+    public static List<ScriptEvent> readScript(String filename) throws IOException {
+        List<ScriptEvent> script = new ArrayList<ScriptEvent>();
+        for (String line : Files.readAllLines(new File(filename).toPath())) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] parts = line.split("\\s+");
+            if (parts.length != 3 || !(parts[1].equals("press") || parts[1].equals("release"))) {
+                throw new IOException("bad script line: " + line);
+            }
+            script.add(new ScriptEvent(Integer.parseInt(parts[0]), parts[1].equals("press"), keyCode(parts[2])));
+        }
+        script.sort((a, b) -> Integer.compare(a.frame, b.frame));
+        return script;
+    }
+
+    // Looks up a key code by name, e.g. "SPACE" for KeyEvent.VK_SPACE
+    static int keyCode(String name) throws IOException {
+        try {
+            return KeyEvent.class.getField("VK_" + name.toUpperCase()).getInt(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("unknown key: " + name);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int frames = 3600;
+        double dt = 1.0 / 60;
+        int width = 800;
+        int height = 600;
+        KiwiLoreGame.GameMode mode = KiwiLoreGame.GameMode.STORY;
+        List<ScriptEvent> script = new ArrayList<ScriptEvent>();
+        String screenshot = null;
+        double loadTimeout = 30;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "--frames":
+                frames = Integer.parseInt(value);
+                break;
+            case "--dt":
+                dt = Double.parseDouble(value);
+                break;
+            case "--size":
+                String[] size = value.split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+                break;
+            case "--mode":
+                mode = KiwiLoreGame.GameMode.valueOf(value.toUpperCase());
+                break;
+            case "--script":
+                script = readScript(value);
+                break;
+            case "--screenshot":
+                screenshot = value;
+                break;
+            case "--load-timeout":
+                loadTimeout = Double.parseDouble(value);
+                break;
+            default:
+                System.out.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        if (!GraphicsEnvironment.isHeadless()) {
+            System.out.println("Warning: not running headless, pass -Djava.awt.headless=true to skip the window");
+        }
+
+        // Load assets from the packed archive when one has been built
+        if (new File("assets.pak").isFile()) {
+            GameEngine.mountAssetPack("assets.pak");
+        }
+
+        KiwiLoreGame game = new KiwiLoreGame(width, height, mode);
+        HeadlessRunner runner = new HeadlessRunner(game);
+        if (!runner.run(frames, dt, script, loadTimeout)) {
+            System.out.println(String.format("Error: the game did not finish loading within %.0f s", loadTimeout));
+            System.exit(1);
+        }
+        runner.printReport();
+
+        if (screenshot != null) {
+            ImageIO.write(runner.getImage(), "png", new File(screenshot));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+// Shared cache of loaded images, keyed by path (looked up in any mounted
+// AssetPack before the filesystem).
+// Images are converted to the screen's compatible pixel format when they
+// are loaded so Java2D can accelerate drawing them, and every caller that
+// loads the same path gets the same image back.
+public class ImageCache {
+    // A cached image and how many callers are holding it
+    static class Entry {
+        BufferedImage image;
+        long bytes;
+        int references;
+    }
+
+    static final Map<String, Entry> sImages = new HashMap<String, Entry>();
+
+    // Returns the image stored in filename, loading it on first use.
+    // Decoding happens outside the lock so several threads can load
+    // different images at the same time.
+    public static Image get(String filename) throws IOException {
+        synchronized (ImageCache.class) {
+            Entry entry = sImages.get(filename);
+            if (entry != null) {
+                entry.references++;
+                return entry.image;
+            }
+        }
+
+        // Load and convert the image
+        BufferedImage loaded;
+        try (InputStream in = AssetPack.open(filename)) {
+            loaded = ImageIO.read(in);
+        }
+        if (loaded == null) {
+            throw new IOException("unsupported image format: " + filename);
+        }
+        BufferedImage compatible = toCompatibleImage(loaded);
+
+        synchronized (ImageCache.class) {
+            // Another thread may have loaded it first
+            Entry entry = sImages.get(filename);
+            if (entry == null) {
+                entry = new Entry();
+                entry.image = compatible;
+                entry.bytes = byteSize(compatible);
+                sImages.put(filename, entry);
+            }
+
+            entry.references++;
+            return entry.image;
+        }
+    }
+
+    // Gives back a reference to filename, removing it from the cache
+    // when nobody is holding it any more
+    public static synchronized void release(String filename) {
+        Entry entry = sImages.get(filename);
+        if (entry != null && --entry.references <= 0) {
+            sImages.remove(filename);
+            entry.image.flush();
+        }
+    }
+
+    // Returns true if filename is currently cached
+    public static synchronized boolean contains(String filename) {
+        return sImages.containsKey(filename);
+    }
+
+    // Returns the size in bytes of the pixels cached for filename,
+    // or 0 if it is not cached
+    public static synchronized long getByteSize(String filename) {
+        Entry entry = sImages.get(filename);
+        return entry == null ? 0 : entry.bytes;
+    }
+
+    // Returns the size in bytes of every cached image
+    public static synchronized long getTotalByteSize() {
+        long total = 0;
+        for (Entry entry : sImages.values()) {
+            total += entry.bytes;
+        }
+        return total;
+    }
+
+    // Prints every cached image with its size
+    public static synchronized void printContents() {
+        for (Map.Entry<String, Entry> e : sImages.entrySet()) {
+            Entry entry = e.getValue();
+            System.out.println(e.getKey() + ": " + entry.image.getWidth() + "x" + entry.image.getHeight()
+                    + ", " + entry.bytes / 1024 + " KB, " + entry.references + " reference(s)");
+        }
+        System.out.println("Total: " + getTotalByteSize() / 1024 + " KB");
+    }
+
+    //-------------------------------------------------------
+    // Compatible images
+    //-------------------------------------------------------
+
+    // Creates an empty image in the screen's preferred format
+    public static BufferedImage createCompatibleImage(int width, int height, int transparency) {
+        if (GraphicsEnvironment.isHeadless()) {
+            // No screen to match, use premultiplied ARGB which Java2D blits quickly
+            int type = (transparency == Transparency.OPAQUE) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB_PRE;
+            return new BufferedImage(width, height, type);
+        }
+
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+        return gc.createCompatibleImage(width, height, transparency);
+    }
+
+    // Copies image into the screen's preferred format
+    public static BufferedImage toCompatibleImage(Image image) {
+        int w = image.getWidth(null);
+        int h = image.getHeight(null);
+        int transparency = (image instanceof BufferedImage) ? ((BufferedImage)image).getTransparency() : Transparency.TRANSLUCENT;
+
+        BufferedImage compatible = createCompatibleImage(w, h, transparency);
+        Graphics2D g2d = compatible.createGraphics();
+        g2d.setComposite(AlphaComposite.Src);
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+
+        return compatible;
+    }
+
+    // Returns the size in bytes of an image's pixels
+    static long byteSize(BufferedImage image) {
+        return (long)image.getWidth() * image.getHeight() * image.getColorModel().getPixelSize() / 8;
+    }
+}
@@ -0,0 +1,85 @@
+import java.awt.event.InputEvent;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fixed size ring of input events passed from the event thread to the
+// thread that updates the game.
+// One thread offers events and one thread polls them, so neither needs a
+// lock: each side only writes its own position and publishes it with an
+// ordered store. The slots are allocated once, so queueing an event never
+// allocates.
+//
+// When the ring is full new events are dropped and counted rather than
+// blocking the event thread.
+public class InputQueue {
+    final InputEvent[] mEvents;
+    final int mMask;
+
+    // Next slot to read, written by the consumer only
+    final AtomicLong mHead = new AtomicLong();
+    // Next slot to write, written by the producer only
+    final AtomicLong mTail = new AtomicLong();
+
+    // Each side's last look at the other's position, so it only reads
+    // the shared one when the ring looks full or empty
+    long mHeadCache = 0;
+    long mTailCache = 0;
+
+    // Events dropped because the ring was full
+    volatile int mDropped = 0;
+
+    // Makes a queue holding at least capacity events
+    public InputQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mEvents = new InputEvent[size];
+        mMask = size - 1;
+    }
+
+    //-------------------------------------------------------
+    // Producer
+    //-------------------------------------------------------
+
+    // Adds event to the queue, or returns false if the queue is full
+    public boolean offer(InputEvent event) {
+        long tail = mTail.get();
+        if (tail - mHeadCache >= mEvents.length) {
+            mHeadCache = mHead.get();
+            if (tail - mHeadCache >= mEvents.length) {
+                mDropped++;
+                return false;
+            }
+        }
+        mEvents[(int)tail & mMask] = event;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    //-------------------------------------------------------
+    // Consumer
+    //-------------------------------------------------------
+
+    // Removes and returns the oldest event, or null if the queue is empty
+    public InputEvent poll() {
+        long head = mHead.get();
+        if (head >= mTailCache) {
+            mTailCache = mTail.get();
+            if (head >= mTailCache) {
+                return null;
+            }
+        }
+        int index = (int)head & mMask;
+        InputEvent event = mEvents[index];
+        mEvents[index] = null;
+        mHead.lazySet(head + 1);
+        return event;
+    }
+
+    // Returns the number of events waiting. Only exact on the consumer's thread.
+    public int size() {
+        return (int)(mTail.get() - mHead.get());
+    }
+
+    // Returns the number of events that were dropped because the queue was full
+    public int getDropped() {
+        return mDropped;
+    }
+}
@@ -1,7 +1,9 @@
 import java.awt.*;
 import java.awt.event.KeyEvent;
-import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.Future;
 
 public class KiwiLoreGame extends GameEngine {
 
@@ -10,20 +12,38 @@ public class KiwiLoreGame extends GameEngine {
         MULTIPLAYER
     }
 
+    // How the game is run, wherever it is started from. Updates and drawing
+    // are on separate threads, with drawing reading only published snapshots.
+    static final LoopMode LOOP_MODE = LoopMode.THREADED;
+
     private GameMode currentMode;
     private String gameModeText;
+    private String playingText;
+
+    private final Font INFO_FONT_LARGE = getFont("Arial", Font.BOLD, 30);
+    private final Font INFO_FONT_SMALL = getFont("Arial", Font.PLAIN, 20);
+    static final Color GRUB_COLOR = new Color(236, 226, 190);
+    static final Color LORE_BACKGROUND = new Color(0, 0, 0, 160);
 
-    private final Font INFO_FONT_LARGE = new Font("Arial", Font.BOLD, 30);
-    private final Font INFO_FONT_SMALL = new Font("Arial", Font.PLAIN, 20);
+    AssetManager assets;
+    Future<Image> sheetLoad;
+    Future<Image> backgroundLoad;
+    Future<TileMap> levelLoad;
+    boolean loaded = false;
 
     Image sheet;
     Image[] frames;
-    int currentFrame;
-    double animTime;
+    Sprite kiwi;
     double frameDuration = 0.1;
 
-    int spriteX;
-    int spriteY;
+    // Everything that moves, with the player's kiwi as one entity
+    static final int KIND_KIWI = 0;
+    static final int KIND_GRUB = 1;
+    static final int LAYER_KIWIS = 10;
+    static final int LAYER_EFFECTS = 11;
+    EntityStore entities = new EntityStore();
+    int player;
+
     int spriteSpeed = 100;
     boolean moving = false;
     boolean movingRight = false;
@@ -32,16 +52,123 @@ public class KiwiLoreGame extends GameEngine {
     int spriteHeight = 32;
 
     double gravity = 500;
-    double verticalVelocity = 0;
-    int groundY;
+
+    // Tile map level, drawn instead of the background image when present
+    static final String LEVEL_FILE = "levels/level1.map";
+    TileMap level;
+
+    // Broadphase over the level, in level x and window y: platforms, the
+    // player's kiwi, grubs to peck and lore trigger volumes
+    static final int LAYER_PLATFORM = 1;
+    static final int LAYER_KIWI = 1 << 1;
+    static final int LAYER_GRUB = 1 << 2;
+    static final int LAYER_LORE = 1 << 3;
+    SpatialHash collisions = new SpatialHash(64, 256);
+    int[] hits = new int[16];
+    int[] pairs = new int[16];
+    int playerProxy = -1;
+
+    // Grubs from the level's grub regions, kept in level x, with their boxes
+    static final int GRUB_WIDTH = 14;
+    static final int GRUB_HEIGHT = 8;
+    int[] grubs = new int[16];
+    int[] grubProxies = new int[16];
+    int grubCount = 0;
+    int grubsEaten = 0;
+
+    // Pecking reaches a little past the beak, every so often
+    static final double PECK_REACH = 18;
+    static final double PECK_COOLDOWN = 0.25;
+    double peckCooldown = 0;
+
+    // Pressing down in the air slams into the ground, throwing grubs nearby
+    // into the air, more the closer they are
+    static final double SLAM_SPEED = 600;
+    static final double SLAM_RADIUS = 96;
+    static final double SLAM_HEIGHT = 48;
+    static final double SLAM_LIFT = 300;
+    boolean slamming = false;
+
+    // Lore from the level's lore regions, shown once each when walked into
+    static final double LORE_SECONDS = 5;
+    String[] lore = new String[0];
+    boolean[] loreSeen = new boolean[0];
+    String loreText;
+    double loreShownAt;
+
+    // Multiplayer: the server runs the match, we send our buttons and show
+    // the client's prediction of it, which moves our kiwi without waiting
+    // for the server. Unless kiwilore.server names a host we also host it.
+    GameServer server;
+    GameClient client;
+    int[] networkKiwis = new int[NetSnapshot.MAX_PLAYERS];
 
     Image backgroundImage;
-    int backgroundX = 0;
-    int backgroundScrollSpeed = 50;
+    ParallaxBackground parallax = new ParallaxBackground();
+    double backgroundX = 0;
+    double backgroundScrollSpeed = 50;
 
     int backgroundWidth; // Width of the background image
     int backgroundHeight;
 
+    // Landings hard enough to kick up dust, kept in a ring so the drawing
+    // side sees every one even if it misses a snapshot
+    static final int DUST_EVENTS = 8;
+    static final double DUST_MIN_SPEED = 120;
+    double[] dustX = new double[DUST_EVENTS];
+    double[] dustY = new double[DUST_EVENTS];
+    double[] dustSpeed = new double[DUST_EVENTS];
+    int dustCount = 0;
+
+    // Seconds of game played, which the effects are run by
+    double time = 0;
+
+    // Particle effects, run and drawn on the drawing side
+    ParticleSystem particles = new ParticleSystem(4096);
+    ParticleSystem.Emitter slamDust = new ParticleSystem.Emitter();
+    ParticleSystem.Emitter glow = new ParticleSystem.Emitter();
+    int dustShown = 0;
+    double effectsTime = 0;
+
+    // What paintComponent draws, copied from the game after each update so
+    // drawing never reads state that update() is changing
+    static class Snapshot {
+        boolean loaded;
+        double progress;
+        int cameraX;
+        double time;
+        int grubsEaten;
+        String lore;
+        double loreShownAt;
+
+        double[] dustX = new double[DUST_EVENTS];
+        double[] dustY = new double[DUST_EVENTS];
+        double[] dustSpeed = new double[DUST_EVENTS];
+        int dustCount;
+
+        // Kiwis and grubs, in window coordinates
+        int count;
+        int[] kind = new int[4];
+        double[] x = new double[4], y = new double[4];
+        float[] width = new float[4], height = new float[4];
+        int[] frame = new int[4];
+        boolean[] facingRight = new boolean[4];
+
+        void ensureCapacity(int count) {
+            if (count > x.length) {
+                int capacity = Math.max(count, x.length * 2);
+                kind = Arrays.copyOf(kind, capacity);
+                x = Arrays.copyOf(x, capacity);
+                y = Arrays.copyOf(y, capacity);
+                width = Arrays.copyOf(width, capacity);
+                height = Arrays.copyOf(height, capacity);
+                frame = Arrays.copyOf(frame, capacity);
+                facingRight = Arrays.copyOf(facingRight, capacity);
+            }
+        }
+    }
+    SnapshotBuffer<Snapshot> snapshots = new SnapshotBuffer<Snapshot>(Snapshot::new);
+
     public KiwiLoreGame(int width, int height, GameMode mode) {
         super(width, height);
         this.currentMode = mode;
@@ -60,6 +187,7 @@ public class KiwiLoreGame extends GameEngine {
         } else {
             gameModeText = "Unknown Mode";
         }
+        playingText = "Now Playing: " + gameModeText;
 
         System.out.println("KiwiLoreGame initialized in " + gameModeText);
 
@@ -70,22 +198,94 @@ public class KiwiLoreGame extends GameEngine {
                 frames[iy * 4 + ix] = subImage(sheet, ix * 250, iy * 250, 250, 250);
             }
         }*/
-        sheet = loadImage("sp.png");
-        frames = new Image[16];
-        for (int iy = 0; iy < 4; iy++) {
-            for (int ix = 0; ix < 4; ix++) {
-                frames[iy * 4 + ix] = subImage(sheet, ix * 250, iy * 240, 250, 225);
+        // Start loading in the background, update() finishes setting up
+        assets = new AssetManager();
+        sheetLoad = assets.loadImage("sp.png");
+        backgroundLoad = assets.loadImage("background.png");
+        if (AssetPack.exists(LEVEL_FILE)) {
+            levelLoad = assets.loadTileMap(LEVEL_FILE);
+        }
+
+        // The player starts in the middle, standing on the ground
+        player = entities.create(KIND_KIWI);
+        int p = entities.slot(player);
+        entities.width[p] = spriteWidth;
+        entities.height[p] = spriteHeight;
+        entities.x[p] = width() / 2 - spriteWidth / 2;
+        entities.y[p] = height() - spriteHeight;
+        entities.flags[p] = EntityStore.GRAVITY | EntityStore.ON_GROUND;
+        entities.frameCount[p] = 15;
+        entities.frameDuration[p] = (float)frameDuration;
+
+        // A fan of dust from under a landing kiwi
+        slamDust.angle = -Math.PI / 2;
+        slamDust.spread = Math.PI * 0.45;
+        slamDust.minSpeed = 30;
+        slamDust.maxSpeed = 140;
+        slamDust.minLife = 0.4;
+        slamDust.maxLife = 0.9;
+        slamDust.minSize = 2;
+        slamDust.maxSize = 4;
+        slamDust.width = spriteWidth;
+        slamDust.startColor = 0xC8C8B48C;
+        slamDust.endColor = 0x00A08C64;
+        slamDust.gravity = 250;
+        slamDust.drag = 2;
+        particles.addEmitter(slamDust);
+
+        // Faint glowing motes drifting over the whole window
+        glow.spread = Math.PI;
+        glow.minSpeed = 4;
+        glow.maxSpeed = 16;
+        glow.minLife = 2;
+        glow.maxLife = 4;
+        glow.minSize = 2;
+        glow.maxSize = 3;
+        glow.startColor = 0xB4E6FF8C;
+        glow.endColor = 0x00B4FF64;
+        particles.addEmitter(glow);
+
+        if (currentMode == GameMode.MULTIPLAYER) {
+            startMultiplayer();
+        }
+    }
+
+    // Joins the match on kiwilore.server, or hosts one on this machine
+    private void startMultiplayer() {
+        String host = System.getProperty("kiwilore.server");
+        try {
+            if (host == null) {
+                server = new GameServer(new InetSocketAddress(GameServer.DEFAULT_PORT), width(), height());
+                server.start();
+                host = "127.0.0.1";
             }
+            client = new GameClient(new InetSocketAddress(host, GameServer.DEFAULT_PORT));
+        } catch (IOException ex) {
+            System.out.println("Error: could not start multiplayer: " + ex.getMessage());
+            return;
         }
 
-        animTime = 0;
-        currentFrame = 0;
+        // Every kiwi, ours included, now comes from the match
+        entities.destroy(player);
+        Arrays.fill(networkKiwis, -1);
+    }
 
-        spriteX = width() / 2 - spriteWidth / 2;
-        groundY = height() - spriteHeight;
-        spriteY = groundY;
+    // Builds the sprite and background once the assets have loaded
+    private void finishLoading() {
+        sheet = AssetManager.get(sheetLoad);
+        if (sheet != null) {
+            frames = new Image[16];
+            for (int iy = 0; iy < 4; iy++) {
+                for (int ix = 0; ix < 4; ix++) {
+                    frames[iy * 4 + ix] = subImage(sheet, ix * 250, iy * 240, 250, 225);
+                }
+            }
+            kiwi = new Sprite(frames);
+        } else {
+            System.err.println("Error: Could not load kiwi sprite sheet!");
+        }
 
-        backgroundImage = loadImage("background.png");
+        backgroundImage = AssetManager.get(backgroundLoad);
         if (backgroundImage == null) {
             System.err.println("Error: Could not load background image!");
             backgroundWidth = width(); // Fallback if image fails to load
@@ -93,47 +293,195 @@ public class KiwiLoreGame extends GameEngine {
             backgroundWidth = backgroundImage.getWidth(null);
             backgroundHeight = backgroundImage.getHeight(null);
         }
+
+        // A tile map level sets how far we can scroll, with the background
+        // image tiled behind it at half speed for depth
+        level = AssetManager.get(levelLoad);
+        if (level != null) {
+            backgroundWidth = level.getPixelWidth();
+            backgroundHeight = level.getPixelHeight();
+            addPlatforms(level);
+            addRegions(level);
+            if (backgroundImage != null) {
+                parallax.addLayer(backgroundImage, 0.5, 400, true);
+            }
+        } else if (backgroundImage != null) {
+            parallax.addLayer(backgroundImage, 1.0, 400, false);
+        }
+
+        loaded = true;
+    }
+
+    // Adds the top of every run of solid tiles with nothing above it as a
+    // platform. The level is drawn bottom aligned with the window.
+    private void addPlatforms(TileMap map) {
+        int tileWidth = map.getTileWidth();
+        int tileHeight = map.getTileHeight();
+        int offsetY = height() - map.getPixelHeight();
+
+        for (int row = 0; row < map.getRows(); row++) {
+            int start = -1;
+            for (int column = 0; column <= map.getColumns(); column++) {
+                boolean top = column < map.getColumns()
+                        && map.getTile(column, row) != TileMap.EMPTY
+                        && map.getTile(column, row - 1) == TileMap.EMPTY;
+                if (top && start < 0) {
+                    start = column;
+                } else if (!top && start >= 0) {
+                    double y = row * tileHeight + offsetY;
+                    collisions.insert(start * tileWidth, y, column * tileWidth, y + tileHeight, LAYER_PLATFORM, row);
+                    start = -1;
+                }
+            }
+        }
+    }
+
+    // Adds a grub for every grub region, sitting on the region's bottom, and
+    // a trigger volume for every lore region
+    private void addRegions(TileMap map) {
+        int tileWidth = map.getTileWidth();
+        int tileHeight = map.getTileHeight();
+        int offsetY = height() - map.getPixelHeight();
+
+        int loreCount = 0;
+        for (TileMap.Region region : map.getRegions()) {
+            double left = region.column * tileWidth;
+            double top = region.row * tileHeight + offsetY;
+            double right = left + region.columns * tileWidth;
+            double bottom = top + region.rows * tileHeight;
+
+            if (region.kind.equals("grub")) {
+                int grub = entities.create(KIND_GRUB);
+                int i = entities.slot(grub);
+                entities.width[i] = GRUB_WIDTH;
+                entities.height[i] = GRUB_HEIGHT;
+                entities.x[i] = (left + right - GRUB_WIDTH) / 2;
+                entities.y[i] = bottom - GRUB_HEIGHT;
+                entities.flags[i] = EntityStore.GRAVITY | EntityStore.ON_GROUND;
+
+                if (grubCount == grubs.length) {
+                    grubs = Arrays.copyOf(grubs, grubCount * 2);
+                    grubProxies = Arrays.copyOf(grubProxies, grubCount * 2);
+                }
+                grubs[grubCount] = grub;
+                grubProxies[grubCount] = collisions.insert(entities.x[i], entities.y[i],
+                        entities.x[i] + GRUB_WIDTH, bottom, LAYER_GRUB, grub);
+                grubCount++;
+            } else if (region.kind.equals("lore")) {
+                lore = Arrays.copyOf(lore, loreCount + 1);
+                lore[loreCount] = region.text;
+                collisions.insert(left, top, right, bottom, LAYER_LORE, loreCount);
+                loreCount++;
+            } else {
+                System.out.println("Error: unknown region kind " + region.kind);
+            }
+        }
+        loreSeen = new boolean[loreCount];
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return loaded;
     }
 
     @Override
     public void update(double dt) {
-        if (moving) {
-            animTime += dt;
-            if (animTime >= frameDuration) {
-                currentFrame = (currentFrame + 1) % 15;
-                animTime -= frameDuration;
+        if (!loaded) {
+            if (!assets.isDone()) {
+                return;
             }
-        } else {
-            currentFrame = 0;
-            animTime = 0;
+            finishLoading();
         }
+        time += dt;
 
-        verticalVelocity += gravity * dt;
-        spriteY += verticalVelocity * dt;
+        if (client != null) {
+            updateMultiplayer();
+            return;
+        }
+
+        EntityStore e = entities;
+        int p = e.slot(player);
+
+        // Walk while an arrow key is held, facing the way last pressed
+        boolean left = isKeyDown(KeyEvent.VK_LEFT);
+        boolean right = isKeyDown(KeyEvent.VK_RIGHT);
+        if (wasKeyPressed(KeyEvent.VK_LEFT) || (left && !right)) {
+            movingRight = false;
+        }
+        if (wasKeyPressed(KeyEvent.VK_RIGHT) || (right && !left)) {
+            movingRight = true;
+        }
+        boolean jump = wasKeyPressed(KeyEvent.VK_UP) || wasKeyPressed(KeyEvent.VK_SPACE);
+        moving = left || right || isKeyDown(KeyEvent.VK_UP) || isKeyDown(KeyEvent.VK_SPACE) || isKeyDown(KeyEvent.VK_DOWN);
+        if (jump && e.has(p, EntityStore.ON_GROUND)) {
+            e.vy[p] = -300;
+        }
+        if (wasKeyPressed(KeyEvent.VK_DOWN) && !e.has(p, EntityStore.ON_GROUND)) {
+            e.vy[p] = Math.max(e.vy[p], SLAM_SPEED);
+            slamming = true;
+        }
+        peckCooldown -= dt;
+        if (wasKeyPressed(KeyEvent.VK_X) && peckCooldown <= 0) {
+            peck(e, p);
+            peckCooldown = PECK_COOLDOWN;
+        }
+
+        // Animate while moving, stand on the first frame otherwise
+        if (moving) {
+            e.flags[p] |= EntityStore.ANIMATED;
+        } else {
+            e.flags[p] &= ~EntityStore.ANIMATED;
+            e.frame[p] = 0;
+            e.animTime[p] = 0;
+        }
+        if (movingRight) {
+            e.flags[p] |= EntityStore.FACING_RIGHT;
+        } else {
+            e.flags[p] &= ~EntityStore.FACING_RIGHT;
+        }
 
-        if (spriteY > groundY) {
-            spriteY = groundY;
-            verticalVelocity = 0;
+        // Fall, move and animate every entity, then stop them at the ground
+        e.applyGravity(gravity, dt);
+        e.integrate(dt);
+        e.animate(dt);
+        boolean wasOnGround = e.has(p, EntityStore.ON_GROUND);
+        double fallSpeed = e.vy[p];
+        landOnGround(e, height());
+        landOnPlatforms(e, dt);
+
+        // Hard landings kick up dust, and slams throw the grubs around
+        if (!wasOnGround && e.has(p, EntityStore.ON_GROUND)) {
+            if (fallSpeed > DUST_MIN_SPEED) {
+                int k = dustCount % DUST_EVENTS;
+                dustX[k] = e.x[p] + e.width[p] / 2;
+                dustY[k] = e.y[p] + e.height[p];
+                dustSpeed[k] = fallSpeed;
+                dustCount++;
+            }
+            if (slamming) {
+                slam(e, p);
+                slamming = false;
+            }
         }
 
         boolean backgroundAtLeftEdge = backgroundX >= 0;
         boolean backgroundAtRightEdge = backgroundX <= -(backgroundWidth - width());
-        boolean isCentered = Math.abs(spriteX - (width() / 2 - spriteWidth / 2)) < 1e-5;
+        boolean isCentered = Math.abs(e.x[p] - (width() / 2 - spriteWidth / 2)) < 1e-5;
 
         // Handle right movement
         if (moving && movingRight) {
             if (!backgroundAtRightEdge) {
                 backgroundX -= backgroundScrollSpeed * dt;
                 if (!isCentered) {
-                    spriteX = width() / 2 - spriteWidth / 2; // Force center if not there
+                    e.x[p] = width() / 2 - spriteWidth / 2; // Force center if not there
                 }
             }
             // Apply sprite movement even if background is at edge or scrolling
-            spriteX += spriteSpeed * dt;
-            if (backgroundAtRightEdge && spriteX > width() - spriteWidth) {
-                spriteX = width() - spriteWidth;
+            e.x[p] += spriteSpeed * dt;
+            if (backgroundAtRightEdge && e.x[p] > width() - spriteWidth) {
+                e.x[p] = width() - spriteWidth;
             } else if (!backgroundAtRightEdge && isCentered) {
-                spriteX = width() / 2 - spriteWidth / 2; // Maintain center
+                e.x[p] = width() / 2 - spriteWidth / 2; // Maintain center
             }
         }
 
@@ -142,95 +490,337 @@ public class KiwiLoreGame extends GameEngine {
             if (!backgroundAtLeftEdge) {
                 backgroundX += backgroundScrollSpeed * dt;
                 if (!isCentered) {
-                    spriteX = width() / 2 - spriteWidth / 2; // Force center if not there
+                    e.x[p] = width() / 2 - spriteWidth / 2; // Force center if not there
                 }
             }
             // Apply sprite movement even if background is at edge or scrolling
-            spriteX -= spriteSpeed * dt;
-            if (backgroundAtLeftEdge && spriteX < 0) {
-                spriteX = 0;
+            e.x[p] -= spriteSpeed * dt;
+            if (backgroundAtLeftEdge && e.x[p] < 0) {
+                e.x[p] = 0;
             } else if (!backgroundAtLeftEdge && isCentered) {
-                spriteX = width() / 2 - spriteWidth / 2; // Maintain center
+                e.x[p] = width() / 2 - spriteWidth / 2; // Maintain center
             }
         }
 
         // Keep background within bounds (for safety)
         if (backgroundX > 0) backgroundX = 0;
         if (backgroundX < -(backgroundWidth - width())) backgroundX = -(backgroundWidth - width());
+
+        updateCollisions(e, p);
+    }
+
+    // Returns an entity's x in level pixels. Kiwis are kept on screen, with
+    // the level scrolled under them, everything else is in the level.
+    private double levelX(EntityStore e, int i) {
+        return (e.kind[i] == KIND_KIWI) ? e.x[i] - Math.round(backgroundX) : e.x[i];
+    }
+
+    // Moves the boxes of the player and the grubs to where they are now,
+    // then shows the lore of any trigger volume the player has walked into
+    private void updateCollisions(EntityStore e, int p) {
+        double left = levelX(e, p);
+        if (playerProxy < 0) {
+            playerProxy = collisions.insert(left, e.y[p], left + e.width[p], e.y[p] + e.height[p], LAYER_KIWI, player);
+        } else {
+            collisions.move(playerProxy, left, e.y[p], left + e.width[p], e.y[p] + e.height[p]);
+        }
+
+        for (int g = 0; g < grubCount; g++) {
+            int i = e.slot(grubs[g]);
+            collisions.move(grubProxies[g], e.x[i], e.y[i], e.x[i] + e.width[i], e.y[i] + e.height[i]);
+        }
+
+        int count = Math.min(pairs.length / 2, collisions.queryPairs(LAYER_KIWI, LAYER_LORE, pairs));
+        for (int n = 0; n < count; n++) {
+            int a = pairs[n * 2], b = pairs[n * 2 + 1];
+            int trigger = (collisions.getLayer(a) == LAYER_LORE) ? a : b;
+            int index = collisions.getUserData(trigger);
+            if (!loreSeen[index]) {
+                loreSeen[index] = true;
+                loreText = lore[index];
+                loreShownAt = time;
+            }
+        }
+    }
+
+    // Eats the grubs just in front of the player's beak
+    private void peck(EntityStore e, int p) {
+        double left = levelX(e, p);
+        double beak = e.has(p, EntityStore.FACING_RIGHT) ? left + e.width[p] : left;
+        double top = e.y[p] + e.height[p] / 2;
+        double bottom = e.y[p] + e.height[p];
+
+        int count = Math.min(hits.length, collisions.query(beak - PECK_REACH, top, beak + PECK_REACH, bottom, LAYER_GRUB, hits));
+        for (int h = 0; h < count; h++) {
+            removeGrub(collisions.getUserData(hits[h]));
+            grubsEaten++;
+        }
+    }
+
+    // Throws every grub near where the player landed into the air
+    private void slam(EntityStore e, int p) {
+        double centre = levelX(e, p) + e.width[p] / 2;
+        double feet = e.y[p] + e.height[p];
+
+        int count = Math.min(hits.length, collisions.query(centre - SLAM_RADIUS, feet - SLAM_HEIGHT,
+                centre + SLAM_RADIUS, feet, LAYER_GRUB, hits));
+        for (int h = 0; h < count; h++) {
+            int i = e.slot(collisions.getUserData(hits[h]));
+            double distance = Math.abs(e.x[i] + e.width[i] / 2 - centre);
+            e.vy[i] = -SLAM_LIFT * Math.max(0.25, 1 - distance / SLAM_RADIUS);
+            e.flags[i] &= ~EntityStore.ON_GROUND;
+        }
+    }
+
+    private void removeGrub(int grub) {
+        for (int g = 0; g < grubCount; g++) {
+            if (grubs[g] == grub) {
+                collisions.remove(grubProxies[g]);
+                entities.destroy(grub);
+                grubCount--;
+                grubs[g] = grubs[grubCount];
+                grubProxies[g] = grubProxies[grubCount];
+                return;
+            }
+        }
+    }
+
+    // Sends our buttons and copies the predicted match, or the newest
+    // snapshot of it until the prediction starts, into the entities
+    private void updateMultiplayer() {
+        int buttons = 0;
+        if (isKeyDown(KeyEvent.VK_LEFT)) buttons |= ArenaSimulation.BUTTON_LEFT;
+        if (isKeyDown(KeyEvent.VK_RIGHT)) buttons |= ArenaSimulation.BUTTON_RIGHT;
+        if (isKeyDown(KeyEvent.VK_UP) || isKeyDown(KeyEvent.VK_SPACE)) buttons |= ArenaSimulation.BUTTON_JUMP;
+        client.update(buttons);
+
+        NetSnapshot snapshot = client.getPrediction();
+        if (snapshot == null) {
+            snapshot = client.getSnapshot();
+        }
+        if (snapshot == null) {
+            return;
+        }
+        EntityStore e = entities;
+        for (int id = 0; id < networkKiwis.length; id++) {
+            if (!snapshot.has(id)) {
+                e.destroy(networkKiwis[id]);
+                networkKiwis[id] = -1;
+                continue;
+            }
+            if (!e.isAlive(networkKiwis[id])) {
+                networkKiwis[id] = e.create(KIND_KIWI);
+            }
+            int i = e.slot(networkKiwis[id]);
+            e.x[i] = snapshot.getX(id);
+            e.y[i] = snapshot.getY(id);
+            e.width[i] = spriteWidth;
+            e.height[i] = spriteHeight;
+            e.frame[i] = snapshot.frame[id];
+            e.flags[i] = snapshot.flags[id];
+        }
+    }
+
+    // Stops falling entities that crossed the top of a platform this step
+    private void landOnPlatforms(EntityStore e, double dt) {
+        for (int i = 0; i < e.size(); i++) {
+            if ((e.flags[i] & EntityStore.GRAVITY) == 0 || e.vy[i] < 0) {
+                continue;
+            }
+
+            double left = levelX(e, i);
+            double feet = e.y[i] + e.height[i];
+            double previousFeet = feet - e.vy[i] * dt;
+
+            int count = Math.min(hits.length, collisions.query(left, previousFeet, left + e.width[i], feet, LAYER_PLATFORM, hits));
+            double landing = Double.MAX_VALUE;
+            for (int h = 0; h < count; h++) {
+                double top = collisions.getMinY(hits[h]);
+                if (previousFeet <= top + 1e-6 && top < landing) {
+                    landing = top;
+                }
+            }
+
+            if (landing != Double.MAX_VALUE) {
+                e.y[i] = landing - e.height[i];
+                e.vy[i] = 0;
+                e.flags[i] |= EntityStore.ON_GROUND;
+            }
+        }
+    }
+
+    // Stops every falling entity at the bottom of the window
+    static void landOnGround(EntityStore e, double groundY) {
+        for (int i = 0; i < e.size(); i++) {
+            if ((e.flags[i] & EntityStore.GRAVITY) == 0) {
+                continue;
+            }
+            if (e.y[i] + e.height[i] >= groundY) {
+                e.y[i] = groundY - e.height[i];
+                e.vy[i] = 0;
+                e.flags[i] |= EntityStore.ON_GROUND;
+            } else {
+                e.flags[i] &= ~EntityStore.ON_GROUND;
+            }
+        }
     }
 
 
+    @Override
+    public void publishSnapshot() {
+        Snapshot s = snapshots.write();
+        s.loaded = loaded;
+        s.progress = assets.getProgress();
+        s.cameraX = (int)-Math.round(backgroundX);
+        s.time = time;
+        s.grubsEaten = grubsEaten;
+        s.lore = loreText;
+        s.loreShownAt = loreShownAt;
+        System.arraycopy(dustX, 0, s.dustX, 0, DUST_EVENTS);
+        System.arraycopy(dustY, 0, s.dustY, 0, DUST_EVENTS);
+        System.arraycopy(dustSpeed, 0, s.dustSpeed, 0, DUST_EVENTS);
+        s.dustCount = dustCount;
+
+        EntityStore e = entities;
+        int count = 0;
+        for (int i = 0; i < e.size(); i++) {
+            s.ensureCapacity(count + 1);
+            s.kind[count] = e.kind[i];
+            s.x[count] = (e.kind[i] == KIND_KIWI) ? e.x[i] : e.x[i] - s.cameraX;
+            s.y[count] = e.y[i];
+            s.width[count] = e.width[i];
+            s.height[count] = e.height[i];
+            s.frame[count] = e.frame[i];
+            s.facingRight[count] = e.has(i, EntityStore.FACING_RIGHT);
+            count++;
+        }
+        s.count = count;
+
+        snapshots.publish();
+    }
+
     @Override
     public void paintComponent() {
-        // Draw the background image within the panel bounds
-        if (backgroundImage != null) {
-            drawImage(backgroundImage, backgroundX, -400);
+        Snapshot s = snapshots.read();
+        if (!s.loaded) {
+            paintLoadingScreen(s.progress);
+            return;
+        }
+
+        // Draw the level's tiles around the camera, bottom aligned with the window
+        if (level != null) {
+            changeBackgroundColor(new Color(60, 179, 113));
+            clearBackground(width(), height());
+            parallax.draw(this, s.cameraX);
+            level.draw(this, s.cameraX, level.getPixelHeight() - height());
+        } else if (backgroundImage != null) {
+            // Draw the visible strips of the background image
+            parallax.draw(this, s.cameraX);
         } else {
             changeBackgroundColor(new Color(60, 179, 113));
             clearBackground(width(), height());
         }
 
         changeColor(white);
-        String playingText = "Now Playing: " + gameModeText;
-        FontMetrics fmLarge = mGraphics.getFontMetrics(INFO_FONT_LARGE);
-        int playingTextWidth = fmLarge.stringWidth(playingText);
-        drawBoldText((width() - playingTextWidth) / 2.0, 30, playingText, INFO_FONT_LARGE.getName(), INFO_FONT_LARGE.getSize());
+        drawCenteredText(width() / 2.0, 30, playingText, INFO_FONT_LARGE);
+
+        // The sheet faces left, so use the mirrored frames when facing right
+        for (int i = 0; i < s.count; i++) {
+            if (s.kind[i] == KIND_GRUB) {
+                paintGrub(s.x[i], s.y[i], s.width[i], s.height[i]);
+            } else if (kiwi != null) {
+                Sprite.Flip flip = s.facingRight[i] ? Sprite.Flip.HORIZONTAL : Sprite.Flip.NONE;
+                drawSprite(kiwi.getFrame(s.frame[i], flip), s.x[i], s.y[i], s.width[i], s.height[i], LAYER_KIWIS);
+            }
+        }
+
+        if (s.grubsEaten > 0) {
+            changeColor(white);
+            drawText(10, height() - 12, "Grubs: " + s.grubsEaten, INFO_FONT_SMALL);
+        }
+        if (s.lore != null && s.time - s.loreShownAt < LORE_SECONDS) {
+            changeColor(LORE_BACKGROUND);
+            drawSolidRectangle(40, 50, width() - 80, 50);
+            changeColor(white);
+            drawCenteredText(40, 50, width() - 80, 50, s.lore, INFO_FONT_SMALL);
+        }
 
-        Image currentImage = frames[currentFrame];
-        BufferedImage bufferedImage;
-        AffineTransform tx;
-        BufferedImage flippedImage;
-        Graphics2D g2d;
+        paintEffects(s);
+    }
 
-        if (movingRight) {
-            bufferedImage = (BufferedImage) currentImage;
-            tx = AffineTransform.getScaleInstance(-1, 1);
-            tx.translate(-bufferedImage.getWidth(null), 0);
-            flippedImage = new BufferedImage(bufferedImage.getWidth(), bufferedImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
-            g2d = flippedImage.createGraphics();
-            g2d.drawImage(bufferedImage, tx, null);
-            g2d.dispose();
-            drawImage(flippedImage, spriteX, spriteY, spriteWidth, spriteHeight);
-        } else {
-            drawImage(currentImage, spriteX, spriteY, spriteWidth, spriteHeight);
+    // Draws a grub as a row of pale segments
+    private void paintGrub(double x, double y, double w, double h) {
+        changeColor(GRUB_COLOR);
+        double radius = h / 2;
+        for (double cx = x + radius; cx <= x + w - radius + 1e-6; cx += radius) {
+            drawSolidCircle(cx, y + radius, radius);
         }
     }
 
+    // Starts the effects for new landings, then moves and draws every particle
+    private void paintEffects(Snapshot s) {
+        // Run by game time rather than the clock, so the same game always
+        // looks the same, and a snapshot drawn twice moves nothing
+        double dt = Math.min(0.1, s.time - effectsTime);
+        effectsTime = s.time;
+
+        for (int n = Math.max(dustShown, s.dustCount - DUST_EVENTS); n < s.dustCount; n++) {
+            int k = n % DUST_EVENTS;
+            slamDust.x = s.dustX[k];
+            slamDust.y = s.dustY[k];
+            slamDust.burst(particles, (int)(s.dustSpeed[k] / 3));
+        }
+        dustShown = s.dustCount;
+
+        glow.x = width() / 2.0;
+        glow.y = height() / 2.0;
+        glow.width = width();
+        glow.height = height();
+        glow.rate = 25;
+
+        particles.update(dt);
+        drawParticles(particles, LAYER_EFFECTS);
+    }
+
+    private void paintLoadingScreen(double progress) {
+        changeBackgroundColor(new Color(60, 179, 113));
+        clearBackground(width(), height());
+
+        changeColor(white);
+        drawCenteredText(width() / 2.0, height() / 2.0 - 30, "Loading...", INFO_FONT_LARGE);
+        drawProgressBar(width() / 4.0, height() / 2.0, width() / 2.0, 20, progress);
+    }
+
     @Override
     public void keyPressed(KeyEvent e) {
         int keyCode = e.getKeyCode();
         if (keyCode == KeyEvent.VK_ESCAPE) {
             System.out.println("ESC pressed in game. Placeholder for returning to menu.");
-            if (mFrame != null) {
-                mFrame.dispose();
-            }
-        } else if (keyCode == KeyEvent.VK_LEFT) {
-            moving = true;
-            movingRight = false;
-        } else if (keyCode == KeyEvent.VK_RIGHT) {
-            moving = true;
-            movingRight = true;
-        } else if (keyCode == KeyEvent.VK_UP || keyCode == KeyEvent.VK_SPACE) {
-            if (spriteY == groundY) {
-                verticalVelocity = -300;
-            }
-            moving = true;
-        } else if (keyCode == KeyEvent.VK_DOWN) {
-            moving = true;
+            // Runs on the update thread in THREADED mode, so leave the
+            // sockets and the window to shutdown()
+            closeGame();
         }
+        // Movement reads the key state in update()
     }
 
     @Override
-    public void keyReleased(KeyEvent e) {
-        int keyCode = e.getKeyCode();
-        if (keyCode == KeyEvent.VK_LEFT || keyCode == KeyEvent.VK_RIGHT || keyCode == KeyEvent.VK_UP || keyCode == KeyEvent.VK_DOWN || keyCode == KeyEvent.VK_SPACE) {
-            moving = false;
+    public void shutdown() {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
         }
     }
 
     // Main method for testing
     public static void main(String[] args) {
+        // Load assets from the packed archive when one has been built
+        if (new java.io.File("assets.pak").isFile()) {
+            mountAssetPack("assets.pak");
+        }
+
         KiwiLoreGame game = new KiwiLoreGame(800, 600, GameMode.STORY);
-        GameEngine.createGame(game, 60);
+        GameEngine.createGame(game, 60, LOOP_MODE);
     }
 }
\ No newline at end of file
@@ -1,7 +1,8 @@
 import java.awt.*;
-import java.awt.geom.*;
-import javax.swing.*;
 import java.awt.event.*;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Future;
 // GameEngine imports (assuming GameEngine.java is in the same package or correctly imported)
 
 public class MainMenu extends GameEngine {
@@ -14,16 +15,19 @@ public class MainMenu extends GameEngine {
     }
     private MenuState currentMenuState = MenuState.MAIN;
 
-    // Button regions
-    private Rectangle2D playButtonRect;
-    private Rectangle2D settingsButtonRect;
-    private Rectangle2D muteButtonRect;
-    private Rectangle2D storyModeButtonRect;
-    private Rectangle2D multiplayerButtonRect;
+    // One retained UI layer per menu page. Each keeps its page drawn in a
+    // cached image, and only widgets that change are drawn again.
+    private final Map<MenuState, UILayer> layers = new EnumMap<MenuState, UILayer>(MenuState.class);
+    private UILayer.Button muteButton;
+    private UILayer.Button[] resolutionButtons;
+
+    // Page and window size the screen currently shows
+    private MenuState shownState = null;
+    private int layoutWidth = -1, layoutHeight = -1;
+    private Point lastMousePosition = new Point(-1, -1);
 
     // Resolution settings
     private Dimension[] availableResolutions;
-    private Rectangle2D[] resolutionButtonRects;
     private Dimension currentResolution;
 
     // Button text
@@ -31,27 +35,31 @@ public class MainMenu extends GameEngine {
     private final String settingsButtonText = "Settings";
     private final String storyModeButtonText = "Story Mode";
     private final String multiplayerButtonText = "Multiplayer";
-    private String muteButtonDisplayString = "🔊";
 
     // Music state
-    private AudioClip backgroundMusic;
+    private static final String BACKGROUND_MUSIC = "sounds/background_music.wav";
     private boolean isMuted = false;
 
     // Background Image
     private Image backgroundImage; // Added for background image
 
+    // Background loading
+    private AssetManager assets;
+    private Future<Image> backgroundLoad;
+    private boolean loaded = false;
+
     // Constants for button styling and layout
     private final int BUTTON_WIDTH = 220;
     private final int BUTTON_HEIGHT = 60;
     private final int MUTE_BUTTON_SIZE = 45;
     private final int RESOLUTION_BUTTON_WIDTH = 200;
     private final int RESOLUTION_BUTTON_HEIGHT = 40;
-    private final Font BUTTON_FONT = new Font("Arial", Font.BOLD, 28);
-    private final Font TITLE_FONT = new Font("Arial", Font.BOLD, 70);
-    private final Font MUTE_BUTTON_FONT = new Font("Arial", Font.PLAIN, 28);
-    private final Font INFO_FONT = new Font("Arial", Font.PLAIN, 18);
-    private final Font SUB_HEADER_FONT = new Font("Arial", Font.BOLD, 40);
-    private final Font RESOLUTION_FONT = new Font("Arial", Font.PLAIN, 18);
+    private final Font BUTTON_FONT = getFont("Arial", Font.BOLD, 28);
+    private final Font TITLE_FONT = getFont("Arial", Font.BOLD, 70);
+    private final Font MUTE_BUTTON_FONT = getFont("Arial", Font.PLAIN, 28);
+    private final Font INFO_FONT = getFont("Arial", Font.PLAIN, 18);
+    private final Font SUB_HEADER_FONT = getFont("Arial", Font.BOLD, 40);
+    private final Font RESOLUTION_FONT = getFont("Arial", Font.PLAIN, 18);
 
 
     /**
@@ -73,14 +81,10 @@ public class MainMenu extends GameEngine {
             mFrame.setTitle("KIWI LORE - Main Menu");
         }
 
-        // Load background image
+        // Start loading the background image; update() picks it up when done
         // IMPORTANT: Place 'background.png' in the root directory of your compiled classes.
-        backgroundImage = loadImage("background.png");
-        if (backgroundImage == null) {
-            System.out.println("Warning: 'background.png' not found. Will use solid color background.");
-            // The GameEngine's loadImage already prints an error and exits if critical.
-            // If it were to return null without exiting, we'd need a fallback here.
-        }
+        assets = new AssetManager();
+        backgroundLoad = assets.loadImage("background.png");
 
 
         availableResolutions = new Dimension[] {
@@ -99,51 +103,96 @@ public class MainMenu extends GameEngine {
         if (!initialResFound) {
             // currentResolution keeps its constructor-set value.
         }
+    }
 
-        resolutionButtonRects = new Rectangle2D[availableResolutions.length];
-        recalculateButtonPositions();
-
-        updateMuteButtonText();
+    /**
+     * Takes the background image once it has finished loading and starts the music.
+     */
+    private void finishLoading() {
+        backgroundImage = AssetManager.get(backgroundLoad);
+        if (backgroundImage == null) {
+            System.out.println("Warning: 'background.png' not found. Will use solid color background.");
+        }
 
-        backgroundMusic = loadAudio("sounds/background_music.wav");
-        if (backgroundMusic != null) {
-            if (!isMuted) {
-                startAudioLoop(backgroundMusic, -10.0f);
-            }
-        } else {
-            System.out.println("Warning: 'sounds/background_music.wav' not found. Background music will not play.");
+        // The music streams from disk, so there is nothing to load up front
+        if (!isMuted && !playMusic(BACKGROUND_MUSIC, -10.0f)) {
+            System.out.println("Warning: '" + BACKGROUND_MUSIC + "' could not be played. Background music will not play.");
         }
+
+        // From now on only the parts of the menu that change are repainted
+        buildLayers();
+        setRepaintEveryFrame(false);
+
+        loaded = true;
     }
 
     /**
-     * Recalculates positions of all UI elements.
+     * Builds the widgets of every menu page for the current window size.
      */
-    private void recalculateButtonPositions() {
-        int centerX = width() / 2;
-
-        int playButtonY = height() / 2 - BUTTON_HEIGHT - 20;
-        int settingsButtonY = height() / 2 + BUTTON_HEIGHT / 2 + 10;
-        playButtonRect = new Rectangle2D.Double(centerX - BUTTON_WIDTH / 2, playButtonY, BUTTON_WIDTH, BUTTON_HEIGHT);
-        settingsButtonRect = new Rectangle2D.Double(centerX - BUTTON_WIDTH / 2, settingsButtonY, BUTTON_WIDTH, BUTTON_HEIGHT);
-
-        int storyModeButtonY = height() / 2 - BUTTON_HEIGHT - 5;
-        int multiplayerButtonY = height() / 2 + BUTTON_HEIGHT / 2 - 5;
-        storyModeButtonRect = new Rectangle2D.Double(centerX - BUTTON_WIDTH / 2, storyModeButtonY, BUTTON_WIDTH, BUTTON_HEIGHT);
-        multiplayerButtonRect = new Rectangle2D.Double(centerX - BUTTON_WIDTH / 2, multiplayerButtonY, BUTTON_WIDTH, BUTTON_HEIGHT);
-
-        muteButtonRect = new Rectangle2D.Double(width() - MUTE_BUTTON_SIZE - 20, height() - MUTE_BUTTON_SIZE - 20, MUTE_BUTTON_SIZE, MUTE_BUTTON_SIZE);
-
-        int firstResButtonY = height() / 2 - 30 + 40;
-        if (availableResolutions != null && resolutionButtonRects != null) {
-            for (int i = 0; i < availableResolutions.length; i++) {
-                resolutionButtonRects[i] = new Rectangle2D.Double(
-                        centerX - RESOLUTION_BUTTON_WIDTH / 2,
-                        firstResButtonY + i * (RESOLUTION_BUTTON_HEIGHT + 10),
-                        RESOLUTION_BUTTON_WIDTH,
-                        RESOLUTION_BUTTON_HEIGHT
-                );
-            }
+    private void buildLayers() {
+        int w = width();
+        int h = height();
+        int centerX = w / 2;
+        layoutWidth = w;
+        layoutHeight = h;
+
+        Color textPanel = new Color(200, 200, 200, 180); // Light gray, semi-transparent
+
+        // Shared by every page
+        muteButton = new UILayer.Button(w - MUTE_BUTTON_SIZE - 20, h - MUTE_BUTTON_SIZE - 20, MUTE_BUTTON_SIZE, MUTE_BUTTON_SIZE,
+                "", MUTE_BUTTON_FONT, new Color(100, 100, 100, 200), white, () -> toggleMute());
+        muteButton.setSelectedColor(new Color(150, 150, 150, 200));
+        updateMuteButton();
+
+        layers.clear();
+        for (MenuState state : MenuState.values()) {
+            UILayer layer = new UILayer();
+            layer.setBackground(backgroundImage, new Color(135, 206, 250)); // Fallback color
+
+            // Game Title "KIWI LORE", light yellow with a dark semi-transparent shadow
+            layer.add(new UILayer.Label(0, 30, w, 90, "KIWI LORE", TITLE_FONT,
+                    new Color(255, 255, 224), new Color(50, 50, 50, 150), null));
+            layers.put(state, layer);
         }
+
+        // Main page
+        UILayer main = layers.get(MenuState.MAIN);
+        main.add(new UILayer.Button(centerX - BUTTON_WIDTH / 2, h / 2 - BUTTON_HEIGHT - 20, BUTTON_WIDTH, BUTTON_HEIGHT,
+                playButtonText, BUTTON_FONT, new Color(34, 139, 34, 220), white, () -> showState(MenuState.GAME_MODE_SELECTION)));
+        main.add(new UILayer.Button(centerX - BUTTON_WIDTH / 2, h / 2 + BUTTON_HEIGHT / 2 + 10, BUTTON_WIDTH, BUTTON_HEIGHT,
+                settingsButtonText, BUTTON_FONT, new Color(255, 165, 0, 220), white, () -> showState(MenuState.SETTINGS)));
+
+        // Game mode page
+        UILayer modes = layers.get(MenuState.GAME_MODE_SELECTION);
+        modes.add(new UILayer.Label(centerX - 220, h / 2 - BUTTON_HEIGHT - 80, 440, 60, "Select Game Mode", SUB_HEADER_FONT, black, null, textPanel));
+        modes.add(new UILayer.Button(centerX - BUTTON_WIDTH / 2, h / 2 - BUTTON_HEIGHT - 5, BUTTON_WIDTH, BUTTON_HEIGHT,
+                storyModeButtonText, BUTTON_FONT, new Color(70, 130, 180, 220), white, () -> startGame(KiwiLoreGame.GameMode.STORY)));
+        modes.add(new UILayer.Button(centerX - BUTTON_WIDTH / 2, h / 2 + BUTTON_HEIGHT / 2 - 5, BUTTON_WIDTH, BUTTON_HEIGHT,
+                multiplayerButtonText, BUTTON_FONT, new Color(220, 20, 60, 220), white, () -> startGame(KiwiLoreGame.GameMode.MULTIPLAYER)));
+        modes.add(new UILayer.Label(centerX - 150, h - 80, 300, 40, "Press ESC to go back", INFO_FONT, black, null, textPanel));
+
+        // Settings page
+        UILayer settings = layers.get(MenuState.SETTINGS);
+        settings.add(new UILayer.Label(centerX - 200, h / 2 - 210, 400, 60, "Settings", SUB_HEADER_FONT, black, null, textPanel));
+        settings.add(new UILayer.Label(centerX - 200, h / 2 - 150, 400, 60, "Resolution:", BUTTON_FONT, black, null, textPanel));
+        resolutionButtons = new UILayer.Button[availableResolutions.length];
+        for (int i = 0; i < availableResolutions.length; i++) {
+            final Dimension res = availableResolutions[i];
+            resolutionButtons[i] = settings.add(new UILayer.Button(centerX - RESOLUTION_BUTTON_WIDTH / 2,
+                    h / 2 + 10 + i * (RESOLUTION_BUTTON_HEIGHT + 10), RESOLUTION_BUTTON_WIDTH, RESOLUTION_BUTTON_HEIGHT,
+                    res.width + " x " + res.height, RESOLUTION_FONT, new Color(180, 180, 220, 220), black, () -> selectResolution(res)));
+            resolutionButtons[i].setSelectedColor(new Color(100, 180, 100, 230)); // Highlight with transparency
+            resolutionButtons[i].setSelected(res.equals(currentResolution));
+        }
+        settings.add(new UILayer.Label(centerX - 150, h - 80, 300, 40, "Press ESC to go back", INFO_FONT, black, null, textPanel));
+
+        for (UILayer layer : layers.values()) {
+            layer.add(muteButton);
+        }
+
+        // The whole screen has to be drawn again
+        shownState = null;
+        layers.get(currentMenuState).mouseMoved(lastMousePosition.x, lastMousePosition.y);
     }
 
     /**
@@ -152,7 +201,27 @@ public class MainMenu extends GameEngine {
      */
     @Override
     public void update(double dt) {
-        // No dynamic updates needed.
+        // Pick up the assets once they have loaded
+        if (!loaded) {
+            if (assets.isDone()) {
+                finishLoading();
+            }
+            return;
+        }
+
+        // Lay the pages out again once the window has been resized
+        if (width() != layoutWidth || height() != layoutHeight) {
+            buildLayers();
+        }
+
+        // Redraw what changed into the page's cached image, and only repaint that
+        Rectangle changed = layers.get(currentMenuState).validate(width(), height());
+        if (shownState != currentMenuState) {
+            shownState = currentMenuState;
+            repaint();
+        } else if (changed != null) {
+            repaint(changed.x, changed.y, changed.width, changed.height);
+        }
     }
 
     /**
@@ -165,170 +234,70 @@ public class MainMenu extends GameEngine {
             return;
         }
 
-        // Draw background image if loaded, otherwise a solid color
-        if (backgroundImage != null) {
-            drawImage(backgroundImage, 0, 0, width(), height()); // Draw stretched to fit
-        } else {
-            changeBackgroundColor(new Color(135, 206, 250)); // Fallback color
-            clearBackground(width(), height());
-        }
-
-        // Draw Game Title "KIWI LORE"
-        // Set title color to be visible against potentially dark backgrounds
-        changeColor(new Color(255, 255, 224)); // Light Yellow, good contrast
-        // Add a slight shadow for better readability on complex backgrounds
-        String gameTitle = "KIWI LORE";
-        FontMetrics titleFm = mGraphics.getFontMetrics(TITLE_FONT);
-        int titleWidth = titleFm.stringWidth(gameTitle);
-        int titleX = (width() - titleWidth) / 2;
-        int titleY = 100;
-
-        // Shadow
-        changeColor(new Color(50,50,50,150)); // Dark semi-transparent shadow
-        drawBoldText(titleX + 3, titleY + 3, gameTitle, TITLE_FONT.getName(), TITLE_FONT.getSize());
-        // Actual Title
-        changeColor(new Color(255, 255, 224));
-        drawBoldText(titleX, titleY, gameTitle, TITLE_FONT.getName(), TITLE_FONT.getSize());
-
-
-        if (currentMenuState == MenuState.MAIN) {
-            paintMainMenu();
-        } else if (currentMenuState == MenuState.SETTINGS) {
-            paintSettingsMenu();
-        } else if (currentMenuState == MenuState.GAME_MODE_SELECTION) {
-            paintGameModeSelectionMenu();
+        if (!loaded) {
+            paintLoadingScreen();
+            return;
         }
 
-        paintMuteButton();
+        // The page is already drawn, Swing clips this to the repainted region
+        layers.get(currentMenuState).paint(mGraphics, width(), height());
     }
 
-    private void paintMainMenu() {
-        // Play Button
-        changeColor(new Color(34, 139, 34, 220)); // ForestGreen with some transparency
-        drawSolidRectangle(playButtonRect.getX(), playButtonRect.getY(), playButtonRect.getWidth(), playButtonRect.getHeight());
-        changeColor(white);
-        drawCenteredText(playButtonText, playButtonRect, BUTTON_FONT);
-
-        // Settings Button
-        changeColor(new Color(255, 165, 0, 220)); // Orange with some transparency
-        drawSolidRectangle(settingsButtonRect.getX(), settingsButtonRect.getY(), settingsButtonRect.getWidth(), settingsButtonRect.getHeight());
-        changeColor(white);
-        drawCenteredText(settingsButtonText, settingsButtonRect, BUTTON_FONT);
-    }
-
-    private void paintGameModeSelectionMenu() {
-        // Background for text for better readability
-        drawTextBackground(width()/2.0 - 200, height() / 2.0 - BUTTON_HEIGHT - 80, 400, 60);
-
-        changeColor(black);
-        String selectModeHeader = "Select Game Mode";
-        FontMetrics headerFm = mGraphics.getFontMetrics(SUB_HEADER_FONT);
-        int headerWidth = headerFm.stringWidth(selectModeHeader);
-        drawBoldText((width() - headerWidth) / 2.0, height() / 2.0 - BUTTON_HEIGHT - 50, selectModeHeader, SUB_HEADER_FONT.getName(), SUB_HEADER_FONT.getSize());
+    private void paintLoadingScreen() {
+        changeBackgroundColor(new Color(135, 206, 250));
+        clearBackground(width(), height());
 
-        // Story Mode Button
-        changeColor(new Color(70, 130, 180, 220)); // SteelBlue with transparency
-        drawSolidRectangle(storyModeButtonRect.getX(), storyModeButtonRect.getY(), storyModeButtonRect.getWidth(), storyModeButtonRect.getHeight());
         changeColor(white);
-        drawCenteredText(storyModeButtonText, storyModeButtonRect, BUTTON_FONT);
-
-        // Multiplayer Button
-        changeColor(new Color(220, 20, 60, 220)); // Crimson with transparency
-        drawSolidRectangle(multiplayerButtonRect.getX(), multiplayerButtonRect.getY(), multiplayerButtonRect.getWidth(), multiplayerButtonRect.getHeight());
-        changeColor(white);
-        drawCenteredText(multiplayerButtonText, multiplayerButtonRect, BUTTON_FONT);
-
-        drawTextBackground(width()/2.0 - 150, height() - 80, 300, 40);
-        changeColor(black);
-        String escText = "Press ESC to go back";
-        FontMetrics infoFm = mGraphics.getFontMetrics(INFO_FONT);
-        int escTextWidth = infoFm.stringWidth(escText);
-        drawText((width() - escTextWidth) / 2.0, height() - 55, escText, INFO_FONT.getName(), INFO_FONT.getSize());
+        drawCenteredText(width() / 2.0, height() / 2.0 - 30, "Loading...", SUB_HEADER_FONT);
+        drawProgressBar(width() / 4.0, height() / 2.0, width() / 2.0, 20, assets.getProgress());
     }
 
-    private void paintSettingsMenu() {
-        // Background for text for better readability
-        drawTextBackground(width()/2.0 - 200, height() / 2.0 - 210, 400, 60);
-        drawTextBackground(width()/2.0 - 200, height() / 2.0 - 150, 400, 60);
-
-
-        changeColor(black);
-        String settingsHeader = "Settings";
-        FontMetrics headerFm = mGraphics.getFontMetrics(SUB_HEADER_FONT);
-        int headerWidth = headerFm.stringWidth(settingsHeader);
-        drawBoldText((width() - headerWidth) / 2.0, height() / 2.0 - 180, settingsHeader, SUB_HEADER_FONT.getName(), SUB_HEADER_FONT.getSize());
-
-        String resolutionLabel = "Resolution:";
-        FontMetrics resLabelFm = mGraphics.getFontMetrics(BUTTON_FONT);
-        int resLabelWidth = resLabelFm.stringWidth(resolutionLabel);
-        drawBoldText((width() - resLabelWidth) / 2.0, height() / 2.0 - 120, resolutionLabel, BUTTON_FONT.getName(), BUTTON_FONT.getSize());
-
-
-        if (availableResolutions != null && resolutionButtonRects != null) {
-            for (int i = 0; i < availableResolutions.length; i++) {
-                Dimension res = availableResolutions[i];
-                if (i < resolutionButtonRects.length && resolutionButtonRects[i] != null) {
-                    Rectangle2D btnRect = resolutionButtonRects[i];
-                    String resText = res.width + " x " + res.height;
-
-                    if (res.equals(currentResolution)) {
-                        changeColor(new Color(100, 180, 100, 230)); // Highlight with transparency
-                    } else {
-                        changeColor(new Color(180, 180, 220, 220)); // Others with transparency
-                    }
-                    drawSolidRectangle(btnRect.getX(), btnRect.getY(), btnRect.getWidth(), btnRect.getHeight());
-                    changeColor(black); // Text color
-                    drawCenteredText(resText, btnRect, RESOLUTION_FONT);
-                }
-            }
+    /**
+     * Switches to another menu page.
+     * @param state The page to show.
+     */
+    private void showState(MenuState state) {
+        if (state == currentMenuState) {
+            return;
         }
-
-        drawTextBackground(width()/2.0 - 150, height() - 80, 300, 40);
-        changeColor(black);
-        String escText = "Press ESC to go back";
-        FontMetrics infoFm = mGraphics.getFontMetrics(INFO_FONT);
-        int escTextWidth = infoFm.stringWidth(escText);
-        drawText((width() - escTextWidth) / 2.0, height() - 55, escText, INFO_FONT.getName(), INFO_FONT.getSize());
+        layers.get(currentMenuState).resetMouse();
+        currentMenuState = state;
+        layers.get(state).mouseMoved(lastMousePosition.x, lastMousePosition.y);
     }
 
     /**
-     * Helper method to draw a semi-transparent background for text elements.
-     * @param x The x-coordinate of the background.
-     * @param y The y-coordinate of the background.
-     * @param w The width of the background.
-     * @param h The height of the background.
+     * Turns the background music off or on.
      */
-    private void drawTextBackground(double x, double y, double w, double h) {
-        saveCurrentTransform(); // Save current graphics state
-        changeColor(new Color(200, 200, 200, 180)); // Light gray, semi-transparent
-        drawSolidRectangle(x, y, w, h);
-        restoreLastTransform(); // Restore graphics state (especially color)
-    }
-
-
-    private void paintMuteButton() {
-        if (muteButtonRect == null) recalculateButtonPositions();
-        changeColor(isMuted ? new Color(150, 150, 150, 200) : new Color(100, 100, 100, 200)); // With transparency
-        drawSolidRectangle(muteButtonRect.getX(), muteButtonRect.getY(), muteButtonRect.getWidth(), muteButtonRect.getHeight());
-        changeColor(white);
-        drawCenteredText(muteButtonDisplayString, muteButtonRect, MUTE_BUTTON_FONT);
+    private void toggleMute() {
+        isMuted = !isMuted;
+        updateMuteButton();
+        if (isMuted) {
+            stopMusic();
+            System.out.println("Background music muted.");
+        } else {
+            playMusic(BACKGROUND_MUSIC, -10.0f, 0);
+            System.out.println("Background music unmuted.");
+        }
     }
 
-    private void drawCenteredText(String text, Rectangle2D rect, Font font) {
-        if (mGraphics == null || rect == null) return;
-        FontMetrics fm = mGraphics.getFontMetrics(font);
-        int textWidth = fm.stringWidth(text);
-        int textHeight = fm.getAscent() - fm.getDescent();
-
-        double x = rect.getX() + (rect.getWidth() - textWidth) / 2;
-        double y = rect.getY() + (rect.getHeight() - textHeight) / 2 + fm.getAscent();
-
-        mGraphics.setFont(font);
-        mGraphics.drawString(text, (int)x, (int)y);
+    private void updateMuteButton() {
+        muteButton.setText(isMuted ? "🔇" : "🔊");
+        muteButton.setSelected(isMuted);
     }
 
-    private void updateMuteButtonText() {
-        muteButtonDisplayString = isMuted ? "🔇" : "🔊";
+    /**
+     * Changes the window to the given resolution. The pages are laid out
+     * again in update() once the window has its new size.
+     * @param selectedRes The resolution to change to.
+     */
+    private void selectResolution(Dimension selectedRes) {
+        if (!selectedRes.equals(currentResolution)) {
+            currentResolution = selectedRes;
+            for (int i = 0; i < resolutionButtons.length; i++) {
+                resolutionButtons[i].setSelected(availableResolutions[i].equals(currentResolution));
+            }
+            setWindowSize(selectedRes.width, selectedRes.height);
+        }
     }
 
     private void startGame(KiwiLoreGame.GameMode mode) {
@@ -336,63 +305,40 @@ public class MainMenu extends GameEngine {
         if (mFrame != null) {
             mFrame.dispose();
         }
-        if (backgroundMusic != null && backgroundMusic.getLoopClip() != null && backgroundMusic.getLoopClip().isRunning()) {
-            stopAudioLoop(backgroundMusic);
-        }
+        // Fade the menu music out as the game starts
+        stopMusic(1.0);
 
         KiwiLoreGame actualGame = new KiwiLoreGame(currentResolution.width, currentResolution.height, mode);
-        GameEngine.createGame(actualGame, 60);
+        GameEngine.createGame(actualGame, 60, KiwiLoreGame.LOOP_MODE);
     }
 
     @Override
     public void mousePressed(MouseEvent e) {
-        Point clickPoint = e.getPoint();
-
-        if (muteButtonRect != null && muteButtonRect.contains(clickPoint)) {
-            isMuted = !isMuted;
-            updateMuteButtonText();
-            if (backgroundMusic != null) {
-                if (isMuted) {
-                    if(backgroundMusic.getLoopClip() != null && backgroundMusic.getLoopClip().isRunning()) {
-                        stopAudioLoop(backgroundMusic);
-                    }
-                    System.out.println("Background music muted.");
-                } else {
-                    startAudioLoop(backgroundMusic, -10.0f);
-                    System.out.println("Background music unmuted.");
-                }
-            }
-            return;
+        if (loaded) {
+            layers.get(currentMenuState).mousePressed(e.getX(), e.getY());
         }
+    }
 
-        if (currentMenuState == MenuState.MAIN) {
-            if (playButtonRect.contains(clickPoint)) {
-                currentMenuState = MenuState.GAME_MODE_SELECTION;
-                recalculateButtonPositions();
-            } else if (settingsButtonRect.contains(clickPoint)) {
-                currentMenuState = MenuState.SETTINGS;
-                recalculateButtonPositions();
-            }
-        } else if (currentMenuState == MenuState.GAME_MODE_SELECTION) {
-            if (storyModeButtonRect.contains(clickPoint)) {
-                startGame(KiwiLoreGame.GameMode.STORY);
-            } else if (multiplayerButtonRect.contains(clickPoint)) {
-                startGame(KiwiLoreGame.GameMode.MULTIPLAYER);
-            }
-        } else if (currentMenuState == MenuState.SETTINGS) {
-            if (resolutionButtonRects != null) {
-                for (int i = 0; i < resolutionButtonRects.length; i++) {
-                    if (resolutionButtonRects[i] != null && resolutionButtonRects[i].contains(clickPoint)) {
-                        Dimension selectedRes = availableResolutions[i];
-                        if (!selectedRes.equals(currentResolution)) {
-                            currentResolution = selectedRes;
-                            setWindowSize(selectedRes.width, selectedRes.height);
-                            recalculateButtonPositions();
-                        }
-                        return;
-                    }
-                }
-            }
+    @Override
+    public void mouseReleased(MouseEvent e) {
+        if (loaded) {
+            layers.get(currentMenuState).mouseReleased();
+        }
+    }
+
+    @Override
+    public void mouseMoved(MouseEvent e) {
+        lastMousePosition = e.getPoint();
+        if (loaded) {
+            layers.get(currentMenuState).mouseMoved(e.getX(), e.getY());
+        }
+    }
+
+    @Override
+    public void mouseExited(MouseEvent e) {
+        lastMousePosition = new Point(-1, -1);
+        if (loaded) {
+            layers.get(currentMenuState).mouseMoved(-1, -1);
         }
     }
 
@@ -400,15 +346,17 @@ public class MainMenu extends GameEngine {
     public void keyPressed(KeyEvent e) {
         if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
             if (currentMenuState == MenuState.SETTINGS || currentMenuState == MenuState.GAME_MODE_SELECTION) {
-                currentMenuState = MenuState.MAIN;
-                recalculateButtonPositions();
+                showState(MenuState.MAIN);
             }
         }
     }
 
-
-
     public static void main(String[] args) {
+        // Load assets from the packed archive when one has been built
+        if (new java.io.File("assets.pak").isFile()) {
+            mountAssetPack("assets.pak");
+        }
+
         MainMenu gameMenu = new MainMenu(800, 600);
         GameEngine.createGame(gameMenu, 60);
     }
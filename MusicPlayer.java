@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.*;
+
+// Streams music from disk (or a mounted AssetPack) through the AudioMixer.
+// Each track is decoded on its own background thread into a small ring
+// buffer, which the mixer thread drains, so memory use does not depend on
+// the length of the track. Tracks loop without a gap, and starting a new
+// track crossfades from the old one.
+public class MusicPlayer {
+    // Length of each track's ring buffer (half a second)
+    static final int RING_FRAMES = (int)(AudioMixer.SAMPLE_RATE / 2);
+
+    // Bytes decoded from disk at a time
+    static final int DECODE_BYTES = 4096;
+
+    // One streaming track
+    static class Track implements Runnable {
+        final String filename;
+        final boolean loop;
+
+        // Interleaved stereo samples shared between the decoder and the mixer.
+        // Positions count samples written and read since the track started.
+        final short[] ring = new short[RING_FRAMES * AudioMixer.CHANNELS];
+        volatile long written = 0;
+        volatile long read = 0;
+        volatile boolean finished = false;
+        volatile boolean stopped = false;
+
+        // Linear gain and where it is heading, only touched by the mixer thread
+        // (apart from fade(), which is called under the player's lock)
+        float gain;
+        float targetGain;
+        float gainStep;
+
+        Track(String filename, boolean loop) {
+            this.filename = filename;
+            this.loop = loop;
+        }
+
+        // Starts moving the gain towards target over the given number of frames
+        void fade(float target, int frames) {
+            targetGain = target;
+            gainStep = (frames <= 0) ? Float.MAX_VALUE : Math.abs(target - gain) / frames;
+        }
+
+        // Decoder thread: fills the ring buffer until the track ends or is stopped
+        @Override
+        public void run() {
+            byte[] bytes = new byte[DECODE_BYTES];
+            try {
+                long decoded;
+                do {
+                    decoded = 0;
+                    try (AudioInputStream stream = open(filename)) {
+                        int n;
+                        while (!stopped && (n = readFully(stream, bytes)) > 0) {
+                            write(bytes, n / 2);
+                            decoded += n;
+                        }
+                    }
+
+                    // A track with no samples would reopen the file forever
+                    if (decoded == 0 && !stopped) {
+                        System.out.println("Error: music " + filename + " has no samples to play");
+                    }
+                } while (loop && !stopped && decoded > 0);
+            } catch (Exception e) {
+                System.out.println("Error: could not stream music " + filename + ": " + e.getMessage());
+            }
+            finished = true;
+        }
+
+        // Copies count little-endian samples into the ring, waiting for space
+        void write(byte[] bytes, int count) {
+            int capacity = ring.length;
+            int i = 0;
+            while (i < count && !stopped) {
+                long space = capacity - (written - read);
+                if (space <= 0) {
+                    // Ring is full, wait for the mixer to catch up
+                    sleepQuietly(5);
+                    continue;
+                }
+
+                long position = written;
+                int n = (int)Math.min(space, count - i);
+                for (int k = 0; k < n; k++) {
+                    ring[(int)((position + k) % capacity)] = (short)((bytes[2 * (i + k)] & 0xff) | (bytes[2 * (i + k) + 1] << 8));
+                }
+                written = position + n;
+                i += n;
+            }
+        }
+
+        // Adds up to accumulator.length samples into the accumulator.
+        // Returns false once the track is silent and can be dropped.
+        boolean mixInto(int[] accumulator) {
+            int capacity = ring.length;
+            long position = read;
+            long available = written - position;
+            int frames = accumulator.length / AudioMixer.CHANNELS;
+
+            for (int f = 0; f < frames; f++) {
+                // Move the gain one step towards the target
+                if (gain < targetGain) {
+                    gain = Math.min(targetGain, gain + gainStep);
+                } else if (gain > targetGain) {
+                    gain = Math.max(targetGain, gain - gainStep);
+                }
+
+                for (int c = 0; c < AudioMixer.CHANNELS; c++) {
+                    if (available <= 0) {
+                        break; // Underrun, play silence
+                    }
+                    accumulator[f * AudioMixer.CHANNELS + c] += (int)(ring[(int)(position % capacity)] * gain);
+                    position++;
+                    available--;
+                }
+            }
+            read = position;
+
+            // Done when faded out, or when the decoder has finished and the ring is empty
+            if (targetGain == 0 && gain == 0) {
+                stopped = true;
+                return false;
+            }
+            return !(finished && read >= written);
+        }
+    }
+
+    // The track fading in or playing, and the one fading out
+    Track mCurrent;
+    Track mPrevious;
+
+    // Plays filename on loop, crossfading from the current track over fadeSeconds.
+    // volume is in decibels.
+    public synchronized void play(String filename, float volume, double fadeSeconds) {
+        int fadeFrames = (int)(fadeSeconds * AudioMixer.SAMPLE_RATE);
+
+        // Fade out the current track, dropping any track that was already fading out
+        if (mPrevious != null) {
+            mPrevious.stopped = true;
+        }
+        mPrevious = mCurrent;
+        if (mPrevious != null) {
+            mPrevious.fade(0f, fadeFrames);
+        }
+
+        // Start the new track silent and fade it in
+        Track track = new Track(filename, true);
+        track.gain = (fadeFrames <= 0) ? toGain(volume) : 0f;
+        track.fade(toGain(volume), fadeFrames);
+        mCurrent = track;
+
+        Thread decoder = new Thread(track, "MusicDecoder");
+        decoder.setDaemon(true);
+        decoder.start();
+    }
+
+    // Fades out the current track over fadeSeconds
+    public synchronized void stop(double fadeSeconds) {
+        int fadeFrames = (int)(fadeSeconds * AudioMixer.SAMPLE_RATE);
+        if (mCurrent != null) {
+            mCurrent.fade(0f, fadeFrames);
+            if (mPrevious != null) {
+                mPrevious.stopped = true;
+            }
+            mPrevious = mCurrent;
+            mCurrent = null;
+        }
+    }
+
+    // Sets the volume of the current track, in decibels
+    public synchronized void setVolume(float volume) {
+        if (mCurrent != null) {
+            mCurrent.fade(toGain(volume), 0);
+        }
+    }
+
+    // Returns true if a track is playing
+    public synchronized boolean isPlaying() {
+        return mCurrent != null;
+    }
+
+    // Called by the mixer thread to add the music to a block
+    synchronized void mixInto(int[] accumulator) {
+        if (mPrevious != null && !mPrevious.mixInto(accumulator)) {
+            mPrevious = null;
+        }
+        if (mCurrent != null && !mCurrent.mixInto(accumulator)) {
+            mCurrent = null;
+        }
+    }
+
+    //-------------------------------------------------------
+    // Helpers
+    //-------------------------------------------------------
+
+    // Opens filename decoded to the mixer's format
+    static AudioInputStream open(String filename) throws IOException, UnsupportedAudioFileException {
+        AudioInputStream source = AudioSystem.getAudioInputStream(AssetPack.open(filename));
+        AudioFormat format = source.getFormat();
+
+        // Decode to plain PCM first, then convert rate and channels
+        if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED || format.getSampleSizeInBits() != 16) {
+            AudioFormat pcm = new AudioFormat(format.getSampleRate(), 16, format.getChannels(), true, false);
+            source = AudioSystem.getAudioInputStream(pcm, source);
+        }
+        return AudioSystem.getAudioInputStream(AudioMixer.FORMAT, source);
+    }
+
+    // Reads until bytes is full or the stream ends, keeping whole samples
+    static int readFully(InputStream stream, byte[] bytes) throws IOException {
+        int total = 0;
+        while (total < bytes.length) {
+            int n = stream.read(bytes, total, bytes.length - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total - (total % 2);
+    }
+
+    static float toGain(float volume) {
+        return (float)Math.pow(10.0, volume / 20.0);
+    }
+
+    static void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
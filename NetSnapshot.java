@@ -0,0 +1,173 @@
+import java.nio.ByteBuffer;
+
+// The state of every kiwi in a multiplayer match at one server tick, and
+// its compact binary form.
+// Positions are kept as whole 1/8 pixel steps so the server and clients
+// agree exactly on what was sent. A snapshot is written as the changes
+// from a baseline snapshot the client already has, so kiwis standing still
+// cost nothing and moving ones usually cost a byte or two per axis.
+//
+// Delta layout, after the packet header:
+//   present  byte     bit per player in the match
+//   changed  byte     bit per present player with any field written below
+//   per changed player:
+//     fields byte     CHANGED_ bits
+//     x, y            zigzag varint difference from the baseline
+//     frame, flags    byte each
+public class NetSnapshot {
+    // Most kiwis in one match
+    public static final int MAX_PLAYERS = 8;
+
+    // Positions are sent in steps of 1/POSITION_SCALE pixels
+    public static final double POSITION_SCALE = 8.0;
+
+    // Fields written for a changed player
+    static final int CHANGED_X = 1;
+    static final int CHANGED_Y = 1 << 1;
+    static final int CHANGED_FRAME = 1 << 2;
+    static final int CHANGED_FLAGS = 1 << 3;
+
+    // Server tick this is the state at
+    public int tick = -1;
+
+    // Bit per player in the match
+    public int present = 0;
+
+    // Per player: position in 1/8 pixels, animation frame and EntityStore flags
+    public final int[] x = new int[MAX_PLAYERS];
+    public final int[] y = new int[MAX_PLAYERS];
+    public final int[] frame = new int[MAX_PLAYERS];
+    public final int[] flags = new int[MAX_PLAYERS];
+
+    // Returns true if player is in the match
+    public boolean has(int player) {
+        return (present & (1 << player)) != 0;
+    }
+
+    // Returns the player's position in pixels
+    public double getX(int player) {
+        return x[player] / POSITION_SCALE;
+    }
+
+    public double getY(int player) {
+        return y[player] / POSITION_SCALE;
+    }
+
+    // Sets the player's state, rounding its position to what can be sent
+    public void set(int player, double px, double py, int animFrame, int entityFlags) {
+        present |= 1 << player;
+        x[player] = (int)Math.round(px * POSITION_SCALE);
+        y[player] = (int)Math.round(py * POSITION_SCALE);
+        frame[player] = animFrame & 0xFF;
+        flags[player] = entityFlags & 0xFF;
+    }
+
+    // Makes this snapshot a copy of other
+    public void copyFrom(NetSnapshot other) {
+        tick = other.tick;
+        present = other.present;
+        System.arraycopy(other.x, 0, x, 0, MAX_PLAYERS);
+        System.arraycopy(other.y, 0, y, 0, MAX_PLAYERS);
+        System.arraycopy(other.frame, 0, frame, 0, MAX_PLAYERS);
+        System.arraycopy(other.flags, 0, flags, 0, MAX_PLAYERS);
+    }
+
+    // Returns true if both snapshots hold the same players in the same state
+    public boolean sameState(NetSnapshot other) {
+        if (present != other.present) {
+            return false;
+        }
+        for (int i = 0; i < MAX_PLAYERS; i++) {
+            if (has(i) && (x[i] != other.x[i] || y[i] != other.y[i] || frame[i] != other.frame[i] || flags[i] != other.flags[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //-------------------------------------------------------
+    // Encoding
+    //-------------------------------------------------------
+
+    // Writes this snapshot as the changes from base, or in full when base is null
+    public void writeDelta(ByteBuffer out, NetSnapshot base) {
+        out.put((byte)present);
+        int changedAt = out.position();
+        out.put((byte)0);
+
+        int changed = 0;
+        for (int i = 0; i < MAX_PLAYERS; i++) {
+            if (!has(i)) {
+                continue;
+            }
+            boolean inBase = base != null && base.has(i);
+            int bx = inBase ? base.x[i] : 0;
+            int by = inBase ? base.y[i] : 0;
+            int bframe = inBase ? base.frame[i] : 0;
+            int bflags = inBase ? base.flags[i] : 0;
+
+            int fields = 0;
+            if (x[i] != bx) fields |= CHANGED_X;
+            if (y[i] != by) fields |= CHANGED_Y;
+            if (frame[i] != bframe) fields |= CHANGED_FRAME;
+            if (flags[i] != bflags) fields |= CHANGED_FLAGS;
+            if (fields == 0 && inBase) {
+                continue;
+            }
+
+            changed |= 1 << i;
+            out.put((byte)fields);
+            if ((fields & CHANGED_X) != 0) putVarInt(out, x[i] - bx);
+            if ((fields & CHANGED_Y) != 0) putVarInt(out, y[i] - by);
+            if ((fields & CHANGED_FRAME) != 0) out.put((byte)frame[i]);
+            if ((fields & CHANGED_FLAGS) != 0) out.put((byte)flags[i]);
+        }
+        out.put(changedAt, (byte)changed);
+    }
+
+    // Reads changes written by writeDelta on top of base (null for a full
+    // snapshot) into this snapshot
+    public void readDelta(ByteBuffer in, NetSnapshot base) {
+        present = in.get() & 0xFF;
+        int changed = in.get() & 0xFF;
+        for (int i = 0; i < MAX_PLAYERS; i++) {
+            boolean inBase = base != null && base.has(i);
+            x[i] = inBase ? base.x[i] : 0;
+            y[i] = inBase ? base.y[i] : 0;
+            frame[i] = inBase ? base.frame[i] : 0;
+            flags[i] = inBase ? base.flags[i] : 0;
+
+            if ((changed & (1 << i)) == 0) {
+                continue;
+            }
+            int fields = in.get();
+            if ((fields & CHANGED_X) != 0) x[i] += getVarInt(in);
+            if ((fields & CHANGED_Y) != 0) y[i] += getVarInt(in);
+            if ((fields & CHANGED_FRAME) != 0) frame[i] = in.get() & 0xFF;
+            if ((fields & CHANGED_FLAGS) != 0) flags[i] = in.get() & 0xFF;
+        }
+    }
+
+    // Writes a signed int in 1 to 5 bytes, small values of either sign being shortest
+    static void putVarInt(ByteBuffer out, int value) {
+        int v = (value << 1) ^ (value >> 31);
+        while ((v & ~0x7F) != 0) {
+            out.put((byte)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte)v);
+    }
+
+    // Reads an int written by putVarInt
+    static int getVarInt(ByteBuffer in) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
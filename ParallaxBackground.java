@@ -0,0 +1,221 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+// A background made of depth layers that scroll at different speeds.
+// Each layer is cut once into accelerated strips as tall as the window,
+// and only the strips that are on screen are drawn. Layers that never
+// move (scroll factor 0) at the back are merged into one image, and when
+// the camera has not moved since the last frame the whole background is
+// drawn from a single cached image, so adding layers does not multiply
+// the fill cost.
+public class ParallaxBackground {
+    // Width of the strips layers are cut into
+    public static final int STRIP_WIDTH = 256;
+
+    // One depth layer
+    public static class Layer {
+        final Image image;
+        final double scrollFactor;
+        final int sourceY;
+        final boolean repeat;
+
+        // Strips cut for the current window height
+        BufferedImage[] strips;
+        int width;
+
+        Layer(Image image, double scrollFactor, int sourceY, boolean repeat) {
+            this.image = image;
+            this.scrollFactor = scrollFactor;
+            this.sourceY = sourceY;
+            this.repeat = repeat;
+            this.width = image.getWidth(null);
+        }
+
+        // Returns the layer's x position for a camera at cameraX
+        double offset(double cameraX) {
+            double x = -cameraX * scrollFactor;
+            if (repeat && width > 0) {
+                x = x % width;
+                if (x > 0) x -= width;
+            }
+            return Math.floor(x);
+        }
+    }
+
+    // Layers from back to front
+    final List<Layer> mLayers = new ArrayList<Layer>();
+
+    // Window size the strips were cut for
+    int mViewportWidth = -1, mViewportHeight = -1;
+
+    // Static layers at the back merged into one image, and how many there are
+    BufferedImage mStaticComposite;
+    int mStaticLayers = 0;
+
+    // The whole background as drawn for mCachedCameraX
+    BufferedImage mFrameCache;
+    double mCachedCameraX = Double.NaN;
+    double mLastCameraX = Double.NaN;
+
+    // Images drawn by the last call to draw
+    int mStripsDrawn = 0;
+
+    // Adds a layer in front of the existing ones. scrollFactor is how fast
+    // it moves relative to the camera (0 never moves, 1 moves with the
+    // level), sourceY is the row of the image shown at the top of the
+    // window, and repeat tiles the image horizontally.
+    public Layer addLayer(Image image, double scrollFactor, int sourceY, boolean repeat) {
+        Layer layer = new Layer(image, scrollFactor, sourceY, repeat);
+        mLayers.add(layer);
+        invalidate();
+        return layer;
+    }
+
+    // Returns the number of strips and cached images drawn by the last call to draw
+    public int getStripsDrawn() {
+        return mStripsDrawn;
+    }
+
+    // Drops every cut strip and cached image, e.g. after changing layers
+    public void invalidate() {
+        mViewportWidth = -1;
+        mViewportHeight = -1;
+    }
+
+    // Draws the background for a camera at cameraX, filling the engine's window
+    public void draw(GameEngine engine, double cameraX) {
+        int w = engine.width();
+        int h = engine.height();
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        if (w != mViewportWidth || h != mViewportHeight) {
+            prepare(w, h);
+        }
+
+        mStripsDrawn = 0;
+        engine.flushSprites();
+        Graphics2D g = engine.mGraphics;
+
+        // The camera has not moved: draw the whole background from one image
+        boolean still = (cameraX == mLastCameraX);
+        mLastCameraX = cameraX;
+        if (still) {
+            if (cameraX != mCachedCameraX) {
+                Graphics2D cache = mFrameCache.createGraphics();
+                cache.setComposite(AlphaComposite.Clear);
+                cache.fillRect(0, 0, w, h);
+                cache.setComposite(AlphaComposite.SrcOver);
+                drawLayers(cache, cameraX);
+                cache.dispose();
+                mCachedCameraX = cameraX;
+            }
+            g.drawImage(mFrameCache, 0, 0, null);
+            mStripsDrawn = 1;
+            return;
+        }
+
+        drawLayers(g, cameraX);
+    }
+
+    // Draws every layer, using the merged image for the static ones at the back
+    void drawLayers(Graphics2D g, double cameraX) {
+        if (mStaticComposite != null) {
+            g.drawImage(mStaticComposite, 0, 0, null);
+            mStripsDrawn++;
+        }
+        for (int i = mStaticLayers; i < mLayers.size(); i++) {
+            drawLayer(g, mLayers.get(i), cameraX);
+        }
+    }
+
+    // Draws the strips of layer that are inside the window
+    void drawLayer(Graphics2D g, Layer layer, double cameraX) {
+        if (layer.strips == null || layer.width <= 0) {
+            return;
+        }
+
+        double x = layer.offset(cameraX);
+        int count = layer.strips.length;
+
+        // First strip that reaches into the window
+        int first = (int)Math.floor(-x / STRIP_WIDTH);
+        if (!layer.repeat) {
+            first = Math.max(0, first);
+        }
+
+        for (int s = first; ; s++) {
+            // Left edge of strip s (strips repeat every layer.width when tiling)
+            int wrap = layer.repeat ? Math.floorDiv(s, count) : 0;
+            int index = layer.repeat ? Math.floorMod(s, count) : s;
+            if (index >= count) {
+                break;
+            }
+
+            int left = (int)x + wrap * layer.width + index * STRIP_WIDTH;
+            if (left >= mViewportWidth) {
+                break;
+            }
+
+            BufferedImage strip = layer.strips[index];
+            if (left + strip.getWidth() > 0) {
+                g.drawImage(strip, left, 0, null);
+                mStripsDrawn++;
+            }
+        }
+    }
+
+    // Cuts every layer into strips for a w x h window and builds the static composite
+    void prepare(int w, int h) {
+        mViewportWidth = w;
+        mViewportHeight = h;
+
+        for (Layer layer : mLayers) {
+            cut(layer, h);
+        }
+
+        // Merge the static layers at the back
+        mStaticLayers = 0;
+        while (mStaticLayers < mLayers.size() && mLayers.get(mStaticLayers).scrollFactor == 0) {
+            mStaticLayers++;
+        }
+        mStaticComposite = null;
+        if (mStaticLayers > 0) {
+            mStaticComposite = ImageCache.createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+            Graphics2D g = mStaticComposite.createGraphics();
+            for (int i = 0; i < mStaticLayers; i++) {
+                drawLayer(g, mLayers.get(i), 0);
+            }
+            g.dispose();
+        }
+
+        mFrameCache = ImageCache.createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+        mCachedCameraX = Double.NaN;
+        mLastCameraX = Double.NaN;
+    }
+
+    // Cuts layer into strips of STRIP_WIDTH x h starting at its sourceY
+    static void cut(Layer layer, int h) {
+        int width = layer.width;
+        int height = Math.max(0, Math.min(h, layer.image.getHeight(null) - layer.sourceY));
+        if (width <= 0 || height <= 0) {
+            layer.strips = null;
+            return;
+        }
+
+        int count = (width + STRIP_WIDTH - 1) / STRIP_WIDTH;
+        layer.strips = new BufferedImage[count];
+        for (int s = 0; s < count; s++) {
+            int sx = s * STRIP_WIDTH;
+            int sw = Math.min(STRIP_WIDTH, width - sx);
+            BufferedImage strip = ImageCache.createCompatibleImage(sw, height, Transparency.TRANSLUCENT);
+            Graphics2D g = strip.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(layer.image, 0, 0, sw, height, sx, layer.sourceY, sx + sw, layer.sourceY + height, null);
+            g.dispose();
+            layer.strips[s] = strip;
+        }
+    }
+}
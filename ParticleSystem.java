@@ -0,0 +1,343 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+// Short lived effects such as dust, sparks and glow, stored as columns.
+// Particles live in primitive arrays with a fixed capacity, used as a ring
+// kept in the order they were emitted: dead ones are dropped by sliding the
+// younger ones down over them, and when every slot is in use the oldest
+// particle is replaced, so emitting never allocates however many particles
+// there are.
+//
+// Particles are drawn as small squares straight into the pixels of one
+// image, which GameEngine.drawParticles() hands to the sprite batch, so a
+// frame of particles costs a single drawImage covering just the area they
+// touched. Coordinates are window pixels.
+public class ParticleSystem {
+    //-------------------------------------------------------
+    // Particles, oldest first from slot mHead round the ring
+    //-------------------------------------------------------
+    final float[] mX, mY;
+    final float[] mVX, mVY;
+    final float[] mAge, mLife;
+    final float[] mSize;
+    final float[] mGravity;
+    final float[] mDrag;
+    final int[] mStartColor, mEndColor;
+
+    final int mCapacity;
+    int mHead = 0;
+    int mCount = 0;
+
+    // Number of live particles replaced because the system was full
+    int mRecycled = 0;
+
+    // Emitters updated with the particles
+    Emitter[] mEmitters = new Emitter[4];
+    int mEmitterCount = 0;
+
+    // Random numbers for emitters, without java.util.Random's atomics
+    int mSeed = 0x2545F491;
+
+    // Image the particles are drawn into, and the area drawn last frame
+    BufferedImage mImage;
+    int[] mPixels;
+    int mMinX, mMinY, mMaxX, mMaxY;
+
+    public ParticleSystem(int capacity) {
+        mCapacity = Math.max(1, capacity);
+        mX = new float[mCapacity];
+        mY = new float[mCapacity];
+        mVX = new float[mCapacity];
+        mVY = new float[mCapacity];
+        mAge = new float[mCapacity];
+        mLife = new float[mCapacity];
+        mSize = new float[mCapacity];
+        mGravity = new float[mCapacity];
+        mDrag = new float[mCapacity];
+        mStartColor = new int[mCapacity];
+        mEndColor = new int[mCapacity];
+    }
+
+    //-------------------------------------------------------
+    // Emitters
+    //-------------------------------------------------------
+
+    // Emits particles from a point, either in bursts or at a steady rate.
+    // Set its fields once when setting up an effect, then move it and call
+    // burst() or turn the rate on as needed.
+    public static class Emitter {
+        public double x, y;
+
+        // Particles per second while rate > 0
+        public double rate = 0;
+
+        // Direction in radians (0 is right, -PI/2 is up) and spread either side
+        public double angle = -Math.PI / 2;
+        public double spread = Math.PI;
+
+        // Ranges picked from for each particle
+        public double minSpeed = 20, maxSpeed = 60;
+        public double minLife = 0.5, maxLife = 1.0;
+        public double minSize = 1, maxSize = 3;
+
+        // Width and height of the area particles start in
+        public double width = 0, height = 0;
+
+        // Colours (ARGB) at birth and death, blended in between
+        public int startColor = 0xFFFFFFFF;
+        public int endColor = 0x00FFFFFF;
+
+        // Downward acceleration and fraction of speed lost per second
+        public double gravity = 0;
+        public double drag = 0;
+
+        double mOwed = 0;
+
+        // Emits count particles now
+        public void burst(ParticleSystem particles, int count) {
+            for (int i = 0; i < count; i++) {
+                particles.emit(this);
+            }
+        }
+
+        // Emits the particles due over dt seconds at the current rate
+        void update(ParticleSystem particles, double dt) {
+            if (rate <= 0) {
+                mOwed = 0;
+                return;
+            }
+            mOwed += rate * dt;
+            int count = (int)mOwed;
+            mOwed -= count;
+            burst(particles, count);
+        }
+    }
+
+    // Adds an emitter to be run by update()
+    public void addEmitter(Emitter emitter) {
+        if (mEmitterCount == mEmitters.length) {
+            mEmitters = Arrays.copyOf(mEmitters, mEmitterCount * 2);
+        }
+        mEmitters[mEmitterCount++] = emitter;
+    }
+
+    // Adds one particle from emitter
+    void emit(Emitter e) {
+        double angle = e.angle + (random() * 2 - 1) * e.spread;
+        double speed = lerp(e.minSpeed, e.maxSpeed, random());
+        emit(e.x + (random() - 0.5) * e.width, e.y + (random() - 0.5) * e.height,
+                Math.cos(angle) * speed, Math.sin(angle) * speed,
+                lerp(e.minLife, e.maxLife, random()), lerp(e.minSize, e.maxSize, random()),
+                e.startColor, e.endColor, e.gravity, e.drag);
+    }
+
+    //-------------------------------------------------------
+    // Particles
+    //-------------------------------------------------------
+
+    // Adds a particle, replacing the oldest one when the system is full.
+    // Returns its slot, which may change on the next update().
+    public int emit(double x, double y, double vx, double vy, double life, double size,
+            int startColor, int endColor, double gravity, double drag) {
+        int i;
+        if (mCount < mCapacity) {
+            i = slot(mCount++);
+        } else {
+            i = mHead;
+            mHead = next(mHead);
+            mRecycled++;
+        }
+        mX[i] = (float)x;
+        mY[i] = (float)y;
+        mVX[i] = (float)vx;
+        mVY[i] = (float)vy;
+        mAge[i] = 0;
+        mLife[i] = (float)Math.max(1e-3, life);
+        mSize[i] = (float)size;
+        mStartColor[i] = startColor;
+        mEndColor[i] = endColor;
+        mGravity[i] = (float)gravity;
+        mDrag[i] = (float)drag;
+        return i;
+    }
+
+    // Runs the emitters, then moves and ages every particle, removing dead ones
+    public void update(double dt) {
+        for (int i = 0; i < mEmitterCount; i++) {
+            mEmitters[i].update(this, dt);
+        }
+
+        // Slide each survivor down to the next free slot, keeping their order
+        final float step = (float)dt;
+        final float[] x = mX, y = mY, vx = mVX, vy = mVY, age = mAge, life = mLife, gravity = mGravity, drag = mDrag;
+        int from = mHead, to = mHead, live = 0;
+        for (int n = 0; n < mCount; n++, from = next(from)) {
+            age[from] += step;
+            if (age[from] >= life[from]) {
+                continue;
+            }
+            if (to != from) {
+                move(from, to);
+            }
+            float keep = Math.max(0f, 1f - drag[to] * step);
+            vx[to] *= keep;
+            vy[to] = vy[to] * keep + gravity[to] * step;
+            x[to] += vx[to] * step;
+            y[to] += vy[to] * step;
+            to = next(to);
+            live++;
+        }
+        mCount = live;
+        if (mCount == 0) {
+            mHead = 0;
+        }
+    }
+
+    // Copies the particle in slot from into slot to
+    void move(int from, int to) {
+        mX[to] = mX[from];
+        mY[to] = mY[from];
+        mVX[to] = mVX[from];
+        mVY[to] = mVY[from];
+        mAge[to] = mAge[from];
+        mLife[to] = mLife[from];
+        mSize[to] = mSize[from];
+        mGravity[to] = mGravity[from];
+        mDrag[to] = mDrag[from];
+        mStartColor[to] = mStartColor[from];
+        mEndColor[to] = mEndColor[from];
+    }
+
+    // Returns the slot of the nth oldest particle
+    int slot(int n) {
+        int i = mHead + n;
+        return (i >= mCapacity) ? i - mCapacity : i;
+    }
+
+    // Returns the slot after i round the ring
+    int next(int i) {
+        return (i + 1 == mCapacity) ? 0 : i + 1;
+    }
+
+    // Removes every particle
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    //-------------------------------------------------------
+    // Drawing
+    //-------------------------------------------------------
+
+    // Draws every particle into the image for a window of the given size
+    // and returns true if anything was drawn. The area drawn is then
+    // getMinX()..getMaxX() by getMinY()..getMaxY().
+    boolean render(int width, int height) {
+        if (mImage == null || mImage.getWidth() != width || mImage.getHeight() != height) {
+            mImage = new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_ARGB_PRE);
+            mPixels = ((DataBufferInt)mImage.getRaster().getDataBuffer()).getData();
+            mMaxX = mMaxY = -1;
+        }
+
+        // Clear what was drawn last frame
+        for (int row = mMinY; row <= mMaxY; row++) {
+            Arrays.fill(mPixels, row * width + mMinX, row * width + mMaxX + 1, 0);
+        }
+        mMinX = width;
+        mMinY = height;
+        mMaxX = -1;
+        mMaxY = -1;
+
+        // Oldest first, so newer particles are drawn over them
+        final int[] pixels = mPixels;
+        for (int n = 0, i = mHead; n < mCount; n++, i = next(i)) {
+            int size = Math.max(1, (int)(mSize[i] + 0.5f));
+            int left = (int)(mX[i] - size * 0.5f);
+            int top = (int)(mY[i] - size * 0.5f);
+            int right = Math.min(width, left + size);
+            int bottom = Math.min(height, top + size);
+            left = Math.max(0, left);
+            top = Math.max(0, top);
+            if (left >= right || top >= bottom) {
+                continue;
+            }
+
+            int color = premultiplied(blend(mStartColor[i], mEndColor[i], mAge[i] / mLife[i]));
+            int alpha = color >>> 24;
+            if (alpha == 0) {
+                continue;
+            }
+            int inverse = 255 - alpha;
+            for (int row = top; row < bottom; row++) {
+                int p = row * width + left;
+                for (int end = p + (right - left); p < end; p++) {
+                    // Source over, premultiplied
+                    int dst = pixels[p];
+                    int rb = (((dst & 0x00FF00FF) * inverse) >>> 8) & 0x00FF00FF;
+                    int ag = (((dst >>> 8) & 0x00FF00FF) * inverse) & 0xFF00FF00;
+                    pixels[p] = color + (rb | ag);
+                }
+            }
+
+            if (left < mMinX) mMinX = left;
+            if (top < mMinY) mMinY = top;
+            if (right - 1 > mMaxX) mMaxX = right - 1;
+            if (bottom - 1 > mMaxY) mMaxY = bottom - 1;
+        }
+        return mMaxX >= mMinX;
+    }
+
+    // Returns the colour t of the way from a to b, all four channels
+    static int blend(int a, int b, float t) {
+        int w = (int)(t * 256);
+        int iw = 256 - w;
+        int rb = ((a & 0x00FF00FF) * iw + (b & 0x00FF00FF) * w) >>> 8 & 0x00FF00FF;
+        int ag = ((a >>> 8) & 0x00FF00FF) * iw + ((b >>> 8) & 0x00FF00FF) * w & 0xFF00FF00;
+        return ag | rb;
+    }
+
+    // Returns an ARGB colour with its colour channels multiplied by alpha
+    static int premultiplied(int argb) {
+        int a = argb >>> 24;
+        int rb = ((argb & 0x00FF00FF) * a >>> 8) & 0x00FF00FF;
+        int g = ((argb & 0x0000FF00) * a >>> 8) & 0x0000FF00;
+        return (a << 24) | rb | g;
+    }
+
+    static double lerp(double a, double b, double t) {
+        return a + (b - a) * t;
+    }
+
+    // Returns a random number in [0, 1)
+    double random() {
+        int s = mSeed;
+        s ^= s << 13;
+        s ^= s >>> 17;
+        s ^= s << 5;
+        mSeed = s;
+        return (s >>> 8) / (double)(1 << 24);
+    }
+
+    //-------------------------------------------------------
+    // State
+    //-------------------------------------------------------
+
+    // Returns the number of live particles
+    public int size() {
+        return mCount;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    // Returns the number of live particles replaced because the system was full
+    public int getRecycled() {
+        return mRecycled;
+    }
+
+    BufferedImage getImage() {
+        return mImage;
+    }
+}
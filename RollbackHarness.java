@@ -0,0 +1,163 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+// Plays a two player arena match between two RollbackSessions in one
+// process, joined by a simulated link with latency, jitter and packet loss,
+// and checks that both machines end up with exactly the state a single
+// simulation gets from the real inputs.
+// Usage: java RollbackHarness [ticks] [latency frames] [jitter frames] [loss %]
+public class RollbackHarness {
+    static final int PLAYERS = 2;
+
+    // Local inputs resent in every packet, so a lost one is covered by the next
+    static final int REDUNDANCY = RollbackSession.MAX_PREDICTION;
+
+    // Inputs on their way from one peer to the other
+    static class Packet {
+        final int deliverTick;
+        final int firstFrame;
+        final int[] inputs;
+
+        Packet(int deliverTick, int firstFrame, int[] inputs) {
+            this.deliverTick = deliverTick;
+            this.firstFrame = firstFrame;
+            this.inputs = inputs;
+        }
+    }
+
+    // One of the two machines
+    static class Peer {
+        final int player;
+        final ArenaSimulation arena = new ArenaSimulation(800, 600);
+        final RollbackSession session;
+        final Random buttons;
+        final List<Packet> incoming = new ArrayList<Packet>();
+        final long[] checksums;
+        int button = 0;
+        int recordedUpTo = -1;
+
+        Peer(int player, int ticks) {
+            this.player = player;
+            for (int i = 0; i < PLAYERS; i++) {
+                arena.addPlayer(i);
+            }
+            session = new RollbackSession(arena, PLAYERS, player, ArenaSimulation.MAX_STATE_BYTES);
+            buttons = new Random(100 + player);
+            checksums = new long[ticks + 1];
+        }
+    }
+
+    public static void main(String[] args) {
+        int ticks = (args.length > 0) ? Integer.parseInt(args[0]) : 3600;
+        int latency = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int jitter = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        double loss = (args.length > 3) ? Integer.parseInt(args[3]) / 100.0 : 0.1;
+
+        Peer[] peers = { new Peer(0, ticks), new Peer(1, ticks) };
+        Random link = new Random(42);
+
+        // Every real input, for the reference run
+        int[][] realInputs = new int[ticks][PLAYERS];
+        int[] frames = new int[PLAYERS];
+
+        for (int tick = 0; tick < ticks; tick++) {
+            for (Peer peer : peers) {
+                Peer other = peers[1 - peer.player];
+
+                // Receive what has arrived
+                for (int i = peer.incoming.size() - 1; i >= 0; i--) {
+                    Packet packet = peer.incoming.get(i);
+                    if (packet.deliverTick <= tick) {
+                        for (int k = 0; k < packet.inputs.length; k++) {
+                            peer.session.addRemoteInput(other.player, packet.firstFrame + k, packet.inputs[k]);
+                        }
+                        peer.incoming.remove(i);
+                    }
+                }
+
+                // Hold buttons for a while, like a player would
+                if (peer.buttons.nextInt(20) == 0) {
+                    peer.button = peer.buttons.nextInt(8);
+                }
+                int frame = peer.session.getFrame();
+                if (frame < ticks && peer.session.advance(peer.button)) {
+                    realInputs[frame][peer.player] = peer.button;
+                    frames[peer.player] = frame + 1;
+                }
+
+                // Send our last few inputs
+                int last = peer.session.getFrame() - 1;
+                if (last >= 0 && link.nextDouble() >= loss) {
+                    int first = Math.max(0, last - REDUNDANCY + 1);
+                    int[] inputs = new int[last - first + 1];
+                    for (int k = 0; k < inputs.length; k++) {
+                        inputs[k] = peer.session.getLocalInput(first + k);
+                    }
+                    other.incoming.add(new Packet(tick + latency + link.nextInt(jitter + 1), first, inputs));
+                }
+
+                // Note the checksum of every state that can no longer change
+                int settled = Math.min(peer.session.getConfirmedFrame() + 1, peer.session.getFrame() - 1);
+                while (peer.recordedUpTo < settled) {
+                    peer.recordedUpTo++;
+                    peer.checksums[peer.recordedUpTo] = peer.session.getChecksum(peer.recordedUpTo);
+                }
+            }
+        }
+
+        // Run the match again with the real inputs and nothing predicted
+        ArenaSimulation reference = new ArenaSimulation(800, 600);
+        for (int i = 0; i < PLAYERS; i++) {
+            reference.addPlayer(i);
+        }
+        ByteBuffer state = ByteBuffer.allocate(ArenaSimulation.MAX_STATE_BYTES);
+        CRC32 crc = new CRC32();
+        int compared = 0;
+        int mismatches = 0;
+        int settled = Math.min(peers[0].recordedUpTo, peers[1].recordedUpTo);
+        for (int frame = 0; frame <= settled; frame++) {
+            state.clear();
+            reference.save(state);
+            state.flip();
+            crc.reset();
+            crc.update(state);
+            long expected = crc.getValue();
+            for (Peer peer : peers) {
+                compared++;
+                if (peer.checksums[frame] != expected) {
+                    mismatches++;
+                }
+            }
+            reference.step(realInputs[frame]);
+        }
+
+        System.out.println(String.format("%d ticks, latency %d-%d frames, %.0f%% loss", ticks, latency, latency + jitter, loss * 100));
+        System.out.println(String.format("%-6s %8s %10s %12s %8s %14s", "peer", "frames", "rollbacks", "resimulated", "stalls", "max rollback"));
+        for (Peer peer : peers) {
+            RollbackSession s = peer.session;
+            System.out.println(String.format("%-6d %8d %10d %12d %8d %11.3f ms", peer.player, frames[peer.player],
+                    s.getRollbacks(), s.getFramesResimulated(), s.getStalls(), s.getMaxRollbackNanos() / 1e6));
+        }
+
+        // Cost of the worst case, a rollback over every predicted frame
+        RollbackSession session = peers[0].session;
+        long start = System.nanoTime();
+        int repeats = 2000;
+        int from = session.getFrame() - RollbackSession.MAX_PREDICTION;
+        for (int i = 0; i < repeats; i++) {
+            session.mRollbackFrom = from;
+            session.rollback();
+        }
+        double perRollback = (System.nanoTime() - start) / 1e3 / repeats;
+        System.out.println(String.format("%d frame rollback (load, %d saves and steps): %.1f us, state %d bytes",
+                RollbackSession.MAX_PREDICTION, RollbackSession.MAX_PREDICTION, perRollback, state.limit()));
+
+        System.out.println(String.format("%d settled states compared with a reference run, %d mismatched", compared, mismatches));
+        if (mismatches > 0 || compared == 0) {
+            System.exit(1);
+        }
+    }
+}
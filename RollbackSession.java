@@ -0,0 +1,319 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Rollback for peer to peer matches.
+// Every player's input for a frame is needed to simulate it, but waiting
+// for remote inputs would delay every local press by the network latency.
+// Instead each frame runs straight away with the remote players predicted
+// to keep holding what they last sent. The state before every frame is
+// saved in a ring, and when a remote input arrives that differs from the
+// prediction, the simulation is put back to the frame it was for and run
+// forward again with the real inputs, all within one update.
+//
+// The simulation must be deterministic: the same state and inputs must
+// always give the same next state, on every machine. Inputs are ints, for
+// example button bits.
+//
+// Usage, once per fixed update:
+//   feed in remote inputs as they arrive with addRemoteInput()
+//   call advance(localInput); when it returns false the remote players are
+//   too far behind, so skip this update and let them catch up
+//   send getLocalInput() for the last few frames to the other players
+//
+// With a server running the match (see GameClient) the server has the last
+// word instead: it relays the inputs it applied with setServerInput(), which
+// can overrule our own when they reached it too late, and now and then its
+// whole state with setServerState().
+public class RollbackSession {
+    // A fixed step simulation that can be saved and restored
+    public interface Simulation {
+        // Writes the whole state to out
+        void save(ByteBuffer out);
+
+        // Replaces the state with one written by save()
+        void load(ByteBuffer in);
+
+        // Runs one frame with each player's input
+        void step(int[] inputs);
+    }
+
+    // Most frames run ahead of the last frame with every input known
+    public static final int MAX_PREDICTION = 8;
+
+    // Frames of states and inputs kept. Remote inputs can be for frames up
+    // to MAX_PREDICTION ahead of ours, as well as behind.
+    static final int RING = 32;
+
+    final Simulation mSimulation;
+    final int mPlayers;
+    final int mLocalPlayer;
+
+    // State before each frame, by frame % RING
+    final ByteBuffer[] mStates = new ByteBuffer[RING];
+    final int[] mStateFrame = new int[RING];
+    final long[] mChecksums = new long[RING];
+    final CRC32 mCrc = new CRC32();
+
+    // Input each player used for each frame (predicted or real), and the
+    // real input once known, tagged with its frame, by frame % RING
+    final int[][] mUsed = new int[RING][];
+    final int[][] mReal = new int[RING][];
+    final int[][] mRealFrame = new int[RING][];
+
+    // Last frame up to which each player's inputs are all known
+    final int[] mConfirmed;
+
+    // Inputs handed to step()
+    final int[] mStepInputs;
+
+    // Next frame to simulate
+    int mFrame = 0;
+
+    // Earliest frame simulated with a wrong prediction, or -1
+    int mRollbackFrom = -1;
+
+    // Totals for reporting
+    long mRollbacks = 0;
+    long mFramesResimulated = 0;
+    long mStalls = 0;
+    long mLastRollbackNanos = 0;
+    long mMaxRollbackNanos = 0;
+
+    // Makes a session for players, simulating on this machine for
+    // localPlayer. stateBytes is the most save() will ever write.
+    public RollbackSession(Simulation simulation, int players, int localPlayer, int stateBytes) {
+        mSimulation = simulation;
+        mPlayers = players;
+        mLocalPlayer = localPlayer;
+        mConfirmed = new int[players];
+        mStepInputs = new int[players];
+        for (int i = 0; i < players; i++) {
+            mConfirmed[i] = -1;
+        }
+        for (int i = 0; i < RING; i++) {
+            mStates[i] = ByteBuffer.allocate(stateBytes);
+            mStateFrame[i] = -1;
+            mUsed[i] = new int[players];
+            mReal[i] = new int[players];
+            mRealFrame[i] = new int[players];
+            Arrays.fill(mRealFrame[i], -1);
+        }
+    }
+
+    //-------------------------------------------------------
+    // Inputs
+    //-------------------------------------------------------
+
+    // Records a remote player's input for a frame. Inputs may arrive more
+    // than once, out of order or for frames already simulated.
+    public void addRemoteInput(int player, int frame, int input) {
+        if (player == mLocalPlayer || frame <= mConfirmed[player]
+                || frame <= mFrame - RING || frame >= mFrame + RING / 2) {
+            return;
+        }
+
+        int slot = frame & (RING - 1);
+        mReal[slot][player] = input;
+        mRealFrame[slot][player] = frame;
+        while (mRealFrame[(mConfirmed[player] + 1) & (RING - 1)][player] == mConfirmed[player] + 1) {
+            mConfirmed[player]++;
+        }
+
+        // Already simulated with a different guess: run it again
+        if (frame < mFrame && mUsed[slot][player] != input) {
+            if (mRollbackFrom < 0 || frame < mRollbackFrom) {
+                mRollbackFrom = frame;
+            }
+        }
+    }
+
+    // Returns this machine's input for a frame, for sending to the other players
+    public int getLocalInput(int frame) {
+        return mReal[frame & (RING - 1)][mLocalPlayer];
+    }
+
+    // Returns the input to use for player in frame: the real one if it has
+    // arrived, otherwise the last real one repeated
+    int inputFor(int player, int frame) {
+        int slot = frame & (RING - 1);
+        if (mRealFrame[slot][player] == frame) {
+            return mReal[slot][player];
+        }
+        int last = mConfirmed[player];
+        return (last >= 0) ? mReal[last & (RING - 1)][player] : 0;
+    }
+
+    //-------------------------------------------------------
+    // Server
+    //-------------------------------------------------------
+
+    // Records the input the server applied for player in frame. For our own
+    // player this replaces what we pressed, in case it arrived too late.
+    public void setServerInput(int player, int frame, int input) {
+        if (player != mLocalPlayer) {
+            addRemoteInput(player, frame, input);
+            return;
+        }
+        if (frame < 0 || frame <= mFrame - RING || frame >= mFrame) {
+            return;
+        }
+
+        int slot = frame & (RING - 1);
+        mReal[slot][player] = input;
+        if (mUsed[slot][player] != input && (mRollbackFrom < 0 || frame < mRollbackFrom)) {
+            mRollbackFrom = frame;
+        }
+    }
+
+    // Replaces the state before frame with the server's, and takes inputs as
+    // what each other player had in the frame before it. Every frame since
+    // is run again on the next advance(). Returns false if frame is not one
+    // still kept or already simulated, when the session should be restarted.
+    public boolean setServerState(int frame, ByteBuffer state, int[] inputs) {
+        if (frame < 0 || frame <= mFrame - RING || frame > mFrame) {
+            return false;
+        }
+
+        int slot = frame & (RING - 1);
+        ByteBuffer saved = mStates[slot];
+        saved.clear();
+        saved.put(state);
+        saved.flip();
+        mStateFrame[slot] = frame;
+
+        // Nothing before this frame matters any more
+        int previous = frame - 1;
+        for (int player = 0; player < mPlayers; player++) {
+            if (player == mLocalPlayer || previous < 0 || previous <= mConfirmed[player]) {
+                continue;
+            }
+            int last = previous & (RING - 1);
+            mReal[last][player] = inputs[player];
+            mRealFrame[last][player] = previous;
+            mConfirmed[player] = previous;
+            while (mRealFrame[(mConfirmed[player] + 1) & (RING - 1)][player] == mConfirmed[player] + 1) {
+                mConfirmed[player]++;
+            }
+        }
+        mRollbackFrom = frame;
+        return true;
+    }
+
+    //-------------------------------------------------------
+    // Simulation
+    //-------------------------------------------------------
+
+    // Returns true if another frame may be predicted
+    public boolean canAdvance() {
+        return mFrame - 1 - getConfirmedFrame() < MAX_PREDICTION;
+    }
+
+    // Corrects any mispredicted frames, then runs the next frame with the
+    // local input. Returns false, without running anything, if the remote
+    // players are too far behind.
+    public boolean advance(int localInput) {
+        rollback();
+        if (!canAdvance()) {
+            mStalls++;
+            return false;
+        }
+
+        int slot = mFrame & (RING - 1);
+        mReal[slot][mLocalPlayer] = localInput;
+        mRealFrame[slot][mLocalPlayer] = mFrame;
+        mConfirmed[mLocalPlayer] = mFrame;
+
+        simulateFrame(mFrame);
+        mFrame++;
+        return true;
+    }
+
+    // Restores the state before the earliest mispredicted frame and runs
+    // every frame since again
+    void rollback() {
+        if (mRollbackFrom < 0) {
+            return;
+        }
+        long start = System.nanoTime();
+
+        int from = mRollbackFrom;
+        mRollbackFrom = -1;
+        ByteBuffer state = mStates[from & (RING - 1)];
+        state.rewind();
+        mSimulation.load(state);
+        for (int frame = from; frame < mFrame; frame++) {
+            simulateFrame(frame);
+        }
+
+        mRollbacks++;
+        mFramesResimulated += mFrame - from;
+        mLastRollbackNanos = System.nanoTime() - start;
+        mMaxRollbackNanos = Math.max(mMaxRollbackNanos, mLastRollbackNanos);
+    }
+
+    // Saves the state before frame, then runs it
+    void simulateFrame(int frame) {
+        int slot = frame & (RING - 1);
+
+        ByteBuffer state = mStates[slot];
+        state.clear();
+        mSimulation.save(state);
+        state.flip();
+        mStateFrame[slot] = frame;
+        mCrc.reset();
+        mCrc.update(state);
+        state.rewind();
+        mChecksums[slot] = mCrc.getValue();
+
+        for (int player = 0; player < mPlayers; player++) {
+            mStepInputs[player] = inputFor(player, frame);
+            mUsed[slot][player] = mStepInputs[player];
+        }
+        mSimulation.step(mStepInputs);
+    }
+
+    //-------------------------------------------------------
+    // State
+    //-------------------------------------------------------
+
+    // Returns the next frame to be simulated
+    public int getFrame() {
+        return mFrame;
+    }
+
+    // Returns the last frame for which every player's input is known.
+    // States up to the frame after it can no longer change.
+    public int getConfirmedFrame() {
+        int confirmed = Integer.MAX_VALUE;
+        for (int player = 0; player < mPlayers; player++) {
+            confirmed = Math.min(confirmed, mConfirmed[player]);
+        }
+        return confirmed;
+    }
+
+    // Returns the checksum of the state before frame, or -1 if it is no
+    // longer kept or has not been simulated. Two machines whose confirmed
+    // checksums differ have gone out of sync.
+    public long getChecksum(int frame) {
+        int slot = frame & (RING - 1);
+        return (mStateFrame[slot] == frame) ? mChecksums[slot] : -1;
+    }
+
+    public long getRollbacks() {
+        return mRollbacks;
+    }
+
+    public long getFramesResimulated() {
+        return mFramesResimulated;
+    }
+
+    public long getStalls() {
+        return mStalls;
+    }
+
+    // Returns the longest time a rollback has taken, in nanoseconds
+    public long getMaxRollbackNanos() {
+        return mMaxRollbackNanos;
+    }
+}
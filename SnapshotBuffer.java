@@ -0,0 +1,79 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Lock-free handoff of game state from the update thread to the render thread.
+// Holds three copies of a snapshot: the writer fills one, the reader draws
+// another, and the third holds the newest finished snapshot between them.
+// Neither side ever waits for the other. The reader always gets the newest
+// snapshot that was published, and snapshots it was too slow to see are
+// simply replaced.
+//
+// Snapshots are reused, so the writer must fill in every field it uses each
+// time, and the reader must not keep a snapshot after its next read().
+//
+// Only one thread may write and only one thread may read.
+public class SnapshotBuffer<T> {
+    // The middle slot's index is in the low bits, FRESH is set when it
+    // holds a snapshot the reader has not taken yet
+    static final int INDEX_MASK = 3;
+    static final int FRESH = 4;
+
+    final Object[] mSlots = new Object[3];
+    final AtomicInteger mMiddle = new AtomicInteger(1);
+
+    // Slot owned by the writer
+    int mBack = 0;
+    // Slot owned by the reader
+    int mFront = 2;
+
+    // Number of snapshots published, written by the writer only
+    volatile long mPublished = 0;
+
+    public SnapshotBuffer(Supplier<T> factory) {
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = factory.get();
+        }
+    }
+
+    //-------------------------------------------------------
+    // Writer
+    //-------------------------------------------------------
+
+    // Returns the snapshot to fill in before calling publish()
+    @SuppressWarnings("unchecked")
+    public T write() {
+        return (T)mSlots[mBack];
+    }
+
+    // Makes the snapshot returned by write() the newest one. Everything
+    // written to it before this call is seen by the reader.
+    public void publish() {
+        mBack = mMiddle.getAndSet(mBack | FRESH) & INDEX_MASK;
+        mPublished++;
+    }
+
+    //-------------------------------------------------------
+    // Reader
+    //-------------------------------------------------------
+
+    // Returns the newest published snapshot, or the one returned last time
+    // if nothing has been published since. Before the first publish() this
+    // is a snapshot straight from the factory.
+    @SuppressWarnings("unchecked")
+    public T read() {
+        if ((mMiddle.get() & FRESH) != 0) {
+            mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        }
+        return (T)mSlots[mFront];
+    }
+
+    // Returns true if a snapshot has been published since the last read()
+    public boolean hasNew() {
+        return (mMiddle.get() & FRESH) != 0;
+    }
+
+    // Returns the number of snapshots published so far
+    public long getPublished() {
+        return mPublished;
+    }
+}
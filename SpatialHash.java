@@ -0,0 +1,404 @@
+import java.util.Arrays;
+
+// Broadphase for collision and trigger queries over axis-aligned boxes.
+// Space is split into square cells and each box is linked into every cell
+// it overlaps; cells are found through a hash table, so the world needs no
+// fixed size. A query only looks at the boxes in the cells it covers, so
+// checking everything against everything stays close to linear in the
+// number of boxes instead of growing with its square.
+//
+// Boxes (proxies) carry a layer bit, e.g. platforms, kiwis or triggers,
+// and an int of user data such as an EntityStore handle. Cell links live
+// in pooled arrays that only grow, so inserting, moving and querying do
+// not allocate once the pools are big enough. The hash table doubles when
+// the links outgrow it, so bucket chains stay short however many boxes
+// are added.
+public class SpatialHash {
+    // Called for every overlapping pair found by queryPairs
+    public interface PairVisitor {
+        void pair(int a, int b);
+    }
+
+    final double mCellSize;
+    final double mInverseCellSize;
+
+    // Proxies, indexed by proxy id
+    double[] mMinX, mMinY, mMaxX, mMaxY;
+    int[] mLayer;
+    int[] mUserData;
+    boolean[] mUsed;
+
+    // Range of cells each proxy is linked into
+    int[] mCellX0, mCellY0, mCellX1, mCellY1;
+
+    // Free proxy ids
+    int[] mFreeProxies;
+    int mFreeProxyCount = 0;
+    int mProxyCount = 0;
+
+    // Cell links: the proxy, the cell it is for and the next link in the bucket
+    int[] mNodeProxy;
+    int[] mNodeCellX, mNodeCellY;
+    int[] mNodeNext;
+    int mFreeNode = -1;
+    int mNodeCount = 0;
+
+    // Most links per bucket before the table doubles
+    static final float LOAD_FACTOR = 0.75f;
+
+    // First link of each hash bucket, or -1, and the number of links in use
+    int[] mBuckets;
+    int mBucketMask;
+    int mLinkCount = 0;
+
+    // Stamps so a proxy linked into several cells is reported once per query
+    int[] mStamps;
+    int mStamp = 0;
+
+    public SpatialHash(double cellSize, int capacity) {
+        mCellSize = cellSize;
+        mInverseCellSize = 1.0 / cellSize;
+
+        capacity = Math.max(1, capacity);
+        mMinX = new double[capacity];
+        mMinY = new double[capacity];
+        mMaxX = new double[capacity];
+        mMaxY = new double[capacity];
+        mLayer = new int[capacity];
+        mUserData = new int[capacity];
+        mUsed = new boolean[capacity];
+        mCellX0 = new int[capacity];
+        mCellY0 = new int[capacity];
+        mCellX1 = new int[capacity];
+        mCellY1 = new int[capacity];
+        mFreeProxies = new int[capacity];
+        mStamps = new int[capacity];
+
+        mNodeProxy = new int[capacity * 4];
+        mNodeCellX = new int[capacity * 4];
+        mNodeCellY = new int[capacity * 4];
+        mNodeNext = new int[capacity * 4];
+
+        // A power of two with room for about two cells per proxy
+        int buckets = Integer.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+        mBuckets = new int[buckets];
+        mBucketMask = buckets - 1;
+        Arrays.fill(mBuckets, -1);
+    }
+
+    //-------------------------------------------------------
+    // Proxies
+    //-------------------------------------------------------
+
+    // Adds a box on the given layer (a single bit) and returns its proxy id
+    public int insert(double minX, double minY, double maxX, double maxY, int layer, int userData) {
+        int proxy;
+        if (mFreeProxyCount > 0) {
+            proxy = mFreeProxies[--mFreeProxyCount];
+        } else {
+            if (mProxyCount == mMinX.length) {
+                growProxies();
+            }
+            proxy = mProxyCount++;
+        }
+
+        mUsed[proxy] = true;
+        mLayer[proxy] = layer;
+        mUserData[proxy] = userData;
+        setBounds(proxy, minX, minY, maxX, maxY);
+        link(proxy);
+        return proxy;
+    }
+
+    // Moves a proxy's box. Links only change when it covers different cells.
+    public void move(int proxy, double minX, double minY, double maxX, double maxY) {
+        if (!mUsed[proxy]) {
+            return;
+        }
+
+        int x0 = cell(minX), y0 = cell(minY), x1 = cell(maxX), y1 = cell(maxY);
+        if (x0 == mCellX0[proxy] && y0 == mCellY0[proxy] && x1 == mCellX1[proxy] && y1 == mCellY1[proxy]) {
+            mMinX[proxy] = minX;
+            mMinY[proxy] = minY;
+            mMaxX[proxy] = maxX;
+            mMaxY[proxy] = maxY;
+            return;
+        }
+
+        unlink(proxy);
+        setBounds(proxy, minX, minY, maxX, maxY);
+        link(proxy);
+    }
+
+    // Removes a proxy, its id may be reused by a later insert
+    public void remove(int proxy) {
+        if (!mUsed[proxy]) {
+            return;
+        }
+        unlink(proxy);
+        mUsed[proxy] = false;
+        mFreeProxies[mFreeProxyCount++] = proxy;
+    }
+
+    // Removes every proxy
+    public void clear() {
+        Arrays.fill(mBuckets, -1);
+        Arrays.fill(mUsed, false);
+        mProxyCount = 0;
+        mFreeProxyCount = 0;
+        mNodeCount = 0;
+        mFreeNode = -1;
+        mLinkCount = 0;
+    }
+
+    public double getCellSize() {
+        return mCellSize;
+    }
+
+    public int getUserData(int proxy) {
+        return mUserData[proxy];
+    }
+
+    public int getLayer(int proxy) {
+        return mLayer[proxy];
+    }
+
+    public double getMinX(int proxy) {
+        return mMinX[proxy];
+    }
+
+    public double getMinY(int proxy) {
+        return mMinY[proxy];
+    }
+
+    public double getMaxX(int proxy) {
+        return mMaxX[proxy];
+    }
+
+    public double getMaxY(int proxy) {
+        return mMaxY[proxy];
+    }
+
+    // Returns true if proxies a and b overlap
+    public boolean overlaps(int a, int b) {
+        return mMinX[a] <= mMaxX[b] && mMaxX[a] >= mMinX[b] && mMinY[a] <= mMaxY[b] && mMaxY[a] >= mMinY[b];
+    }
+
+    //-------------------------------------------------------
+    // Queries
+    //-------------------------------------------------------
+
+    // Finds the proxies on any layer in layerMask that overlap the box.
+    // Writes up to results.length proxy ids and returns how many were found.
+    public int query(double minX, double minY, double maxX, double maxY, int layerMask, int[] results) {
+        int stamp = nextStamp();
+        int found = 0;
+
+        int x0 = cell(minX), y0 = cell(minY), x1 = cell(maxX), y1 = cell(maxY);
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                for (int n = mBuckets[bucket(cx, cy)]; n != -1; n = mNodeNext[n]) {
+                    int proxy = mNodeProxy[n];
+                    if (mStamps[proxy] == stamp || (mLayer[proxy] & layerMask) == 0) {
+                        continue;
+                    }
+                    mStamps[proxy] = stamp;
+                    if (mMinX[proxy] <= maxX && mMaxX[proxy] >= minX && mMinY[proxy] <= maxY && mMaxY[proxy] >= minY) {
+                        if (found < results.length) {
+                            results[found] = proxy;
+                        }
+                        found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // Finds the proxies on any layer in layerMask that contain the point (x,y)
+    public int queryPoint(double x, double y, int layerMask, int[] results) {
+        return query(x, y, x, y, layerMask, results);
+    }
+
+    // Calls visitor once for every pair of overlapping proxies where one is
+    // on a layer in maskA and the other on a layer in maskB
+    public void queryPairs(int maskA, int maskB, PairVisitor visitor) {
+        findPairs(maskA, maskB, visitor, null);
+    }
+
+    // Writes every such pair into pairs as (a,b) ids, up to pairs.length / 2
+    // of them, and returns how many pairs were found
+    public int queryPairs(int maskA, int maskB, int[] pairs) {
+        return findPairs(maskA, maskB, null, pairs);
+    }
+
+    int findPairs(int maskA, int maskB, PairVisitor visitor, int[] pairs) {
+        int found = 0;
+        for (int b = 0; b < mBuckets.length; b++) {
+            for (int i = mBuckets[b]; i != -1; i = mNodeNext[i]) {
+                int pi = mNodeProxy[i];
+                int cx = mNodeCellX[i], cy = mNodeCellY[i];
+                for (int j = mNodeNext[i]; j != -1; j = mNodeNext[j]) {
+                    // Other cells can share the bucket
+                    if (mNodeCellX[j] != cx || mNodeCellY[j] != cy) {
+                        continue;
+                    }
+
+                    int pj = mNodeProxy[j];
+                    boolean wanted = ((mLayer[pi] & maskA) != 0 && (mLayer[pj] & maskB) != 0)
+                            || ((mLayer[pj] & maskA) != 0 && (mLayer[pi] & maskB) != 0);
+                    if (!wanted || !overlaps(pi, pj)) {
+                        continue;
+                    }
+
+                    // Boxes sharing several cells are reported only from the first one
+                    if (cx != Math.max(mCellX0[pi], mCellX0[pj]) || cy != Math.max(mCellY0[pi], mCellY0[pj])) {
+                        continue;
+                    }
+
+                    int a = Math.min(pi, pj), c = Math.max(pi, pj);
+                    if (visitor != null) {
+                        visitor.pair(a, c);
+                    } else if (found * 2 + 1 < pairs.length) {
+                        pairs[found * 2] = a;
+                        pairs[found * 2 + 1] = c;
+                    }
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    //-------------------------------------------------------
+    // Cells and links
+    //-------------------------------------------------------
+
+    int cell(double coordinate) {
+        return (int)Math.floor(coordinate * mInverseCellSize);
+    }
+
+    int bucket(int cx, int cy) {
+        int hash = cx * 0x8DA6B343 ^ cy * 0xD8163841;
+        return (hash ^ (hash >>> 16)) & mBucketMask;
+    }
+
+    int nextStamp() {
+        if (++mStamp == Integer.MAX_VALUE) {
+            Arrays.fill(mStamps, 0);
+            mStamp = 1;
+        }
+        return mStamp;
+    }
+
+    void setBounds(int proxy, double minX, double minY, double maxX, double maxY) {
+        mMinX[proxy] = minX;
+        mMinY[proxy] = minY;
+        mMaxX[proxy] = maxX;
+        mMaxY[proxy] = maxY;
+        mCellX0[proxy] = cell(minX);
+        mCellY0[proxy] = cell(minY);
+        mCellX1[proxy] = cell(maxX);
+        mCellY1[proxy] = cell(maxY);
+    }
+
+    // Links proxy into every cell its box covers
+    void link(int proxy) {
+        int cells = (mCellX1[proxy] - mCellX0[proxy] + 1) * (mCellY1[proxy] - mCellY0[proxy] + 1);
+        mLinkCount += cells;
+        while (mLinkCount > mBuckets.length * LOAD_FACTOR) {
+            rehash(mBuckets.length * 2);
+        }
+
+        for (int cy = mCellY0[proxy]; cy <= mCellY1[proxy]; cy++) {
+            for (int cx = mCellX0[proxy]; cx <= mCellX1[proxy]; cx++) {
+                int n = allocateNode();
+                int b = bucket(cx, cy);
+                mNodeProxy[n] = proxy;
+                mNodeCellX[n] = cx;
+                mNodeCellY[n] = cy;
+                mNodeNext[n] = mBuckets[b];
+                mBuckets[b] = n;
+            }
+        }
+    }
+
+    // Unlinks proxy from every cell it was linked into
+    void unlink(int proxy) {
+        for (int cy = mCellY0[proxy]; cy <= mCellY1[proxy]; cy++) {
+            for (int cx = mCellX0[proxy]; cx <= mCellX1[proxy]; cx++) {
+                int b = bucket(cx, cy);
+                int previous = -1;
+                for (int n = mBuckets[b]; n != -1; previous = n, n = mNodeNext[n]) {
+                    if (mNodeProxy[n] == proxy && mNodeCellX[n] == cx && mNodeCellY[n] == cy) {
+                        if (previous == -1) {
+                            mBuckets[b] = mNodeNext[n];
+                        } else {
+                            mNodeNext[previous] = mNodeNext[n];
+                        }
+                        freeNode(n);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    int allocateNode() {
+        if (mFreeNode != -1) {
+            int n = mFreeNode;
+            mFreeNode = mNodeNext[n];
+            return n;
+        }
+        if (mNodeCount == mNodeProxy.length) {
+            int capacity = mNodeProxy.length * 2;
+            mNodeProxy = Arrays.copyOf(mNodeProxy, capacity);
+            mNodeCellX = Arrays.copyOf(mNodeCellX, capacity);
+            mNodeCellY = Arrays.copyOf(mNodeCellY, capacity);
+            mNodeNext = Arrays.copyOf(mNodeNext, capacity);
+        }
+        return mNodeCount++;
+    }
+
+    void freeNode(int n) {
+        mNodeNext[n] = mFreeNode;
+        mFreeNode = n;
+        mLinkCount--;
+    }
+
+    // Moves every link into a table of the given size, a power of two
+    void rehash(int size) {
+        int[] old = mBuckets;
+        mBuckets = new int[size];
+        mBucketMask = size - 1;
+        Arrays.fill(mBuckets, -1);
+
+        for (int b = 0; b < old.length; b++) {
+            int n = old[b];
+            while (n != -1) {
+                int next = mNodeNext[n];
+                int nb = bucket(mNodeCellX[n], mNodeCellY[n]);
+                mNodeNext[n] = mBuckets[nb];
+                mBuckets[nb] = n;
+                n = next;
+            }
+        }
+    }
+
+    void growProxies() {
+        int capacity = mMinX.length * 2;
+        mMinX = Arrays.copyOf(mMinX, capacity);
+        mMinY = Arrays.copyOf(mMinY, capacity);
+        mMaxX = Arrays.copyOf(mMaxX, capacity);
+        mMaxY = Arrays.copyOf(mMaxY, capacity);
+        mLayer = Arrays.copyOf(mLayer, capacity);
+        mUserData = Arrays.copyOf(mUserData, capacity);
+        mUsed = Arrays.copyOf(mUsed, capacity);
+        mCellX0 = Arrays.copyOf(mCellX0, capacity);
+        mCellY0 = Arrays.copyOf(mCellY0, capacity);
+        mCellX1 = Arrays.copyOf(mCellX1, capacity);
+        mCellY1 = Arrays.copyOf(mCellY1, capacity);
+        mFreeProxies = Arrays.copyOf(mFreeProxies, capacity);
+        mStamps = Arrays.copyOf(mStamps, capacity);
+    }
+}
@@ -0,0 +1,86 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+// A set of animation frames together with their mirrored versions.
+// Every transformed frame is built once when the Sprite is created,
+// so picking a flipped frame while drawing never allocates.
+public class Sprite {
+    // The transformed versions prepared for every frame
+    public enum Flip {
+        NONE,
+        HORIZONTAL,
+        VERTICAL,
+        BOTH
+    }
+
+    // Frames indexed by [flip][frame]
+    Image[][] mFrames;
+
+    // Size of the largest frame
+    int mWidth, mHeight;
+
+    public Sprite(Image[] frames) {
+        Flip[] flips = Flip.values();
+        mFrames = new Image[flips.length][frames.length];
+
+        for (int i = 0; i < frames.length; i++) {
+            Image frame = frames[i];
+            if (frame == null) {
+                continue;
+            }
+
+            mWidth = Math.max(mWidth, frame.getWidth(null));
+            mHeight = Math.max(mHeight, frame.getHeight(null));
+
+            // Build each transformed version of the frame
+            for (Flip flip : flips) {
+                mFrames[flip.ordinal()][i] = (flip == Flip.NONE) ? frame : transform(frame, flip);
+            }
+        }
+    }
+
+    // Draws a frame mirrored according to flip into a new image
+    static Image transform(Image frame, Flip flip) {
+        int w = frame.getWidth(null);
+        int h = frame.getHeight(null);
+
+        // Mirror around the centre of the frame
+        double sx = (flip == Flip.HORIZONTAL || flip == Flip.BOTH) ? -1 : 1;
+        double sy = (flip == Flip.VERTICAL || flip == Flip.BOTH) ? -1 : 1;
+        AffineTransform tx = AffineTransform.getScaleInstance(sx, sy);
+        tx.translate(sx < 0 ? -w : 0, sy < 0 ? -h : 0);
+
+        BufferedImage image = ImageCache.createCompatibleImage(w, h, Transparency.TRANSLUCENT);
+        Graphics2D g2d = image.createGraphics();
+        g2d.drawImage(frame, tx, null);
+        g2d.dispose();
+
+        return image;
+    }
+
+    // Returns the number of frames
+    public int getFrameCount() {
+        return mFrames[0].length;
+    }
+
+    // Returns frame index
+    public Image getFrame(int index) {
+        return mFrames[0][index];
+    }
+
+    // Returns frame index with the given flip
+    public Image getFrame(int index, Flip flip) {
+        return mFrames[flip.ordinal()][index];
+    }
+
+    // Returns the width of the largest frame
+    public int getWidth() {
+        return mWidth;
+    }
+
+    // Returns the height of the largest frame
+    public int getHeight() {
+        return mHeight;
+    }
+}
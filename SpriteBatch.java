@@ -0,0 +1,216 @@
+import java.awt.*;
+import java.util.Arrays;
+
+// Collects sprite draws during a frame and draws them all at once.
+// Each sprite has a layer and a region of an atlas image. Sprites outside
+// the window are dropped when they are submitted, and at flush time the
+// rest are sorted by layer and then by atlas, so every atlas is bound once
+// per layer instead of Java2D switching source images back and forth.
+//
+// Layers are drawn from lowest to highest. Within a layer sprites are
+// grouped by atlas, so sprites that must overlap in a set order should be
+// on different layers.
+//
+// Coordinates are those of the Graphics2D it is flushed to, so sprites
+// are drawn under whatever transform it has then. GameEngine flushes it
+// before anything else is drawn and before the transform changes, and
+// sets the clip to the window as seen through that transform.
+public class SpriteBatch {
+    // Sort key layout: layer | atlas | submission index
+    static final int INDEX_BITS = 20;
+    static final int ATLAS_BITS = 20;
+    static final int LAYER_OFFSET = 1 << 22;
+
+    // Most sprites in one frame
+    public static final int MAX_SPRITES = 1 << INDEX_BITS;
+
+    // Sprites submitted this frame
+    int[] mAtlas;
+    int[] mSourceX, mSourceY, mSourceW, mSourceH;
+    int[] mX, mY, mW, mH;
+    long[] mKeys;
+    int mCount = 0;
+
+    // Distinct atlases submitted this frame
+    Image[] mAtlases = new Image[16];
+    int mAtlasCount = 0;
+    int mLastAtlas = -1;
+
+    // Area sprites must overlap to be kept
+    double mClipMinX, mClipMinY, mClipMaxX, mClipMaxY;
+
+    // Counts for the last frame, and the one being drawn
+    int mDrawCalls = 0;
+    int mAtlasSwitches = 0;
+    int mCulled = 0;
+    int mDrawCallsThisFrame = 0;
+    int mAtlasSwitchesThisFrame = 0;
+    int mCulledThisFrame = 0;
+
+    public SpriteBatch(int capacity) {
+        capacity = Math.max(16, capacity);
+        mAtlas = new int[capacity];
+        mSourceX = new int[capacity];
+        mSourceY = new int[capacity];
+        mSourceW = new int[capacity];
+        mSourceH = new int[capacity];
+        mX = new int[capacity];
+        mY = new int[capacity];
+        mW = new int[capacity];
+        mH = new int[capacity];
+        mKeys = new long[capacity];
+    }
+
+    // Sets the window size sprites are culled against
+    public void setClip(int width, int height) {
+        setClip(0, 0, width, height);
+    }
+
+    // Sets the area sprites are culled against
+    public void setClip(double minX, double minY, double maxX, double maxY) {
+        mClipMinX = minX;
+        mClipMinY = minY;
+        mClipMaxX = maxX;
+        mClipMaxY = maxY;
+    }
+
+    // Adds the (sw,sh) region at (sx,sy) of atlas, drawn at (x,y) with size
+    // (w,h) on the given layer
+    public void add(Image atlas, int sx, int sy, int sw, int sh, double x, double y, double w, double h, int layer) {
+        int dx = (int)x, dy = (int)y, dw = (int)w, dh = (int)h;
+
+        // Cull sprites that are off screen or empty
+        if (dw <= 0 || dh <= 0 || dx >= mClipMaxX || dy >= mClipMaxY || dx + dw <= mClipMinX || dy + dh <= mClipMinY) {
+            mCulledThisFrame++;
+            return;
+        }
+        if (mCount == MAX_SPRITES) {
+            return;
+        }
+        if (mCount == mKeys.length) {
+            grow();
+        }
+
+        int a = atlasIndex(atlas);
+        int i = mCount++;
+        mAtlas[i] = a;
+        mSourceX[i] = sx;
+        mSourceY[i] = sy;
+        mSourceW[i] = sw;
+        mSourceH[i] = sh;
+        mX[i] = dx;
+        mY[i] = dy;
+        mW[i] = dw;
+        mH[i] = dh;
+
+        long sortLayer = Math.max(0, Math.min((1 << 23) - 1, layer + LAYER_OFFSET));
+        mKeys[i] = (sortLayer << (ATLAS_BITS + INDEX_BITS)) | ((long)a << INDEX_BITS) | i;
+    }
+
+    // Returns the index of atlas in this frame's atlas list
+    int atlasIndex(Image atlas) {
+        // Runs of sprites from the same atlas are common
+        if (mLastAtlas >= 0 && mAtlases[mLastAtlas] == atlas) {
+            return mLastAtlas;
+        }
+        for (int i = 0; i < mAtlasCount; i++) {
+            if (mAtlases[i] == atlas) {
+                mLastAtlas = i;
+                return i;
+            }
+        }
+        if (mAtlasCount == mAtlases.length) {
+            mAtlases = Arrays.copyOf(mAtlases, mAtlasCount * 2);
+        }
+        mAtlases[mAtlasCount] = atlas;
+        mLastAtlas = mAtlasCount;
+        return mAtlasCount++;
+    }
+
+    // Draws every sprite submitted since the last flush and empties the batch
+    public void flush(Graphics2D g, GameEngine engine) {
+        Arrays.sort(mKeys, 0, mCount);
+
+        int current = -1;
+        for (int k = 0; k < mCount; k++) {
+            int i = (int)(mKeys[k] & (MAX_SPRITES - 1));
+            int a = mAtlas[i];
+            if (a != current) {
+                current = a;
+                mAtlasSwitchesThisFrame++;
+            }
+
+            Image atlas = mAtlases[a];
+            int sx = mSourceX[i], sy = mSourceY[i], sw = mSourceW[i], sh = mSourceH[i];
+            int dx = mX[i], dy = mY[i], dw = mW[i], dh = mH[i];
+
+            // A whole image drawn at another size uses the engine's pre-scaled copy
+            if (sx == 0 && sy == 0 && (sw != dw || sh != dh)
+                    && sw == atlas.getWidth(null) && sh == atlas.getHeight(null)) {
+                Image scaled = engine.getScaledImage(atlas, dw, dh);
+                if (scaled != null) {
+                    g.drawImage(scaled, dx, dy, null);
+                    mDrawCallsThisFrame++;
+                    continue;
+                }
+            }
+
+            if (sw == dw && sh == dh && sx == 0 && sy == 0 && sw == atlas.getWidth(null) && sh == atlas.getHeight(null)) {
+                g.drawImage(atlas, dx, dy, null);
+            } else {
+                g.drawImage(atlas, dx, dy, dx + dw, dy + dh, sx, sy, sx + sw, sy + sh, null);
+            }
+            mDrawCallsThisFrame++;
+        }
+
+        // Start empty, without holding on to the images drawn
+        mCount = 0;
+        Arrays.fill(mAtlases, 0, mAtlasCount, null);
+        mAtlasCount = 0;
+        mLastAtlas = -1;
+    }
+
+    // Ends a frame, which may have flushed several times
+    public void endFrame() {
+        mDrawCalls = mDrawCallsThisFrame;
+        mAtlasSwitches = mAtlasSwitchesThisFrame;
+        mCulled = mCulledThisFrame;
+        mDrawCallsThisFrame = 0;
+        mAtlasSwitchesThisFrame = 0;
+        mCulledThisFrame = 0;
+    }
+
+    // Returns the number of sprites waiting to be drawn
+    public int size() {
+        return mCount;
+    }
+
+    // Returns the number of drawImage calls made in the last frame
+    public int getDrawCalls() {
+        return mDrawCalls;
+    }
+
+    // Returns the number of times the last frame changed atlas
+    public int getAtlasSwitches() {
+        return mAtlasSwitches;
+    }
+
+    // Returns the number of sprites culled in the last frame
+    public int getCulled() {
+        return mCulled;
+    }
+
+    void grow() {
+        int capacity = Math.min(MAX_SPRITES, mKeys.length * 2);
+        mAtlas = Arrays.copyOf(mAtlas, capacity);
+        mSourceX = Arrays.copyOf(mSourceX, capacity);
+        mSourceY = Arrays.copyOf(mSourceY, capacity);
+        mSourceW = Arrays.copyOf(mSourceW, capacity);
+        mSourceH = Arrays.copyOf(mSourceH, capacity);
+        mX = Arrays.copyOf(mX, capacity);
+        mY = Arrays.copyOf(mY, capacity);
+        mW = Arrays.copyOf(mW, capacity);
+        mH = Arrays.copyOf(mH, capacity);
+        mKeys = Arrays.copyOf(mKeys, capacity);
+    }
+}
@@ -0,0 +1,201 @@
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.LineMetrics;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Shared cache of fonts and laid out strings.
+// Fonts are kept by name, style and size so drawing text never creates a
+// Font, and each font keeps the glyphs and measurements of the strings
+// drawn with it for each rendering context (antialiasing, fractional
+// metrics and transform), so a string that is drawn every frame is only
+// laid out once even when drawn both with and without antialiasing.
+// Lookups with a FontRenderContext do not allocate. Graphics2D makes a new
+// context every time it is asked for one, so callers drawing every frame
+// should keep theirs, as GameEngine does.
+public class TextCache {
+    // Largest font size kept in the per-name table, bigger ones go in a map
+    static final int MAX_TABLE_SIZE = 256;
+
+    // Strings kept per font and context, least recently drawn are dropped first
+    static final int MAX_STRINGS_PER_FONT = 256;
+
+    // Rendering contexts kept per font, least recently used are dropped first
+    static final int MAX_CONTEXTS_PER_FONT = 4;
+
+    // A laid out string
+    public static class Text {
+        final GlyphVector glyphs;
+        final FontRenderContext frc;
+
+        // Width of the string and the font's ascent and descent, in pixels
+        public final float width;
+        public final float ascent;
+        public final float descent;
+
+        Text(Font font, String s, FontRenderContext frc) {
+            char[] chars = s.toCharArray();
+            this.glyphs = font.layoutGlyphVector(frc, chars, 0, chars.length, Font.LAYOUT_LEFT_TO_RIGHT);
+            this.frc = frc;
+            this.width = (float)glyphs.getLogicalBounds().getWidth();
+            LineMetrics metrics = font.getLineMetrics(s, frc);
+            this.ascent = metrics.getAscent();
+            this.descent = metrics.getDescent();
+        }
+
+        // Draws the string with its baseline starting at (x,y)
+        public void draw(Graphics2D g, float x, float y) {
+            g.drawGlyphVector(glyphs, x, y);
+        }
+    }
+
+    // Strings laid out in one font for one rendering context
+    static class Strings extends LinkedHashMap<String, Text> {
+        private static final long serialVersionUID = 1L;
+
+        final FontRenderContext frc;
+
+        Strings(FontRenderContext frc) {
+            super(16, 0.75f, true);
+            this.frc = frc;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Text> eldest) {
+            return size() > MAX_STRINGS_PER_FONT;
+        }
+    }
+
+    // A cached font and the strings laid out with it, most recently used
+    // context first
+    static class FontEntry {
+        final Font font;
+        final Strings[] contexts = new Strings[MAX_CONTEXTS_PER_FONT];
+        int contextCount = 0;
+
+        FontEntry(Font font) {
+            this.font = font;
+        }
+
+        // Returns the number of strings laid out over every context
+        int size() {
+            int count = 0;
+            for (int i = 0; i < contextCount; i++) {
+                count += contexts[i].size();
+            }
+            return count;
+        }
+
+        // Returns the strings laid out for frc, making room for them if new
+        Strings strings(FontRenderContext frc) {
+            int i = 0;
+            while (i < contextCount && contexts[i].frc != frc && !contexts[i].frc.equals(frc)) {
+                i++;
+            }
+            Strings found;
+            if (i < contextCount) {
+                found = contexts[i];
+            } else {
+                found = new Strings(frc);
+                if (contextCount < contexts.length) {
+                    contextCount++;
+                }
+                i = contextCount - 1;
+            }
+
+            // Move to the front
+            System.arraycopy(contexts, 0, contexts, 1, i);
+            contexts[0] = found;
+            return found;
+        }
+    }
+
+    // Fonts by name, indexed [style][size] for sizes up to MAX_TABLE_SIZE
+    static final Map<String, FontEntry[][]> sFonts = new HashMap<String, FontEntry[][]>();
+
+    // Fonts that are too big for the table and fonts made elsewhere
+    static final Map<Font, FontEntry> sOtherFonts = new HashMap<Font, FontEntry>();
+
+    // Returns the font with the given name, style (Font.PLAIN, BOLD, ITALIC) and size
+    public static synchronized Font getFont(String name, int style, int size) {
+        return entry(name, style, size).font;
+    }
+
+    // Returns s laid out in font for drawing with g. This asks g for its
+    // rendering context, which makes a new one.
+    public static Text get(Graphics2D g, Font font, String s) {
+        return get(font, s, g.getFontRenderContext());
+    }
+
+    // Returns s laid out in font for the given rendering context
+    public static synchronized Text get(Font font, String s, FontRenderContext frc) {
+        Strings strings = entry(font).strings(frc);
+        Text text = strings.get(s);
+        if (text == null) {
+            text = new Text(font, s, frc);
+            strings.put(s, text);
+        }
+        return text;
+    }
+
+    // Returns the entry for the font with the given name, style and size
+    static FontEntry entry(String name, int style, int size) {
+        if (size > 0 && size <= MAX_TABLE_SIZE && (style & ~3) == 0) {
+            FontEntry[][] table = sFonts.get(name);
+            if (table != null && table[style][size] != null) {
+                return table[style][size];
+            }
+        }
+        return entry(new Font(name, style, size));
+    }
+
+    // Returns the entry for font, which may have been made outside the cache
+    static FontEntry entry(Font font) {
+        int size = font.getSize();
+        int style = font.getStyle();
+        if (size > 0 && size <= MAX_TABLE_SIZE && font.getSize2D() == size && !font.isTransformed()) {
+            FontEntry[][] table = sFonts.get(font.getName());
+            if (table == null) {
+                table = new FontEntry[4][MAX_TABLE_SIZE + 1];
+                sFonts.put(font.getName(), table);
+            }
+            if (table[style][size] == null) {
+                table[style][size] = new FontEntry(font);
+            }
+            if (table[style][size].font.equals(font)) {
+                return table[style][size];
+            }
+        }
+
+        FontEntry entry = sOtherFonts.get(font);
+        if (entry == null) {
+            entry = new FontEntry(font);
+            sOtherFonts.put(font, entry);
+        }
+        return entry;
+    }
+
+    // Returns the number of strings cached over all fonts
+    public static synchronized int size() {
+        int count = 0;
+        for (FontEntry[][] table : sFonts.values()) {
+            for (FontEntry[] sizes : table) {
+                for (FontEntry entry : sizes) {
+                    if (entry != null) count += entry.size();
+                }
+            }
+        }
+        for (FontEntry entry : sOtherFonts.values()) {
+            count += entry.size();
+        }
+        return count;
+    }
+
+    // Drops every cached font and string
+    public static synchronized void clear() {
+        sFonts.clear();
+        sOtherFonts.clear();
+    }
+}
@@ -0,0 +1,386 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// A level built from tiles, stored in fixed-size square chunks.
+// Only the chunks that overlap the camera are drawn. Each drawn chunk is
+// pre-rendered into an image, and the cache of images is sized to the
+// viewport plus a ring of chunks around it, keeping the most recently used,
+// so the cost of a frame and the memory used stay the same however long
+// the level gets. Empty chunks take no tile storage at all.
+//
+// Map files are text (loaded through AssetPack, so they can be packed):
+//   # comment
+//   tileset kauri_tiles.png 32 32
+//   size 400 20
+//   chunk 16
+//   then one line per row of tile indices into the tileset,
+//   read left to right, top to bottom; -1 or . is an empty tile
+//   region grub 40 12 1 1
+//   region lore 60 10 2 4 Text shown when the kiwi walks in
+//   regions may come anywhere and mark areas of the map, in tiles, for the
+//   game to give meaning to
+public class TileMap {
+    // An area of the map marked by a region line, in tiles
+    public static class Region {
+        public final String kind;
+        public final int column, row, columns, rows;
+        public final String text;
+
+        public Region(String kind, int column, int row, int columns, int rows, String text) {
+            this.kind = kind;
+            this.column = column;
+            this.row = row;
+            this.columns = columns;
+            this.rows = rows;
+            this.text = text;
+        }
+    }
+
+    // Marks an empty tile
+    public static final short EMPTY = -1;
+
+    // Default chunk size in tiles
+    public static final int DEFAULT_CHUNK_SIZE = 16;
+
+    // Default minimum number of pre-rendered chunk images kept. draw()
+    // grows the cache to cover the viewport plus a ring of chunks around it.
+    public static final int DEFAULT_CACHED_CHUNKS = 16;
+
+    // Tile atlas
+    final Image mAtlas;
+    final int mTileWidth, mTileHeight;
+    final int mAtlasColumns;
+
+    // Size in tiles and chunks
+    final int mColumns, mRows;
+    final int mChunkSize;
+    final int mChunkColumns, mChunkRows;
+
+    // Tiles per chunk, indexed [chunk][row * chunkSize + column]. Null when empty.
+    final short[][] mChunks;
+
+    // Pre-rendered chunk images, with the frame each was last drawn in
+    final BufferedImage[] mChunkImages;
+    final long[] mChunkLastUsed;
+    int[] mCachedChunks;
+    int mCachedCount = 0;
+    long mFrame = 0;
+
+    // Chunks drawn in the last call to draw
+    int mChunksDrawn = 0;
+
+    // Regions from the map file
+    final List<Region> mRegions = new ArrayList<Region>();
+
+    public TileMap(Image atlas, int tileWidth, int tileHeight, int columns, int rows, int chunkSize, int cachedChunks) {
+        mAtlas = atlas;
+        mTileWidth = tileWidth;
+        mTileHeight = tileHeight;
+        mAtlasColumns = Math.max(1, atlas.getWidth(null) / tileWidth);
+
+        mColumns = columns;
+        mRows = rows;
+        mChunkSize = chunkSize;
+        mChunkColumns = (columns + chunkSize - 1) / chunkSize;
+        mChunkRows = (rows + chunkSize - 1) / chunkSize;
+
+        mChunks = new short[mChunkColumns * mChunkRows][];
+        mChunkImages = new BufferedImage[mChunks.length];
+        mChunkLastUsed = new long[mChunks.length];
+        mCachedChunks = new int[Math.max(1, cachedChunks)];
+    }
+
+    public TileMap(Image atlas, int tileWidth, int tileHeight, int columns, int rows) {
+        this(atlas, tileWidth, tileHeight, columns, rows, DEFAULT_CHUNK_SIZE, DEFAULT_CACHED_CHUNKS);
+    }
+
+    //-------------------------------------------------------
+    // Tiles
+    //-------------------------------------------------------
+
+    // Returns the tile at (column,row), or EMPTY outside the map
+    public short getTile(int column, int row) {
+        if (column < 0 || row < 0 || column >= mColumns || row >= mRows) {
+            return EMPTY;
+        }
+        short[] chunk = mChunks[chunkIndex(column, row)];
+        return (chunk == null) ? EMPTY : chunk[tileIndex(column, row)];
+    }
+
+    // Sets the tile at (column,row)
+    public void setTile(int column, int row, int tile) {
+        if (column < 0 || row < 0 || column >= mColumns || row >= mRows) {
+            return;
+        }
+
+        int c = chunkIndex(column, row);
+        if (mChunks[c] == null) {
+            if (tile == EMPTY) {
+                return;
+            }
+            mChunks[c] = new short[mChunkSize * mChunkSize];
+            Arrays.fill(mChunks[c], EMPTY);
+        }
+        mChunks[c][tileIndex(column, row)] = (short)tile;
+
+        // The chunk's image is out of date
+        evict(c);
+    }
+
+    // Returns the tile under the pixel (x,y)
+    public short getTileAt(double x, double y) {
+        return getTile((int)Math.floor(x / mTileWidth), (int)Math.floor(y / mTileHeight));
+    }
+
+    int chunkIndex(int column, int row) {
+        return (row / mChunkSize) * mChunkColumns + column / mChunkSize;
+    }
+
+    int tileIndex(int column, int row) {
+        return (row % mChunkSize) * mChunkSize + column % mChunkSize;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getTileWidth() {
+        return mTileWidth;
+    }
+
+    public int getTileHeight() {
+        return mTileHeight;
+    }
+
+    // Returns the width of the map in pixels
+    public int getPixelWidth() {
+        return mColumns * mTileWidth;
+    }
+
+    // Returns the height of the map in pixels
+    public int getPixelHeight() {
+        return mRows * mTileHeight;
+    }
+
+    // Returns the number of chunks drawn by the last call to draw
+    public int getChunksDrawn() {
+        return mChunksDrawn;
+    }
+
+    //-------------------------------------------------------
+    // Drawing
+    //-------------------------------------------------------
+
+    // Draws the part of the map seen by a camera whose top left corner is
+    // at (cameraX,cameraY) in map pixels, filling the engine's window
+    public void draw(GameEngine engine, double cameraX, double cameraY) {
+        mFrame++;
+        mChunksDrawn = 0;
+
+        int chunkWidth = mChunkSize * mTileWidth;
+        int chunkHeight = mChunkSize * mTileHeight;
+
+        // Range of chunks that overlap the viewport
+        int firstColumn = Math.max(0, (int)Math.floor(cameraX / chunkWidth));
+        int firstRow = Math.max(0, (int)Math.floor(cameraY / chunkHeight));
+        int lastColumn = Math.min(mChunkColumns - 1, (int)Math.floor((cameraX + engine.width() - 1) / chunkWidth));
+        int lastRow = Math.min(mChunkRows - 1, (int)Math.floor((cameraY + engine.height() - 1) / chunkHeight));
+
+        // Keep every chunk a viewport can overlap, plus a ring around it, so
+        // scrolling does not throw away chunks that are about to come back
+        int viewColumns = (engine.width() + chunkWidth - 1) / chunkWidth + 1;
+        int viewRows = (engine.height() + chunkHeight - 1) / chunkHeight + 1;
+        growCache((viewColumns + 2) * (viewRows + 2));
+
+        for (int cy = firstRow; cy <= lastRow; cy++) {
+            for (int cx = firstColumn; cx <= lastColumn; cx++) {
+                int c = cy * mChunkColumns + cx;
+                if (mChunks[c] == null) {
+                    continue;
+                }
+
+                Image image = chunkImage(c);
+                engine.drawImage(image, Math.floor(cx * chunkWidth - cameraX), Math.floor(cy * chunkHeight - cameraY));
+                mChunksDrawn++;
+            }
+        }
+    }
+
+    // Returns the pre-rendered image of chunk c, rendering it if needed
+    BufferedImage chunkImage(int c) {
+        mChunkLastUsed[c] = mFrame;
+        if (mChunkImages[c] != null) {
+            return mChunkImages[c];
+        }
+
+        // Make room by dropping the least recently drawn chunk
+        if (mCachedCount == mCachedChunks.length) {
+            int oldest = 0;
+            for (int i = 1; i < mCachedCount; i++) {
+                if (mChunkLastUsed[mCachedChunks[i]] < mChunkLastUsed[mCachedChunks[oldest]]) {
+                    oldest = i;
+                }
+            }
+
+            // Never drop a chunk drawn this frame, make more room instead
+            if (mChunkLastUsed[mCachedChunks[oldest]] == mFrame) {
+                growCache(mCachedChunks.length * 2);
+            } else {
+                evict(mCachedChunks[oldest]);
+            }
+        }
+
+        BufferedImage image = render(c);
+        mChunkImages[c] = image;
+        mCachedChunks[mCachedCount++] = c;
+        return image;
+    }
+
+    // Makes room for at least size pre-rendered chunks
+    void growCache(int size) {
+        size = Math.min(size, mChunks.length);
+        if (size > mCachedChunks.length) {
+            mCachedChunks = Arrays.copyOf(mCachedChunks, size);
+        }
+    }
+
+    // Drops chunk c's pre-rendered image
+    void evict(int c) {
+        if (mChunkImages[c] == null) {
+            return;
+        }
+        mChunkImages[c].flush();
+        mChunkImages[c] = null;
+        for (int i = 0; i < mCachedCount; i++) {
+            if (mCachedChunks[i] == c) {
+                mCachedChunks[i] = mCachedChunks[--mCachedCount];
+                break;
+            }
+        }
+    }
+
+    // Draws every tile of chunk c into a new image
+    BufferedImage render(int c) {
+        BufferedImage image = ImageCache.createCompatibleImage(mChunkSize * mTileWidth, mChunkSize * mTileHeight, Transparency.TRANSLUCENT);
+        Graphics2D g2d = image.createGraphics();
+
+        short[] tiles = mChunks[c];
+        for (int i = 0; i < tiles.length; i++) {
+            int tile = tiles[i];
+            if (tile < 0) {
+                continue;
+            }
+
+            int dx = (i % mChunkSize) * mTileWidth;
+            int dy = (i / mChunkSize) * mTileHeight;
+            int sx = (tile % mAtlasColumns) * mTileWidth;
+            int sy = (tile / mAtlasColumns) * mTileHeight;
+            g2d.drawImage(mAtlas, dx, dy, dx + mTileWidth, dy + mTileHeight, sx, sy, sx + mTileWidth, sy + mTileHeight, null);
+        }
+
+        g2d.dispose();
+        return image;
+    }
+
+    //-------------------------------------------------------
+    // Loading
+    //-------------------------------------------------------
+
+    public void addRegion(Region region) {
+        mRegions.add(region);
+    }
+
+    // Returns the regions in the order they were added
+    public List<Region> getRegions() {
+        return Collections.unmodifiableList(mRegions);
+    }
+
+    // Loads a map file, see the format above
+    public static TileMap load(String filename) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(AssetPack.open(filename), StandardCharsets.UTF_8))) {
+            String tileset = null;
+            int tileWidth = 0, tileHeight = 0;
+            int columns = -1, rows = -1;
+            int chunkSize = DEFAULT_CHUNK_SIZE;
+            TileMap map = null;
+            int row = 0;
+            List<Region> regions = new ArrayList<Region>();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] parts = line.split("\\s+");
+                if (parts[0].equals("region")) {
+                    parts = line.split("\\s+", 7);
+                    if (parts.length < 6) {
+                        throw new IOException(filename + ": region needs a kind, column, row, columns and rows");
+                    }
+                    regions.add(new Region(parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                            Integer.parseInt(parts[4]), Integer.parseInt(parts[5]), (parts.length == 7) ? parts[6] : ""));
+                    continue;
+                }
+
+                if (map == null) {
+                    // Header
+                    if (parts[0].equals("tileset") && parts.length == 4) {
+                        tileset = parts[1];
+                        tileWidth = Integer.parseInt(parts[2]);
+                        tileHeight = Integer.parseInt(parts[3]);
+                        continue;
+                    } else if (parts[0].equals("size") && parts.length == 3) {
+                        columns = Integer.parseInt(parts[1]);
+                        rows = Integer.parseInt(parts[2]);
+                        continue;
+                    } else if (parts[0].equals("chunk") && parts.length == 2) {
+                        chunkSize = Integer.parseInt(parts[1]);
+                        continue;
+                    }
+
+                    // First row of tiles, the header must be complete
+                    if (tileset == null || tileWidth <= 0 || tileHeight <= 0 || columns <= 0 || rows <= 0 || chunkSize <= 0) {
+                        throw new IOException(filename + ": missing or invalid tileset/size header");
+                    }
+                    map = new TileMap(ImageCache.get(tileset), tileWidth, tileHeight, columns, rows, chunkSize, DEFAULT_CACHED_CHUNKS);
+                }
+
+                // Row of tiles
+                if (row >= rows) {
+                    throw new IOException(filename + ": more than " + rows + " rows");
+                }
+                for (int column = 0; column < parts.length && column < columns; column++) {
+                    String tile = parts[column];
+                    if (!tile.equals(".")) {
+                        map.setTile(column, row, Integer.parseInt(tile));
+                    }
+                }
+                row++;
+            }
+
+            if (map == null) {
+                throw new IOException(filename + ": no tiles");
+            }
+            for (Region region : regions) {
+                map.addRegion(region);
+            }
+            return map;
+        } catch (NumberFormatException e) {
+            throw new IOException(filename + ": bad number " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,353 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+// A retained user interface: a background and a list of widgets that are
+// drawn once into a cached image. After that only widgets that changed
+// (hovered, pressed, new text, ...) are drawn again, into the cached image,
+// and validate() returns the region that changed so the game only needs
+// to repaint that part of the window. Painting a frame is a single blit.
+//
+// A widget may be shared by several layers (e.g. a mute button shown on
+// every menu page). Each layer remembers which version of each widget it
+// last drew, so every layer picks up the change when it is next shown.
+public class UILayer {
+    //-------------------------------------------------------
+    // Widgets
+    //-------------------------------------------------------
+
+    // Base class of everything drawn by a UILayer
+    public abstract static class Widget {
+        final Rectangle mBounds = new Rectangle();
+
+        // Bumped on every change, see UILayer.validate
+        long mVersion = 0;
+
+        boolean mHovered = false;
+        boolean mPressed = false;
+
+        // Run when the widget is clicked, or null
+        Runnable mAction;
+
+        Widget(double x, double y, double w, double h) {
+            mBounds.setFrame(x, y, w, h);
+        }
+
+        // Draws the widget. Only the widget's bounds may be touched.
+        abstract void paint(Graphics2D g);
+
+        // Marks the widget as needing to be drawn again
+        public void markDirty() {
+            mVersion++;
+        }
+
+        public Rectangle getBounds() {
+            return mBounds;
+        }
+
+        public void setAction(Runnable action) {
+            mAction = action;
+        }
+
+        // Returns true if the widget reacts to the mouse
+        boolean isInteractive() {
+            return mAction != null;
+        }
+
+        void setHovered(boolean hovered) {
+            if (mHovered != hovered) {
+                mHovered = hovered;
+                markDirty();
+            }
+        }
+
+        void setPressed(boolean pressed) {
+            if (mPressed != pressed) {
+                mPressed = pressed;
+                markDirty();
+            }
+        }
+    }
+
+    // A line of text with an optional shadow and translucent panel behind it
+    public static class Label extends Widget {
+        String mText;
+        final Font mFont;
+        final Color mColor;
+        final Color mShadow;
+        final Color mPanel;
+
+        // The text is centred in the given box, with a shadow offset by
+        // 3 pixels when shadow is not null and the box filled with panel
+        // when panel is not null
+        public Label(double x, double y, double w, double h, String text, Font font, Color color, Color shadow, Color panel) {
+            super(x, y, w, h);
+            mText = text;
+            mFont = font;
+            mColor = color;
+            mShadow = shadow;
+            mPanel = panel;
+        }
+
+        public void setText(String text) {
+            if (!text.equals(mText)) {
+                mText = text;
+                markDirty();
+            }
+        }
+
+        @Override
+        void paint(Graphics2D g) {
+            if (mPanel != null) {
+                g.setColor(mPanel);
+                g.fill(mBounds);
+            }
+            if (mShadow != null) {
+                drawCenteredText(g, mText, mFont, mShadow, mBounds, 3);
+            }
+            drawCenteredText(g, mText, mFont, mColor, mBounds, 0);
+        }
+    }
+
+    // A filled button with centred text. It lightens when hovered, darkens
+    // while pressed and can be shown as selected with a different colour.
+    public static class Button extends Widget {
+        String mText;
+        final Font mFont;
+        final Color mColor;
+        final Color mTextColor;
+        Color mSelectedColor;
+        boolean mSelected = false;
+
+        public Button(double x, double y, double w, double h, String text, Font font, Color color, Color textColor, Runnable action) {
+            super(x, y, w, h);
+            mText = text;
+            mFont = font;
+            mColor = color;
+            mTextColor = textColor;
+            mAction = action;
+        }
+
+        public void setText(String text) {
+            if (!text.equals(mText)) {
+                mText = text;
+                markDirty();
+            }
+        }
+
+        public void setSelectedColor(Color color) {
+            mSelectedColor = color;
+            markDirty();
+        }
+
+        public void setSelected(boolean selected) {
+            if (mSelected != selected) {
+                mSelected = selected;
+                markDirty();
+            }
+        }
+
+        @Override
+        void paint(Graphics2D g) {
+            Color color = (mSelected && mSelectedColor != null) ? mSelectedColor : mColor;
+            if (mPressed) {
+                color = blend(color, Color.BLACK, 0.25f);
+            } else if (mHovered) {
+                color = blend(color, Color.WHITE, 0.25f);
+            }
+            g.setColor(color);
+            g.fill(mBounds);
+            drawCenteredText(g, mText, mFont, mTextColor, mBounds, 0);
+        }
+    }
+
+    // Draws text centred in bounds, moved down and right by offset
+    static void drawCenteredText(Graphics2D g, String text, Font font, Color color, Rectangle bounds, int offset) {
+        TextCache.Text laidOut = TextCache.get(g, font, text);
+        int x = (int)(bounds.x + (bounds.width - laidOut.width) / 2);
+        int y = (int)(bounds.y + (bounds.height + laidOut.ascent - laidOut.descent) / 2);
+
+        g.setColor(color);
+        laidOut.draw(g, x + offset, y + offset);
+    }
+
+    // Mixes amount of b into a, keeping a's alpha
+    static Color blend(Color a, Color b, float amount) {
+        int r = Math.round(a.getRed() + (b.getRed() - a.getRed()) * amount);
+        int gr = Math.round(a.getGreen() + (b.getGreen() - a.getGreen()) * amount);
+        int bl = Math.round(a.getBlue() + (b.getBlue() - a.getBlue()) * amount);
+        return new Color(r, gr, bl, a.getAlpha());
+    }
+
+    //-------------------------------------------------------
+    // Layer
+    //-------------------------------------------------------
+
+    // Widgets from back to front
+    final List<Widget> mWidgets = new ArrayList<Widget>();
+
+    // Version of each widget drawn into the cached image
+    long[] mDrawnVersions = new long[0];
+
+    // Background, stretched to the window, or a solid colour
+    Image mBackground;
+    Color mBackgroundColor = Color.BLACK;
+
+    // The whole layer as last drawn
+    BufferedImage mImage;
+    boolean mValid = false;
+
+    // Widget under the mouse and the one being pressed
+    Widget mHovered;
+    Widget mPressed;
+
+    // Adds a widget in front of the others
+    public <T extends Widget> T add(T widget) {
+        mWidgets.add(widget);
+        mValid = false;
+        return widget;
+    }
+
+    // Removes every widget
+    public void clear() {
+        mWidgets.clear();
+        mHovered = null;
+        mPressed = null;
+        mValid = false;
+    }
+
+    public void setBackground(Image image, Color color) {
+        mBackground = image;
+        mBackgroundColor = color;
+        mValid = false;
+    }
+
+    // Forces the whole layer to be drawn again
+    public void invalidate() {
+        mValid = false;
+    }
+
+    // Brings the cached image up to date for a width x height window and
+    // returns the region of it that changed, or null if nothing did
+    public Rectangle validate(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        // Draw everything
+        if (!mValid || mImage == null || mImage.getWidth() != width || mImage.getHeight() != height) {
+            if (mImage == null || mImage.getWidth() != width || mImage.getHeight() != height) {
+                mImage = ImageCache.createCompatibleImage(width, height, Transparency.OPAQUE);
+            }
+            Rectangle all = new Rectangle(0, 0, width, height);
+            render(all);
+            mValid = true;
+            return all;
+        }
+
+        // Draw only the widgets that changed, and whatever overlaps them
+        Rectangle dirty = null;
+        for (int i = 0; i < mWidgets.size(); i++) {
+            Widget widget = mWidgets.get(i);
+            if (widget.mVersion != mDrawnVersions[i]) {
+                dirty = (dirty == null) ? new Rectangle(widget.mBounds) : dirty.union(widget.mBounds);
+            }
+        }
+        if (dirty != null) {
+            dirty = dirty.intersection(new Rectangle(0, 0, width, height));
+            render(dirty);
+        }
+        return dirty;
+    }
+
+    // Draws the background and every widget overlapping region into the cached image
+    void render(Rectangle region) {
+        if (mDrawnVersions.length != mWidgets.size()) {
+            mDrawnVersions = new long[mWidgets.size()];
+        }
+
+        Graphics2D g = mImage.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.clip(region);
+
+        if (mBackground != null) {
+            g.drawImage(mBackground, 0, 0, mImage.getWidth(), mImage.getHeight(), null);
+        } else {
+            g.setColor(mBackgroundColor);
+            g.fill(region);
+        }
+
+        for (int i = 0; i < mWidgets.size(); i++) {
+            Widget widget = mWidgets.get(i);
+            if (widget.mBounds.intersects(region)) {
+                widget.paint(g);
+                mDrawnVersions[i] = widget.mVersion;
+            }
+        }
+        g.dispose();
+    }
+
+    // Draws the cached image. Call validate first (e.g. in update) so the
+    // changed region is known and can be repainted.
+    public void paint(Graphics2D g, int width, int height) {
+        if (mImage == null) {
+            validate(width, height);
+        }
+        if (mImage != null) {
+            g.drawImage(mImage, 0, 0, null);
+        }
+    }
+
+    //-------------------------------------------------------
+    // Mouse
+    //-------------------------------------------------------
+
+    // Returns the front-most interactive widget at (x,y), or null
+    public Widget widgetAt(int x, int y) {
+        for (int i = mWidgets.size() - 1; i >= 0; i--) {
+            Widget widget = mWidgets.get(i);
+            if (widget.isInteractive() && widget.mBounds.contains(x, y)) {
+                return widget;
+            }
+        }
+        return null;
+    }
+
+    // Updates which widget is hovered
+    public void mouseMoved(int x, int y) {
+        Widget widget = widgetAt(x, y);
+        if (widget != mHovered) {
+            if (mHovered != null) mHovered.setHovered(false);
+            if (widget != null) widget.setHovered(true);
+            mHovered = widget;
+        }
+    }
+
+    // Presses the widget at (x,y) and runs its action. Returns true if a widget was hit.
+    public boolean mousePressed(int x, int y) {
+        Widget widget = widgetAt(x, y);
+        if (widget == null) {
+            return false;
+        }
+        widget.setPressed(true);
+        mPressed = widget;
+        widget.mAction.run();
+        return true;
+    }
+
+    // Releases the pressed widget
+    public void mouseReleased() {
+        if (mPressed != null) {
+            mPressed.setPressed(false);
+            mPressed = null;
+        }
+    }
+
+    // Clears hover and press, e.g. when the layer stops being shown
+    public void resetMouse() {
+        if (mHovered != null) mHovered.setHovered(false);
+        mouseReleased();
+        mHovered = null;
+    }
+}
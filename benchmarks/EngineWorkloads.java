@@ -0,0 +1,236 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.function.Supplier;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+// The operations GameEngineBenchmark measures: the GameEngine's hot drawing,
+// image, entity, collision, particle and audio paths, run against an
+// offscreen Graphics2D so they need no display.
+//
+// JMH will not take benchmarks in the default package, where the game
+// lives, so this builds each workload by name as a Supplier and the JMH
+// class in package benchmarks looks it up by reflection.
+public class EngineWorkloads {
+    // Size of the offscreen target
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 720;
+
+    // An engine drawing into an offscreen image
+    static class OffscreenEngine extends GameEngine {
+        final BufferedImage mTarget;
+
+        OffscreenEngine(int width, int height) {
+            super(width, height);
+            mTarget = ImageCache.createCompatibleImage(width, height, Transparency.OPAQUE);
+            mGraphics = mTarget.createGraphics();
+            mGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            mTransforms.push(mGraphics.getTransform());
+        }
+
+        @Override
+        public void update(double dt) {}
+
+        @Override
+        public void paintComponent() {}
+    }
+
+    // Sets up the workload called name and returns one operation of it.
+    // Operations return their result, or null for ones that only draw.
+    public static Supplier<Object> create(String name) {
+        final OffscreenEngine engine = new OffscreenEngine(WIDTH, HEIGHT);
+
+        // Assets the benchmarks work on, the same ones KiwiLoreGame uses
+        final Image sheet = GameEngine.loadImage("sp.png");
+        if (sheet == null) {
+            throw new IllegalStateException("run the benchmarks from the project directory, they need sp.png");
+        }
+        final Image frame = GameEngine.subImage(sheet, 0, 0, 250, 225);
+
+        switch (name) {
+        //-------------------------------------------------------
+        // Images
+        //-------------------------------------------------------
+        case "drawImageNative":
+            return () -> { engine.drawImage(frame, 100, 100); return null; };
+        case "drawImageScaledCached":
+            return () -> { engine.drawImage(frame, 100, 100, 32, 32); return null; };
+        case "drawImageScaledUncached":
+            return () -> engine.mGraphics.drawImage(frame, 100, 100, 32, 32, null);
+        case "subImage":
+            return () -> GameEngine.subImage(sheet, 250, 240, 250, 225);
+        case "spriteFlipPerFrameOld":
+            // How sprites were flipped before Sprite precomputed its frames
+            return () -> {
+                BufferedImage buffered = (BufferedImage)frame;
+                AffineTransform tx = AffineTransform.getScaleInstance(-1, 1);
+                tx.translate(-buffered.getWidth(null), 0);
+                BufferedImage flipped = new BufferedImage(buffered.getWidth(), buffered.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g2d = flipped.createGraphics();
+                g2d.drawImage(buffered, tx, null);
+                g2d.dispose();
+                return engine.mGraphics.drawImage(flipped, 100, 100, 32, 32, null);
+            };
+        case "spriteFlipPrecomputed": {
+            Image[] frames = new Image[16];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = GameEngine.subImage(sheet, (i % 4) * 250, (i / 4) * 240, 250, 225);
+            }
+            final Sprite sprite = new Sprite(frames);
+            return () -> { engine.drawImage(sprite.getFrame(3, Sprite.Flip.HORIZONTAL), 100, 100, 32, 32); return null; };
+        }
+
+        // Sprites from two atlases, submitted alternately
+        case "sprites500Interleaved": {
+            final Image[] atlases = { sheet, GameEngine.subImage(sheet, 0, 0, 1000, 960) };
+            return () -> {
+                for (int i = 0; i < 500; i++) {
+                    int x = (i * 37) % WIDTH, y = (i * 53) % HEIGHT, f = i % 16;
+                    int sx = (f % 4) * 250, sy = (f / 4) * 240;
+                    engine.mGraphics.drawImage(atlases[i & 1], x, y, x + 32, y + 32, sx, sy, sx + 250, sy + 225, null);
+                }
+                return null;
+            };
+        }
+        case "sprites500SpriteBatch": {
+            final Image[] atlases = { sheet, GameEngine.subImage(sheet, 0, 0, 1000, 960) };
+            final SpriteBatch batch = engine.getSpriteBatch();
+            batch.setClip(WIDTH, HEIGHT);
+            return () -> {
+                for (int i = 0; i < 500; i++) {
+                    int f = i % 16;
+                    batch.add(atlases[i & 1], (f % 4) * 250, (f / 4) * 240, 250, 225, (i * 37) % WIDTH, (i * 53) % HEIGHT, 32, 32, 0);
+                }
+                batch.flush(engine.mGraphics, engine);
+                return null;
+            };
+        }
+
+        //-------------------------------------------------------
+        // Text
+        //-------------------------------------------------------
+        case "drawText":
+            return () -> { engine.drawText(100, 100, "Now Playing: Story Mode"); return null; };
+        case "drawBoldText":
+            return () -> { engine.drawBoldText(100, 100, "KIWI LORE", "Arial", 70); return null; };
+        case "drawStringNewFontOld":
+            // How text was drawn before fonts were cached
+            return () -> {
+                engine.mGraphics.setFont(new Font("Arial", Font.BOLD, 70));
+                engine.mGraphics.drawString("KIWI LORE", 100, 100);
+                return null;
+            };
+        case "drawCenteredTextCached": {
+            final Font titleFont = GameEngine.getFont("Arial", Font.BOLD, 70);
+            return () -> { engine.drawCenteredText(640, 100, "KIWI LORE", titleFont); return null; };
+        }
+        case "measureTextCached": {
+            final Font titleFont = GameEngine.getFont("Arial", Font.BOLD, 70);
+            return () -> engine.measureText("KIWI LORE", titleFont);
+        }
+
+        //-------------------------------------------------------
+        // Shapes
+        //-------------------------------------------------------
+        case "drawLine":
+            return () -> { engine.drawLine(10.0, 10.0, 300.0, 200.0); return null; };
+        case "drawLineInt":
+            return () -> { engine.drawLine(10, 10, 300, 200); return null; };
+        case "drawLineThick":
+            return () -> { engine.drawLine(10, 10, 300, 200, 4); return null; };
+        case "drawRectangle":
+            return () -> { engine.drawRectangle(10.0, 10.0, 300.0, 200.0); return null; };
+        case "drawRectangleInt":
+            return () -> { engine.drawRectangle(10, 10, 300, 200); return null; };
+        case "drawRectangleThick":
+            return () -> { engine.drawRectangle(10, 10, 300, 200, 4); return null; };
+        case "drawSolidRectangle":
+            return () -> { engine.drawSolidRectangle(10.0, 10.0, 300.0, 200.0); return null; };
+        case "drawSolidRectangleInt":
+            return () -> { engine.drawSolidRectangle(10, 10, 300, 200); return null; };
+        case "drawCircle":
+            return () -> { engine.drawCircle(200.0, 200.0, 50.0); return null; };
+        case "drawCircleInt":
+            return () -> { engine.drawCircle(200, 200, 50); return null; };
+        case "drawCircleThick":
+            return () -> { engine.drawCircle(200, 200, 50, 4); return null; };
+        case "drawSolidCircle":
+            return () -> { engine.drawSolidCircle(200.0, 200.0, 50.0); return null; };
+        case "drawSolidCircleInt":
+            return () -> { engine.drawSolidCircle(200, 200, 50); return null; };
+        case "changeColorRgb":
+            return () -> { engine.changeColor(34, 139, 34); return null; };
+
+        //-------------------------------------------------------
+        // Entities, collisions and particles
+        //-------------------------------------------------------
+        case "entityStoreSystems10k": {
+            final EntityStore entities = new EntityStore(10000);
+            for (int i = 0; i < 10000; i++) {
+                int slot = entities.slot(entities.create(0));
+                entities.flags[slot] = EntityStore.GRAVITY | EntityStore.ANIMATED;
+                entities.frameCount[slot] = 15;
+                entities.frameDuration[slot] = 0.1f;
+            }
+            return () -> {
+                entities.applyGravity(500, 1.0 / 60);
+                entities.integrate(1.0 / 60);
+                entities.animate(1.0 / 60);
+                return entities.x;
+            };
+        }
+        case "spatialHashMoveAllPairs1k": {
+            final SpatialHash collisions = new SpatialHash(64, 1000);
+            final double[] boxX = new double[1000];
+            final double[] boxY = new double[1000];
+            for (int i = 0; i < 1000; i++) {
+                boxX[i] = (i * 7919) % 1280;
+                boxY[i] = (i * 104729) % 720;
+                collisions.insert(boxX[i], boxY[i], boxX[i] + 32, boxY[i] + 32, 1, i);
+            }
+            final int[] pairs = new int[20000];
+            return () -> {
+                for (int i = 0; i < 1000; i++) {
+                    boxX[i] = (boxX[i] + 1) % 1280;
+                    collisions.move(i, boxX[i], boxY[i], boxX[i] + 32, boxY[i] + 32);
+                }
+                return collisions.queryPairs(-1, -1, pairs);
+            };
+        }
+        case "particleSystemUpdateDraw5k": {
+            final ParticleSystem particles = new ParticleSystem(5000);
+            final ParticleSystem.Emitter dust = new ParticleSystem.Emitter();
+            dust.x = WIDTH / 2.0;
+            dust.y = HEIGHT / 2.0;
+            dust.width = 400;
+            dust.height = 200;
+            dust.minLife = 10;
+            dust.maxLife = 20;
+            dust.burst(particles, 5000);
+            return () -> {
+                dust.burst(particles, 50);
+                particles.update(1.0 / 60);
+                engine.drawParticles(particles, 0);
+                engine.flushSprites();
+                return null;
+            };
+        }
+
+        //-------------------------------------------------------
+        // Audio
+        //-------------------------------------------------------
+        case "audioClipConstruction1s": {
+            // One second of 16 bit stereo audio
+            final AudioFormat format = new AudioFormat(44100f, 16, 2, true, false);
+            final byte[] pcm = new byte[44100 * format.getFrameSize()];
+            return () -> new GameEngine.AudioClip(new AudioInputStream(new ByteArrayInputStream(pcm), format, 44100));
+        }
+
+        default:
+            throw new IllegalArgumentException("unknown workload: " + name);
+        }
+    }
+}
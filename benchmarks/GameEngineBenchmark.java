@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// JMH microbenchmarks for the GameEngine's hot paths. The workloads
+// themselves are in EngineWorkloads, which sits in the game's default
+// package; each one is set up by name and run here.
+//
+// Usage (from the project directory, the workloads load sp.png):
+//   mvn -P benchmark package
+//   java -jar target/benchmarks.jar                                  everything
+//   java -jar target/benchmarks.jar -p workload=drawText,drawBoldText some of them
+//
+// Every workload runs in its own forked JVM, so the JIT profile built by
+// one cannot skew another, and every result goes to a Blackhole.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class GameEngineBenchmark {
+    @Param({
+        // Images
+        "drawImageNative", "drawImageScaledCached", "drawImageScaledUncached", "subImage",
+        "spriteFlipPerFrameOld", "spriteFlipPrecomputed", "sprites500Interleaved", "sprites500SpriteBatch",
+        // Text
+        "drawText", "drawBoldText", "drawStringNewFontOld", "drawCenteredTextCached", "measureTextCached",
+        // Shapes
+        "drawLine", "drawLineInt", "drawLineThick", "drawRectangle", "drawRectangleInt", "drawRectangleThick",
+        "drawSolidRectangle", "drawSolidRectangleInt", "drawCircle", "drawCircleInt", "drawCircleThick",
+        "drawSolidCircle", "drawSolidCircleInt", "changeColorRgb",
+        // Entities, collisions and particles
+        "entityStoreSystems10k", "spatialHashMoveAllPairs1k", "particleSystemUpdateDraw5k",
+        // Audio
+        "audioClipConstruction1s"
+    })
+    public String workload;
+
+    Supplier<Object> mOperation;
+
+    @SuppressWarnings("unchecked")
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        mOperation = (Supplier<Object>)Class.forName("EngineWorkloads")
+                .getMethod("create", String.class)
+                .invoke(null, workload);
+    }
+
+    @Benchmark
+    public void run(Blackhole blackhole) {
+        blackhole.consume(mOperation.get());
+    }
+}